@@ -0,0 +1,82 @@
+package com.haru;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+
+/**
+ * Apache HttpClient를 사용하는 HTTP 엔진이다. 기본값으로 사용된다.
+ */
+public class ApacheHttpTransport implements HttpTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    private final HttpClient client;
+
+    public ApacheHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections 커넥션 풀의 최대 크기
+     */
+    public ApacheHttpTransport(int maxConnections) {
+        this(createHttpClient(maxConnections));
+    }
+
+    /**
+     * 직접 설정한 HttpClient를 사용한다.
+     * @param client HTTP Client
+     */
+    public ApacheHttpTransport(HttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return client.execute(request);
+    }
+
+    /**
+     * 기본값으로 HTTP Client를 생성한다.
+     * @return HTTP Client
+     */
+    private static HttpClient createHttpClient(int maxConnections) {
+        HttpParams params = new BasicHttpParams();
+
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+
+        HttpConnectionParams.setConnectionTimeout(params, HaruRequest.CONNECT_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSoTimeout(params, HaruRequest.READ_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpClientParams.setRedirecting(params, false);
+
+        HttpProtocolParams.setUserAgent(params, HaruRequest.USER_AGENT);
+
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+
+        String host = System.getProperty("http.proxyHost");
+        String portString = System.getProperty("http.proxyPort");
+        if ((host != null) && (host.length() != 0) && (portString != null) && (portString.length() != 0)) {
+            int port = Integer.parseInt(portString);
+            HttpHost proxy = new HttpHost(host, port, "http");
+            params.setParameter("http.route.default-proxy", proxy);
+        }
+
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params,
+                new DefaultHttpClient().getConnectionManager().getSchemeRegistry()), params);
+    }
+}
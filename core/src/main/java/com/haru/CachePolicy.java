@@ -0,0 +1,30 @@
+package com.haru;
+
+/**
+ * GET 요청시 응답 캐시 ({@link com.haru.ResponseCache})를 어떻게 사용할지 결정한다.
+ * {@link com.haru.HaruRequest#cachePolicy(CachePolicy)}로 요청마다 지정할 수 있다.
+ */
+public enum CachePolicy {
+
+    /**
+     * 캐시를 사용하지 않고 항상 서버에서 전체 응답을 받는다.
+     */
+    NETWORK_ONLY,
+
+    /**
+     * 기본값. 항상 서버에 요청하되, 캐시된 응답이 있으면 ETag / Last-Modified로 변경 여부를 확인하고
+     * 변경되지 않았다면 (304 Not Modified) 캐시된 응답을 사용한다.
+     */
+    REVALIDATE,
+
+    /**
+     * 캐시된 응답이 있으면 서버에 요청하지 않고 바로 사용한다. 없을 때만 서버에 요청한다.
+     */
+    CACHE_ELSE_NETWORK,
+
+    /**
+     * 캐시된 응답이 있으면 바로 사용하고, 백그라운드에서 서버에 변경 여부를 확인해 캐시를 갱신한다.
+     * 없을 때는 서버에 요청한다.
+     */
+    STALE_WHILE_REVALIDATE
+}
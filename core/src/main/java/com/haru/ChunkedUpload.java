@@ -0,0 +1,381 @@
+package com.haru;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.haru.mime.ProgressOutputStream;
+import com.haru.mime.ThrottledProgressListener;
+import com.haru.task.Continuation;
+import com.haru.task.Task;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 큰 파일을 일정한 크기의 조각으로 나누어 업로드한다.
+ *
+ * 각 조각은 MD5 체크섬 (Content-MD5)과 함께 보내지고, 서버가 받은 조각의 수는 디스크에 저장된다.
+ * 업로드가 실패하거나 앱이 종료되어도, 같은 파일을 다시 업로드하면 서버가 마지막으로 받은 조각부터 이어서 보낸다.
+ *
+ * 서버가 업로드 시작 요청을 거부하면 (404, 405, 501) 조각 업로드를 지원하지 않는 서버로 보고,
+ * 이후로는 사용하지 않는다. 이때 {@link com.haru.HaruFile}은 한 번의 multipart 요청으로 다시 올린다.
+ *
+ * <pre>
+ * POST /files/uploads                     업로드 시작 { name, size, chunkSize } → { uploadId }
+ * GET  /files/uploads/:uploadId           받은 조각 수 → { received }
+ * PUT  /files/uploads/:uploadId/:index    조각 전송 → { received }
+ * POST /files/uploads/:uploadId/complete  업로드 완료 → 파일 정보
+ * </pre>
+ */
+class ChunkedUpload {
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    // 서버가 받은 조각 수가 늘어나지 않은 채로 같은 조각을 보낼 수 있는 최대 횟수
+    static final int MAX_STALLED_ATTEMPTS = 3;
+
+    private static final String PREF_NAME = "haru_uploads";
+
+    private static volatile int defaultChunkSize = DEFAULT_CHUNK_SIZE;
+
+    // 서버가 조각 업로드 (/files/uploads)를 지원하는지 여부. 거부되면 false가 된다.
+    private static volatile boolean isSupported = true;
+
+    private final File file;
+    private final long fileSize;
+    private final String stateKey;
+    private final ProgressOutputStream.ProgressListener progressListener;
+    private final AtomicBoolean stopRequested;
+    private final Task.Priority priority;
+
+    private String uploadId;
+    private int chunkSize;
+    private int chunkCount;
+
+    /**
+     * 조각 하나의 크기를 설정한다. 이미 시작된 업로드는 처음의 크기를 그대로 사용한다.
+     * @param bytes 조각의 크기 (bytes)
+     */
+    static void setChunkSize(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Chunk size must be greater than 0!");
+        }
+        defaultChunkSize = bytes;
+    }
+
+    /**
+     * 조각 하나보다 큰 파일만 나누어 업로드한다.
+     */
+    static boolean shouldUse(File file) {
+        return isSupported && file.length() > defaultChunkSize;
+    }
+
+    /**
+     * 서버가 조각 업로드를 지원하는지 여부를 반환한다. 업로드 시작 요청이 거부되었다면 false이다.
+     */
+    static boolean isSupported() {
+        return isSupported;
+    }
+
+    /**
+     * @param file 업로드할 파일
+     * @param progressListener 파일 전체에 대한 진행 상황을 받을 리스너 (null 가능)
+     * @param stopRequested true가 되면 다음 조각을 보내지 않고 {@link CancellationException}으로 멈춘다.
+     *                      진행 상태는 남아있으므로 다시 시작하면 이어서 올린다. (null 가능)
+     * @param priority 조각 전송을 포함한 모든 요청의 {@link com.haru.task.Task.Priority}
+     */
+    ChunkedUpload(File file,
+                  ProgressOutputStream.ProgressListener progressListener,
+                  AtomicBoolean stopRequested,
+                  Task.Priority priority) {
+        this.file = file;
+        this.fileSize = file.length();
+        this.stateKey = stateKeyOf(file);
+        // 조각을 쓸 때마다 불리므로 multipart 업로드와 같이 일정 간격으로만 전달한다.
+        this.progressListener = progressListener != null ? new ThrottledProgressListener(progressListener) : null;
+        this.stopRequested = stopRequested;
+        this.priority = priority;
+    }
+
+    /**
+     * 업로드를 시작하거나, 저장된 진행 상태가 있다면 이어서 업로드한다.
+     * @return 완료 요청의 응답 (업로드된 파일 정보)
+     */
+    Task<HaruResponse> start() {
+        return resumeOrCreate().onSuccessTask(new Continuation<Integer, Task<HaruResponse>>() {
+            @Override
+            public Task<HaruResponse> then(Task<Integer> task) throws Exception {
+                int received = task.getResult();
+                if (received > 0) {
+                    Haru.logD("ChunkedUpload : resuming %s from chunk %d/%d",
+                            file.getName(), received, chunkCount);
+                }
+                return uploadFrom(received, 0);
+            }
+        });
+    }
+
+    /**
+     * 저장된 업로드를 서버에 확인하고, 없거나 만료되었다면 새로 시작한다.
+     * @return 서버가 받은 조각의 수
+     */
+    private Task<Integer> resumeOrCreate() {
+        JSONObject state = loadState();
+        if (state == null) return create();
+
+        uploadId = state.optString("uploadId");
+        chunkSize = state.optInt("chunkSize", defaultChunkSize);
+        chunkCount = countChunks();
+
+        return new HaruRequest("/files/uploads/" + uploadId)
+                .cachePolicy(CachePolicy.NETWORK_ONLY)
+                .priority(priority)
+                .executeAsync()
+                .continueWithTask(new Continuation<HaruResponse, Task<Integer>>() {
+                    @Override
+                    public Task<Integer> then(Task<HaruResponse> task) throws Exception {
+                        if (task.isFaulted()) {
+                            Exception error = task.getError();
+                            if (!(error instanceof HttpStatusException)
+                                    || ((HttpStatusException) error).isServerError()) {
+                                throw error;
+                            }
+                            // 서버에서 만료된 업로드이다.
+                            clearState();
+                            return create();
+                        }
+
+                        HaruResponse response = task.getResult();
+                        if (response.hasError()) throw response.getError();
+                        return Task.forResult(response.getJsonBody().getInt("received"));
+                    }
+                });
+    }
+
+    private Task<Integer> create() {
+        chunkSize = defaultChunkSize;
+        chunkCount = countChunks();
+
+        Param param = new Param();
+        param.put("name", file.getName());
+        param.put("size", fileSize);
+        param.put("chunkSize", chunkSize);
+
+        return new HaruRequest("/files/uploads")
+                .post(param)
+                .priority(priority)
+                .executeAsync()
+                .continueWith(new Continuation<HaruResponse, Integer>() {
+                    @Override
+                    public Integer then(Task<HaruResponse> task) throws Exception {
+                        if (task.isFaulted()) {
+                            Exception error = task.getError();
+                            if (isRejected(error)) {
+                                Haru.logI("ChunkedUpload : server does not support chunked uploads (%s)",
+                                        error.getMessage());
+                                isSupported = false;
+                            }
+                            throw error;
+                        }
+
+                        HaruResponse response = task.getResult();
+                        if (response.hasError()) throw response.getError();
+
+                        uploadId = response.getJsonBody().getString("uploadId");
+                        saveState(0);
+                        return 0;
+                    }
+                });
+    }
+
+    /**
+     * index번째 조각부터 순서대로 보내고, 다 보냈다면 업로드를 완료한다.
+     * @param stalledAttempts 서버가 받은 조각 수가 늘어나지 않은 채로 index번째 조각을 보낸 횟수
+     */
+    private Task<HaruResponse> uploadFrom(final int index, final int stalledAttempts) {
+        if (stalledAttempts >= MAX_STALLED_ATTEMPTS) {
+            // 서버가 같은 조각을 계속 거부한다. (체크섬 불일치 등)
+            return Task.forError(new HaruException("Server did not accept chunk " + index
+                    + " of " + file.getName() + " after " + stalledAttempts + " attempts"));
+        }
+        if (index >= chunkCount) return complete();
+        if (stopRequested != null && stopRequested.get()) {
+            return Task.forError(new CancellationException("Upload stopped at chunk " + index));
+        }
+
+        return Task.callInBackground(new Callable<ChunkEntity>() {
+            @Override
+            public ChunkEntity call() throws Exception {
+                return readChunk(index);
+            }
+        }).onSuccessTask(new Continuation<ChunkEntity, Task<HaruResponse>>() {
+            @Override
+            public Task<HaruResponse> then(Task<ChunkEntity> task) throws Exception {
+                ChunkEntity chunk = task.getResult();
+                long end = chunk.offset + chunk.getContentLength() - 1;
+
+                // PUT은 멱등적이므로 실패한 조각은 RetryPolicy에 따라 다시 보내진다.
+                return new HaruRequest("/files/uploads/" + uploadId + "/" + index)
+                        .put(chunk)
+                        .header("Content-MD5", chunk.checksum)
+                        .header("Content-Range", "bytes " + chunk.offset + "-" + end + "/" + fileSize)
+                        .priority(priority)
+                        .executeAsync();
+            }
+        }).onSuccessTask(new Continuation<HaruResponse, Task<HaruResponse>>() {
+            @Override
+            public Task<HaruResponse> then(Task<HaruResponse> task) throws Exception {
+                HaruResponse response = task.getResult();
+                if (response.hasError()) throw response.getError();
+
+                // 서버가 확인한 조각까지 저장한다. 다음에는 여기서부터 이어서 보낸다.
+                int received = response.getJsonBody().optInt("received", index + 1);
+                saveState(received);
+                return uploadFrom(received, received > index ? 0 : stalledAttempts + 1);
+            }
+        });
+    }
+
+    private Task<HaruResponse> complete() {
+        return new HaruRequest("/files/uploads/" + uploadId + "/complete")
+                .post(new Param())
+                .priority(priority)
+                .executeAsync()
+                .onSuccess(new Continuation<HaruResponse, HaruResponse>() {
+                    @Override
+                    public HaruResponse then(Task<HaruResponse> task) throws Exception {
+                        HaruResponse response = task.getResult();
+                        if (response.hasError()) throw response.getError();
+
+                        clearState();
+                        return response;
+                    }
+                });
+    }
+
+    /**
+     * 엔드포인트가 없거나 메서드를 지원하지 않는다는 응답인지 확인한다.
+     */
+    private static boolean isRejected(Exception error) {
+        if (!(error instanceof HttpStatusException)) return false;
+        int statusCode = ((HttpStatusException) error).getStatusCode();
+        return statusCode == 404 || statusCode == 405 || statusCode == 501;
+    }
+
+    private int countChunks() {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * index번째 조각을 읽고 체크섬을 계산한다.
+     */
+    private ChunkEntity readChunk(int index) throws IOException {
+        long offset = (long) index * chunkSize;
+        byte[] data = new byte[(int) Math.min(chunkSize, fileSize - offset)];
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            input.readFully(data);
+        } finally {
+            input.close();
+        }
+
+        try {
+            byte[] md5 = MessageDigest.getInstance("MD5").digest(data);
+            return new ChunkEntity(data, offset, Base64.encodeToString(md5, Base64.NO_WRAP));
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 조각 하나의 요청 본문. 전송하면서 파일 전체에 대한 진행 상황을 알린다.
+     */
+    private class ChunkEntity extends ByteArrayEntity {
+        final long offset;
+        final String checksum;
+
+        ChunkEntity(byte[] data, long offset, String checksum) {
+            super(data);
+            this.offset = offset;
+            this.checksum = checksum;
+            setContentType("application/octet-stream");
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (progressListener == null) {
+                super.writeTo(out);
+                return;
+            }
+
+            super.writeTo(new ProgressOutputStream(out, fileSize,
+                    new ProgressOutputStream.ProgressListener() {
+                        @Override
+                        public void progress(long total, long transferred) {
+                            progressListener.progress(total, offset + transferred);
+                        }
+                    }));
+        }
+    }
+
+    /*
+     * 진행 상태는 파일의 경로, 크기, 수정 시각별로 저장된다. 파일이 바뀌면 처음부터 다시 올린다.
+     */
+
+    private static String stateKeyOf(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private static SharedPreferences getPreferences() {
+        Context context = Haru.getAppContext();
+        if (context == null) return null;
+        return context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    private JSONObject loadState() {
+        SharedPreferences pref = getPreferences();
+        if (pref == null) return null;
+
+        String state = pref.getString(stateKey, null);
+        if (state == null) return null;
+        try {
+            return new JSONObject(state);
+
+        } catch (JSONException e) {
+            clearState();
+            return null;
+        }
+    }
+
+    private void saveState(int received) throws JSONException {
+        SharedPreferences pref = getPreferences();
+        if (pref == null) return;
+
+        JSONObject state = new JSONObject();
+        state.put("uploadId", uploadId);
+        state.put("chunkSize", chunkSize);
+        state.put("received", received);
+        pref.edit().putString(stateKey, state.toString()).apply();
+    }
+
+    private void clearState() {
+        SharedPreferences pref = getPreferences();
+        if (pref == null) return;
+        pref.edit().remove(stateKey).apply();
+    }
+}
@@ -0,0 +1,135 @@
+package com.haru;
+
+import java.util.HashMap;
+
+/**
+ * 엔드포인트별로 서버 장애를 감지해서, 장애가 계속되는 동안 요청을 보내지 않고 바로 실패시킨다.
+ *
+ * 연속으로 일정 횟수 이상 실패하면 열리고 (OPEN), 일정 시간이 지나면 하나의 요청만
+ * 시험삼아 보낸다 (HALF_OPEN). 그 요청이 성공하면 닫히고 (CLOSED), 실패하면 다시 열린다.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private static volatile long openMillis = DEFAULT_OPEN_MILLIS;
+
+    private static final HashMap<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private boolean isProbing = false;
+
+    /**
+     * Circuit Breaker가 열리는 연속 실패 횟수를 설정한다.
+     * @param failures 연속 실패 횟수
+     */
+    public static void setFailureThreshold(int failures) {
+        if (failures <= 0) {
+            throw new IllegalArgumentException("Failure threshold must be greater than 0!");
+        }
+        failureThreshold = failures;
+    }
+
+    /**
+     * 열린 Circuit Breaker가 다시 요청을 시험해보기까지 기다릴 시간을 설정한다.
+     * @param millis 시간 (ms)
+     */
+    public static void setOpenDuration(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Duration must be positive number!");
+        }
+        openMillis = millis;
+    }
+
+    /**
+     * 해당 엔드포인트의 현재 상태를 반환한다.
+     * @param endpoint 엔드포인트 (예: /classes/Post)
+     */
+    public static State getState(String endpoint) {
+        synchronized (breakers) {
+            CircuitBreaker breaker = breakers.get(endpoint);
+            if (breaker == null) return State.CLOSED;
+            synchronized (breaker) {
+                return breaker.state;
+            }
+        }
+    }
+
+    /**
+     * 모든 엔드포인트의 Circuit Breaker를 닫는다.
+     */
+    public static void resetAll() {
+        synchronized (breakers) {
+            breakers.clear();
+        }
+    }
+
+    static CircuitBreaker forEndpoint(String endpoint) {
+        synchronized (breakers) {
+            CircuitBreaker breaker = breakers.get(endpoint);
+            if (breaker == null) {
+                breaker = new CircuitBreaker();
+                breakers.put(endpoint, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * 요청을 보내도 되는지 확인한다.
+     * 열린 상태에서 대기 시간이 지났다면, 시험용 요청 하나만 허용한다.
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) return false;
+                state = State.HALF_OPEN;
+                isProbing = true;
+                return true;
+
+            case HALF_OPEN:
+                if (isProbing) return false;
+                isProbing = true;
+                return true;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 서버가 응답했다. (4xx 에러 포함)
+     */
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        isProbing = false;
+    }
+
+    /**
+     * 서버 장애로 요청이 실패했다.
+     */
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        isProbing = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 서버의 상태와 관계없는 이유로 요청이 끝났다. (기기가 오프라인인 경우 등)
+     */
+    synchronized void recordIgnored() {
+        isProbing = false;
+    }
+}
@@ -0,0 +1,14 @@
+package com.haru;
+
+/**
+ * 해당 엔드포인트의 Circuit Breaker가 열려 있어, 요청을 보내지 않고 바로 실패했을 때 발생한다.
+ * 네트워크 에러 (IOException)가 아니므로, 재시도하거나 오프라인 큐에 보관하지 않고 호출한 쪽에 그대로 전달된다.
+ *
+ * @see com.haru.CircuitBreaker
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    public CircuitBreakerOpenException(String endpoint) {
+        super("Circuit breaker is open for " + endpoint);
+    }
+}
@@ -0,0 +1,269 @@
+package com.haru;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * API 요청과 응답 본문의 gzip 압축을 설정한다.
+ *
+ * 응답은 항상 gzip으로 받을 수 있도록 요청하며, 받은 응답은 읽으면서 바로 압축을 푼다.
+ * 요청 본문의 압축은 서버가 지원하는 경우에만 켜야 하므로 기본적으로 꺼져 있다.
+ */
+public class Compression {
+
+    public static final int DEFAULT_REQUEST_THRESHOLD = 1024;
+
+    private static volatile boolean requestCompressionEnabled = false;
+    private static volatile int requestThreshold = DEFAULT_REQUEST_THRESHOLD;
+    private static volatile Listener listener;
+
+    /**
+     * 압축 결과를 전달받는 리스너. 압축률을 측정할 때 사용할 수 있다.
+     * 네트워크 스레드에서 호출된다.
+     */
+    public interface Listener {
+        /**
+         * 요청 본문이 압축되었을 때 호출된다.
+         * @param url 요청 URL
+         * @param originalSize 압축 전 크기 (bytes)
+         * @param compressedSize 압축 후 크기 (bytes)
+         */
+        public void onRequestCompressed(String url, long originalSize, long compressedSize);
+
+        /**
+         * gzip으로 받은 응답 본문을 다 읽었을 때 호출된다.
+         * @param url 요청 URL
+         * @param compressedSize 전송된 크기 (bytes)
+         * @param originalSize 압축을 푼 크기 (bytes)
+         */
+        public void onResponseDecompressed(String url, long compressedSize, long originalSize);
+    }
+
+    /**
+     * 요청 본문 (POST, PUT)을 gzip으로 압축해서 보낼지 여부를 설정한다. 기본값은 false이다.
+     * 서버가 Content-Encoding: gzip 요청을 지원해야 한다.
+     * @param enable 사용 여부
+     */
+    public static void setRequestCompressionEnabled(boolean enable) {
+        requestCompressionEnabled = enable;
+    }
+
+    public static boolean isRequestCompressionEnabled() {
+        return requestCompressionEnabled;
+    }
+
+    /**
+     * 요청 본문을 압축할 최소 크기를 설정한다. 이보다 작은 본문은 압축하지 않는다.
+     * @param bytes 최소 크기 (bytes)
+     */
+    public static void setRequestCompressionThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Threshold must be positive number!");
+        }
+        requestThreshold = bytes;
+    }
+
+    /**
+     * 압축 결과를 전달받을 리스너를 설정한다.
+     * @param compressionListener {@link com.haru.Compression.Listener} (null일 시 해제)
+     */
+    public static void setListener(Listener compressionListener) {
+        listener = compressionListener;
+    }
+
+    /**
+     * 요청 본문 압축이 켜져 있다면, 본문을 써보고 최소 크기를 넘을 때만 압축한다.
+     * 압축 여부를 헤더에 미리 적어야 하므로 본문을 메모리에 쓰지만,
+     * 최소 크기를 넘는 순간부터는 압축된 내용만 보관한다.
+     *
+     * @param url 요청 URL
+     * @param entity 원래의 요청 본문
+     * @return 보낼 요청 본문
+     */
+    static HttpEntity compressRequest(String url, HttpEntity entity) throws IOException {
+        if (!requestCompressionEnabled) return entity;
+
+        ThresholdGzipOutputStream out = new ThresholdGzipOutputStream(requestThreshold);
+        entity.writeTo(out);
+        out.close();
+
+        ByteArrayEntity compressed = new ByteArrayEntity(out.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        if (!out.isCompressed()) return compressed;
+
+        compressed.setContentEncoding("gzip");
+        Haru.logD("%s : Request compressed %d => %d bytes", url, out.getOriginalSize(), out.getSize());
+        if (listener != null) {
+            listener.onRequestCompressed(url, out.getOriginalSize(), out.getSize());
+        }
+        return compressed;
+    }
+
+    /**
+     * 응답이 gzip으로 압축되어 있다면, 읽으면서 압축을 풀도록 응답 본문을 감싼다.
+     * @param url 요청 URL
+     * @param response HTTP 응답
+     */
+    static void decompressResponse(String url, HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) return;
+
+        Header encoding = entity.getContentEncoding();
+        if (encoding == null || !encoding.getValue().equalsIgnoreCase("gzip")) return;
+
+        response.setEntity(new GzipDecompressingEntity(url, entity));
+    }
+
+    /**
+     * 읽으면서 압축을 푸는 응답 본문.
+     */
+    private static class GzipDecompressingEntity extends HttpEntityWrapper {
+        private final String url;
+
+        GzipDecompressingEntity(String url, HttpEntity wrapped) {
+            super(wrapped);
+            this.url = url;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new MeasuringGzipInputStream(url, wrappedEntity.getContent());
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
+
+    /**
+     * 압축을 풀면서 전송된 크기와 풀린 크기를 세고, 닫힐 때 리스너에 알린다.
+     */
+    private static class MeasuringGzipInputStream extends GZIPInputStream {
+        private final String url;
+        private final CountingInputStream compressed;
+        private long originalSize = 0;
+        private boolean reported = false;
+
+        MeasuringGzipInputStream(String url, InputStream in) throws IOException {
+            this(url, new CountingInputStream(in));
+        }
+
+        private MeasuringGzipInputStream(String url, CountingInputStream in) throws IOException {
+            super(in);
+            this.url = url;
+            this.compressed = in;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) originalSize += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (reported) return;
+            reported = true;
+
+            Listener compressionListener = listener;
+            if (compressionListener != null) {
+                compressionListener.onResponseDecompressed(url, compressed.count, originalSize);
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    /**
+     * 최소 크기까지는 그대로 보관하다가, 넘는 순간부터 gzip으로 압축해서 보관하는 OutputStream.
+     */
+    private static class ThresholdGzipOutputStream extends OutputStream {
+        private final int threshold;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private GZIPOutputStream gzip;
+        private long originalSize = 0;
+
+        ThresholdGzipOutputStream(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            originalSize += count;
+            if (gzip == null && originalSize > threshold) {
+                // 최소 크기를 넘었다. 지금까지 쓴 내용부터 압축한다.
+                byte[] written = buffer.toByteArray();
+                buffer = new ByteArrayOutputStream();
+                gzip = new GZIPOutputStream(buffer, 8192);
+                gzip.write(written);
+            }
+            if (gzip != null) gzip.write(bytes, offset, count);
+            else buffer.write(bytes, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (gzip != null) gzip.close();
+        }
+
+        boolean isCompressed() {
+            return gzip != null;
+        }
+
+        long getOriginalSize() {
+            return originalSize;
+        }
+
+        long getSize() {
+            return buffer.size();
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+    }
+}
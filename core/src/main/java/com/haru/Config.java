@@ -81,7 +81,9 @@ public class Config {
         } else {
             // load configurations from server
             // and cache it to local using offline entity store.
-            Task<HaruResponse> loadTask = new HaruRequest("/config").executeAsync();
+            Task<HaruResponse> loadTask = new HaruRequest("/config")
+                    .priority(Task.Priority.BACKGROUND)
+                    .executeAsync();
 
             loadTask.continueWith(new Continuation<HaruResponse, Void>() {
                 @Override
@@ -5,6 +5,8 @@ import android.os.Parcelable;
 
 import com.haru.callback.DeleteCallback;
 import com.haru.callback.SaveCallback;
+import com.haru.json.JsonDecoder;
+import com.haru.json.JsonReader;
 import com.haru.task.Continuation;
 import com.haru.task.Task;
 import com.haru.write.*;
@@ -44,6 +46,9 @@ public class Entity implements JsonEncodable, Parcelable {
     protected Date createdAt;
     protected Date updatedAt;
 
+    // 오프라인 상태에서 생성되어 아직 서버 ID가 없는 Entity를 구분하기 위한 로컬 ID이다.
+    String localId;
+
     private static HashMap<String, Class<? extends Entity>> subclassedEntityRepository
             = new HashMap<String, Class<? extends Entity>>();
 
@@ -235,12 +240,95 @@ public class Entity implements JsonEncodable, Parcelable {
 
 
     /**
-     * Entity를 로컬 데이터스토어로부터 가져온다.
+     * Entity를 로컬 데이터스토어로부터 가져온다. 앞서 요청된 로컬 쓰기들이 끝날 때까지 기다리므로,
+     * UI 스레드에서는 {@link #retrieveFromLocalInBackground(String, String)}를 사용한다.
      * @param entityId 가져오려는 엔티티의 ID
      * @return 해당 엔티티
      */
     public static Entity retrieveFromLocal(String className, String entityId) {
-        return LocalEntityStore.retriveEntity(className, entityId);
+        return LocalEntityStore.await(retrieveFromLocalInBackground(className, entityId));
+    }
+
+    /**
+     * Entity를 로컬 데이터스토어로부터 백그라운드에서 가져온다.
+     * @param entityId 가져오려는 엔티티의 ID
+     * @return 해당 엔티티를 결과로 갖는 Task (없을 시 null)
+     */
+    public static Task<Entity> retrieveFromLocalInBackground(String className, String entityId) {
+        return LocalEntityStore.retrieveEntityInBackground(className, entityId);
+    }
+
+    /**
+     * 로컬 데이터스토어에서 해당 필드로 검색할 수 있도록 인덱스를 추가한다.
+     * 인덱스된 필드에 대한 로컬 쿼리 ({@link com.haru.Query#findAllFromLocal})는 모든 Entity를 읽지 않고 바로 찾는다.
+     * 추가된 인덱스는 저장되므로, 앱을 다시 시작할 때 다시 추가하지 않아도 된다.
+     *
+     * @param className 클래스 이름
+     * @param field 인덱스할 필드 이름 (중첩된 필드는 "a.b")
+     */
+    public static void addLocalIndex(String className, String field) {
+        if (className == null || field == null) {
+            throw new IllegalArgumentException("className and field cannot be null.");
+        }
+        LocalEntityStore.addIndexInBackground(className, field);
+    }
+
+    /**
+     * 로컬 데이터스토어에서 해당 필드로 검색할 수 있도록 인덱스를 추가한다.
+     * @param entityClass 서브클래스
+     * @param field 인덱스할 필드 이름
+     */
+    public static void addLocalIndex(Class<? extends Entity> entityClass, String field) {
+        addLocalIndex(getClassName(entityClass), field);
+    }
+
+    /**
+     * 로컬 데이터스토어의 필드 인덱스를 제거한다.
+     * @param className 클래스 이름
+     * @param field 필드 이름
+     */
+    public static void removeLocalIndex(String className, String field) {
+        LocalEntityStore.removeIndexInBackground(className, field);
+    }
+
+    /**
+     * 로컬 데이터스토어의 전체 용량을 설정한다. 넘으면 가장 오래 접근되지 않은 Entity부터 백그라운드에서 삭제된다.
+     * 현재 유저와 현재 설치 정보, 서버에 보내지 않은 변경 사항이 있는 Entity는 삭제되지 않는다.
+     *
+     * @param maxBytes 최대 용량 (byte, 0 이하일 시 제한하지 않음). 기본값은 16MB이다.
+     */
+    public static void setLocalStoreLimit(long maxBytes) {
+        LocalEviction.setMaxBytes(maxBytes);
+        LocalEntityStore.scheduleEviction();
+    }
+
+    /**
+     * 로컬 데이터스토어에서 한 클래스가 차지할 수 있는 용량을 설정한다.
+     * @param className 클래스 이름
+     * @param maxBytes 최대 용량 (byte, 0 이하일 시 제한하지 않음)
+     */
+    public static void setLocalStoreLimit(String className, long maxBytes) {
+        if (className == null) {
+            throw new IllegalArgumentException("className cannot be null.");
+        }
+        LocalEviction.setMaxBytes(className, maxBytes);
+        LocalEntityStore.scheduleEviction();
+    }
+
+    /**
+     * 해당 태그로 로컬 데이터스토어에 저장된 Entity의 수명을 설정한다.
+     * 수명보다 오래 저장되거나 읽히지 않은 Entity는 백그라운드에서 삭제된다.
+     * 설정은 저장되지 않으므로, 앱을 시작할 때마다 설정한다.
+     *
+     * @param tag 태그 이름
+     * @param timeToLive 수명 (ms, 0 이하일 시 제한하지 않음)
+     */
+    public static void setLocalTagTimeToLive(String tag, long timeToLive) {
+        if (tag == null) {
+            throw new IllegalArgumentException("tag cannot be null.");
+        }
+        LocalEviction.setTimeToLive(tag, timeToLive);
+        LocalEntityStore.scheduleEviction();
     }
 
 
@@ -398,7 +486,35 @@ public class Entity implements JsonEncodable, Parcelable {
      * Saves entity into the local datastore.
      */
     public void saveToLocal() {
-        LocalEntityStore.saveEntity(this, null);
+        saveToLocalInBackground();
+    }
+
+    /**
+     * Entity를 백그라운드에서 로컬 데이터 스토어에 저장한다.
+     * 저장은 현재 상태를 기준으로 하며, 짧은 시간에 들어온 저장들은 하나의 트랜잭션으로 묶인다.
+     * @return 저장이 끝나면 완료되는 Task
+     */
+    public Task<Void> saveToLocalInBackground() {
+        return LocalEntityStore.saveEntityInBackground(this, null);
+    }
+
+    /**
+     * 여러 Entity를 하나의 트랜잭션으로 로컬 데이터스토어에 저장한다.
+     * 하나씩 saveToLocal을 부르는 것보다 훨씬 빠르며, 실패할 시 아무것도 저장되지 않는다.
+     * @param entities 저장할 엔티티들
+     * @return 저장이 끝나면 완료되는 Task
+     */
+    public static Task<Void> saveAllToLocal(Collection<? extends Entity> entities) {
+        return LocalEntityStore.saveAllInBackground(entities, null);
+    }
+
+    /**
+     * 여러 Entity를 하나의 트랜잭션으로 로컬 데이터스토어에서 삭제한다.
+     * @param entities 삭제할 엔티티들
+     * @return 삭제가 끝나면 완료되는 Task
+     */
+    public static Task<Void> deleteAllFromLocal(Collection<? extends Entity> entities) {
+        return LocalEntityStore.deleteAllInBackground(entities);
     }
 
     /**
@@ -422,11 +538,33 @@ public class Entity implements JsonEncodable, Parcelable {
         }
 
         synchronized (this.lock) {
+            // 아직 보내지 못한 변경 사항이 있다면, 순서를 지키기 위해 그 뒤에 쌓는다.
+            if (OfflineQueue.hasQueuedMutations(this)) {
+                return OfflineQueue.enqueue(this, callback);
+            }
+            if (WriteBatcher.isEnabled() && !isInstallationCreation()) {
+                return WriteBatcher.enqueue(this, callback);
+            }
             if (isNewEntity()) return createEntity(callback);
             return updateEntity(callback);
         }
     }
 
+    /**
+     * Installation 생성은 device token 중복 제거를 위해 별도의 엔드포인트를 사용한다.
+     */
+    private boolean isInstallationCreation() {
+        return isNewEntity() && Installation.CLASS_NAME.equals(className);
+    }
+
+    /**
+     * Installation의 저장은 사용자가 기다리지 않으므로 백그라운드 우선순위로 보낸다.
+     */
+    private Task.Priority getRequestPriority() {
+        return Installation.CLASS_NAME.equals(className)
+                ? Task.Priority.BACKGROUND : Task.Priority.INTERACTIVE;
+    }
+
     /**
      * Entity를 생성한다.
      */
@@ -436,11 +574,12 @@ public class Entity implements JsonEncodable, Parcelable {
             Haru.logD(" Installations --> %s", className);
             // device token 중복 제거하기 위해서..
             creationTask = new HaruRequest("/installations")
-                    .post((JSONObject) this.toJson())
+                    .post(new Param(getAll()))
+                    .priority(Task.Priority.BACKGROUND)
                     .executeAsync();
         } else {
             creationTask = new HaruRequest("/classes/" + className)
-                    .post((JSONObject) this.toJson())
+                    .post(new Param(getAll()))
                     .executeAsync();
         }
 
@@ -449,6 +588,14 @@ public class Entity implements JsonEncodable, Parcelable {
             public Entity then(Task<HaruResponse> task) throws Exception {
 
                 if (task.isFaulted()) {
+                    // Offline? save changes to the queue and replay later.
+                    // Installation 생성은 큐에 넣지 않는다. 서버 ID가 없어 현재 설치 정보로 저장되지 못하므로,
+                    // 큐에서 생성되더라도 다음 실행에서 또 생성된다. 대신 다음 실행에서 다시 생성을 시도한다.
+                    if (!isInstallationCreation() && OfflineQueue.isOfflineError(task.getError())) {
+                        OfflineQueue.enqueue(Entity.this, callback);
+                        return Entity.this;
+                    }
+
                     // Exception
                     callback.done(new HaruException("Request error", task.getError()));
                     throw task.getError();
@@ -461,20 +608,7 @@ public class Entity implements JsonEncodable, Parcelable {
                     return Entity.this;
                 }
 
-                // Clear queues and merge changedData
-                copyMap(changedData, entityData);
-                discardChanges();
-
-                // Fetch some information
-                entityId = (String) response.getJsonBody().get("_id");
-                createdAt = parseDate(response.getJsonBody().getString("createdAt"));
-                updatedAt = parseDate(response.getJsonBody().getString("updatedAt"));
-
-                entityData.put("createdAt", createdAt.getTime());
-                entityData.put("updatedAt", updatedAt.getTime());
-
-                operationSet = new OperationSet(className, entityId);
-
+                applyCreateResult(response.getJsonBody());
                 callback.done(null);
 
                 return Entity.this;
@@ -487,24 +621,25 @@ public class Entity implements JsonEncodable, Parcelable {
      */
     private Task updateEntity(final SaveCallback callback) {
 
-        // make request body
-        JSONArray operations = (JSONArray) Haru.encode(operationSet);
-        JSONObject request = new JSONObject();
-        try {
-            request.put("requests", operations);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        // make request body. operations are written directly to the request stream.
+        Param request = new Param();
+        request.put("requests", operationSet.copy());
 
         Task<HaruResponse> task = new HaruRequest("/batch")
                 .post(request)
+                .priority(getRequestPriority())
                 .executeAsync();
 
         return task.continueWith(new Continuation<HaruResponse, Entity>() {
             @Override
             public Entity then(Task<HaruResponse> task) throws Exception {
                 if (task.isFaulted()) {
+                    // Offline? save changes to the queue and replay later.
+                    if (OfflineQueue.isOfflineError(task.getError())) {
+                        OfflineQueue.enqueue(Entity.this, callback);
+                        return Entity.this;
+                    }
+
                     // Exception
                     callback.done(new HaruException("Request error", task.getError()));
                     throw task.getError();
@@ -517,30 +652,101 @@ public class Entity implements JsonEncodable, Parcelable {
                     return Entity.this;
                 }
 
-                // Clear queues and merge changedData
-                copyMap(changedData, entityData);
-                discardChanges();
-
-                // Find updateAt from batch result.
-                String updatedAtFound = null;
-                JSONArray array = response.getJsonBody().getJSONArray("results");
-                for (int i=0; i<array.length(); i++) {
-                    if (array.getJSONObject(i).has("updatedAt")) {
-                        updatedAtFound = getString("updatedAt");
-                        break;
-                    }
-                }
-
-                // Fetch some information
-                updatedAt = updatedAtFound != null ? parseDate(updatedAtFound) : updatedAt;
-                entityData.put("updatedAt", updatedAt.getTime());
-
+                applyUpdateResults(response.getJsonBody().getJSONArray("results"));
                 if (callback != null) callback.done(null);
                 return Entity.this;
             }
         });
     }
 
+    /**
+     * 생성 요청의 본문을 만든다.
+     * @return 엔티티 전체를 담은 JSON
+     */
+    JSONObject encodeCreateRequest() {
+        return (JSONObject) this.toJson();
+    }
+
+    /**
+     * 갱신 요청 (/batch의 requests)을 만든다.
+     * @return 아직 저장되지 않은 Operation들의 JSON 배열
+     */
+    JSONArray encodeUpdateRequests() {
+        return (JSONArray) Haru.encode(operationSet);
+    }
+
+    /**
+     * 생성 요청의 결과를 Entity에 반영한다.
+     * @param result 서버가 반환한 생성 결과 (_id, createdAt, updatedAt)
+     */
+    void applyCreateResult(JSONObject result) throws JSONException {
+        // Clear queues and merge changedData
+        copyMap(changedData, entityData);
+        discardChanges();
+
+        // Fetch some information
+        entityId = result.getString("_id");
+        createdAt = parseDate(result.getString("createdAt"));
+        updatedAt = parseDate(result.getString("updatedAt"));
+
+        entityData.put("createdAt", createdAt.getTime());
+        entityData.put("updatedAt", updatedAt.getTime());
+
+        operationSet = new OperationSet(className, entityId);
+        EntityIdentityMap.merge(this);
+    }
+
+    /**
+     * 서버에 보내지 못한 변경 사항을 로컬 데이터에 반영하고, 보낼 Operation들을 비운다.
+     * 변경 사항은 {@link com.haru.OfflineQueue}에 보관된다.
+     */
+    void commitChangesLocally() {
+        copyMap(changedData, entityData);
+        discardChanges();
+    }
+
+    /**
+     * 오프라인에서 생성되었던 Entity가 서버에 저장되었을 때, 서버 ID와 생성 시각을 반영한다.
+     * 그 사이에 생긴 변경 사항들은 보존된다.
+     * @param result 서버가 반환한 생성 결과 (_id, createdAt, updatedAt)
+     */
+    void applyReplayedCreation(JSONObject result) throws JSONException {
+        entityId = result.getString("_id");
+        createdAt = parseDate(result.getString("createdAt"));
+        updatedAt = parseDate(result.getString("updatedAt"));
+
+        entityData.put("createdAt", createdAt.getTime());
+        entityData.put("updatedAt", updatedAt.getTime());
+
+        OperationSet pendingOperations = operationSet;
+        operationSet = new OperationSet(className, entityId);
+        operationSet.putAll(pendingOperations);
+        EntityIdentityMap.merge(this);
+    }
+
+    /**
+     * 갱신 요청 (/batch)의 결과를 Entity에 반영한다.
+     * @param results 이 Entity의 Operation들에 해당하는 batch 결과들
+     */
+    void applyUpdateResults(JSONArray results) throws JSONException {
+        // Clear queues and merge changedData
+        copyMap(changedData, entityData);
+        discardChanges();
+
+        // Find updateAt from batch result.
+        String updatedAtFound = null;
+        for (int i=0; i<results.length(); i++) {
+            if (results.getJSONObject(i).has("updatedAt")) {
+                updatedAtFound = results.getJSONObject(i).getString("updatedAt");
+                break;
+            }
+        }
+
+        // Fetch some information
+        updatedAt = updatedAtFound != null ? parseDate(updatedAtFound) : updatedAt;
+        if (updatedAt != null) entityData.put("updatedAt", updatedAt.getTime());
+    }
+
     /**
      * Entity의 데이터들을 반환한다.
      * Returns all data of the Entity.
@@ -577,6 +783,7 @@ public class Entity implements JsonEncodable, Parcelable {
 
                     // cleaning
                     discardChanges();
+                    EntityIdentityMap.remove(className, entityId);
                     entityId = null;
                     isDeleted = true;
 
@@ -620,12 +827,25 @@ public class Entity implements JsonEncodable, Parcelable {
                 // Exclude duplicated _id from entityData
                 entityData.remove("_id");
 
-                return Entity.this;
+                // 같은 엔티티의 다른 인스턴스가 있다면 그 인스턴스도 갱신하고 반환한다.
+                return EntityIdentityMap.merge(Entity.this);
             }
         });
     }
 
 
+    /**
+     * 같은 엔티티의 더 최신 데이터를 반영한다. 아직 저장하지 않은 변경 사항은 유지된다.
+     * @param fresh 서버나 로컬에서 새로 받은 엔티티
+     */
+    void mergeFrom(Entity fresh) {
+        synchronized (this.lock) {
+            entityData = new HashMap<String, Object>(fresh.entityData);
+            createdAt = fresh.createdAt;
+            updatedAt = fresh.updatedAt;
+        }
+    }
+
     private static Date parseDate(String text) {
         if (text == null) return null;
         return new Date(Long.valueOf(text));
@@ -678,7 +898,36 @@ public class Entity implements JsonEncodable, Parcelable {
         entity.entityData = Haru.convertJsonToMap(json);
         entity.createdAt = parseDate(json.getString("createdAt"));
         entity.updatedAt = parseDate(json.getString("updatedAt"));
-        return entity;
+        return EntityIdentityMap.merge(entity);
+    }
+
+    /**
+     * 스트리밍으로 읽고 있는 JSON 객체를 Entity로 변환한다.
+     * 객체 전체를 JSONObject로 만들지 않고 바로 Entity의 데이터로 읽는다.
+     *
+     * @param reader 객체의 시작 위치에 있는 JsonReader
+     * @return 변환된 Entity
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Entity> T fromJson(Class<T> classObject,
+                                         String className,
+                                         JsonReader reader) throws Exception {
+        T entity;
+        if (classObject == Entity.class) {
+            entity = (T) new Entity(className);
+        } else entity = classObject.newInstance();
+
+        HashMap<String, Object> data = JsonDecoder.readMap(reader);
+        if (data.get("_id") == null) {
+            throw new JSONException("No value for _id");
+        }
+
+        entity.className = className;
+        entity.setEntityId(String.valueOf(data.get("_id")));
+        entity.entityData = data;
+        entity.createdAt = parseDate(data.containsKey("createdAt") ? String.valueOf(data.get("createdAt")) : null);
+        entity.updatedAt = parseDate(data.containsKey("updatedAt") ? String.valueOf(data.get("updatedAt")) : null);
+        return EntityIdentityMap.merge(entity);
     }
 
     /**
@@ -702,7 +951,31 @@ public class Entity implements JsonEncodable, Parcelable {
         entity.entityData = Haru.convertJsonToMap(json);
         entity.createdAt = parseDate(json.getString("createdAt"));
         entity.updatedAt = parseDate(json.getString("updatedAt"));
-        return entity;
+        return EntityIdentityMap.merge(entity);
+    }
+
+    /**
+     * 로컬 데이터스토어에서 읽은 데이터를 Entity로 변환한다.
+     * @param data 디코딩된 Entity의 데이터 ({@link com.haru.LocalRecord})
+     * @param entityId 해당 엔티티의 ID
+     * @return 변환된 Entity
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Entity> T fromLocalData(Class<T> classObject,
+                                              String className,
+                                              String entityId,
+                                              HashMap<String, Object> data) throws Exception {
+        T entity;
+        if (classObject == Entity.class) {
+            entity = (T) new Entity(className);
+        } else entity = classObject.newInstance();
+
+        entity.className = className;
+        entity.setEntityId(entityId);
+        entity.entityData = data;
+        entity.createdAt = parseDate(data.containsKey("createdAt") ? String.valueOf(data.get("createdAt")) : null);
+        entity.updatedAt = parseDate(data.containsKey("updatedAt") ? String.valueOf(data.get("updatedAt")) : null);
+        return EntityIdentityMap.merge(entity);
     }
 
     /**
@@ -0,0 +1,178 @@
+package com.haru;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 같은 서버 객체에 대해 하나의 {@link com.haru.Entity} 인스턴스만 유지하는 Identity Map이다.
+ * 클래스 이름과 엔티티 ID로 구분한다.
+ *
+ * 쿼리나 fetch로 받은 데이터는 이미 있는 인스턴스에 합쳐지므로, 여러 화면에서 같은 객체를 보고 있어도
+ * 모두 같은 데이터를 보게 된다. 받은 데이터가 가지고 있는 것보다 오래되었다면 (updatedAt) 무시한다.
+ *
+ * 인스턴스는 약한 참조로 보관되어 앱에서 쓰지 않으면 GC된다. 최근에 쓰인 엔티티들은 일정 개수만큼
+ * 강한 참조로도 보관되어, 화면을 다시 열었을 때 같은 인스턴스를 돌려받는다 (LRU).
+ */
+public class EntityIdentityMap {
+
+    public static final int DEFAULT_MAX_SIZE = 128;
+
+    private static final Object lock = new Object();
+
+    private static int maxSize = DEFAULT_MAX_SIZE;
+
+    // 살아있는 모든 인스턴스
+    private static final HashMap<String, EntityReference> references = new HashMap<String, EntityReference>();
+    private static final ReferenceQueue<Entity> collected = new ReferenceQueue<Entity>();
+
+    // 최근에 쓰인 인스턴스들. 접근 순서대로 정렬된다.
+    private static final LinkedHashMap<String, Entity> recentlyUsed =
+            new LinkedHashMap<String, Entity>(32, 0.75f, true);
+
+    private static class EntityReference extends WeakReference<Entity> {
+        final String key;
+
+        EntityReference(String key, Entity entity) {
+            super(entity, collected);
+            this.key = key;
+        }
+    }
+
+    /**
+     * 강한 참조로 보관할 최근 엔티티의 수를 설정한다. 기본값은 128개이다.
+     * 0으로 설정하면 앱에서 참조하고 있는 인스턴스만 유지된다.
+     * @param entities 엔티티 수
+     */
+    public static void setMaxSize(int entities) {
+        if (entities < 0) {
+            throw new IllegalArgumentException("Size must be positive number!");
+        }
+        synchronized (lock) {
+            maxSize = entities;
+            trimToSize();
+        }
+    }
+
+    /**
+     * 보관된 모든 인스턴스를 잊는다. 이후에 받는 데이터는 새로운 인스턴스로 만들어진다.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            references.clear();
+            recentlyUsed.clear();
+        }
+    }
+
+    /**
+     * @return 보관중인 인스턴스의 수 (GC된 것은 제외)
+     */
+    public static int size() {
+        synchronized (lock) {
+            expungeCollected();
+            return references.size();
+        }
+    }
+
+    /**
+     * 보관된 인스턴스를 가져온다.
+     * @return 인스턴스 (없을 시 null)
+     */
+    static Entity get(String className, String entityId) {
+        if (className == null || entityId == null) return null;
+
+        String key = keyOf(className, entityId);
+        synchronized (lock) {
+            expungeCollected();
+            EntityReference reference = references.get(key);
+            Entity entity = reference != null ? reference.get() : null;
+            if (entity != null) touch(key, entity);
+            return entity;
+        }
+    }
+
+    /**
+     * 새로 받은 엔티티를 보관된 인스턴스와 합친다.
+     * 보관된 인스턴스가 있다면, 받은 데이터가 더 최신일 때 그 인스턴스에 반영하고 그 인스턴스를 반환한다.
+     * 없다면 받은 엔티티를 보관하고 그대로 반환한다.
+     *
+     * @param fresh 서버나 로컬에서 방금 만든 엔티티
+     * @return 하나뿐인 인스턴스
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Entity> T merge(T fresh) {
+        if (fresh.entityId == null) return fresh;
+
+        String key = keyOf(fresh.className, fresh.entityId);
+        synchronized (lock) {
+            expungeCollected();
+            EntityReference reference = references.get(key);
+            Entity existing = reference != null ? reference.get() : null;
+
+            // 서브클래스로 받았다면 더 구체적인 타입의 인스턴스로 바꾼다.
+            if (existing == null || existing == fresh || !fresh.getClass().isInstance(existing)) {
+                put(key, fresh);
+                return fresh;
+            }
+
+            if (isNewer(fresh.updatedAt, existing.updatedAt)) existing.mergeFrom(fresh);
+            touch(key, existing);
+            return (T) existing;
+        }
+    }
+
+    /**
+     * 삭제된 엔티티를 잊는다.
+     */
+    static void remove(String className, String entityId) {
+        if (className == null || entityId == null) return;
+
+        String key = keyOf(className, entityId);
+        synchronized (lock) {
+            references.remove(key);
+            recentlyUsed.remove(key);
+        }
+    }
+
+    private static boolean isNewer(Date fresh, Date existing) {
+        if (existing == null) return true;
+        return fresh != null && !fresh.before(existing);
+    }
+
+    private static void put(String key, Entity entity) {
+        references.put(key, new EntityReference(key, entity));
+        touch(key, entity);
+    }
+
+    private static void touch(String key, Entity entity) {
+        if (maxSize == 0) return;
+        recentlyUsed.put(key, entity);
+        trimToSize();
+    }
+
+    private static void trimToSize() {
+        Iterator<Map.Entry<String, Entity>> iter = recentlyUsed.entrySet().iterator();
+        while (recentlyUsed.size() > maxSize && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * GC된 인스턴스의 항목을 지운다. 같은 키로 새로 보관된 인스턴스는 지우지 않는다.
+     */
+    private static void expungeCollected() {
+        EntityReference reference;
+        while ((reference = (EntityReference) collected.poll()) != null) {
+            if (references.get(reference.key) == reference) references.remove(reference.key);
+        }
+    }
+
+    private static String keyOf(String className, String entityId) {
+        return className + "/" + entityId;
+    }
+}
@@ -0,0 +1,255 @@
+package com.haru;
+
+import android.content.Context;
+
+import com.haru.task.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 다운로드한 {@link com.haru.HaruFile}을 디스크에 저장하는 캐시이다.
+ * 파일 ID (없다면 URL)별로 저장되며, 최대 크기를 넘으면 가장 오래 사용되지 않은 파일부터 지운다 (LRU).
+ *
+ * 다운로드 중인 파일은 별도의 디렉토리에 저장되어, 다운로드가 중단되면 다음 다운로드 때 이어서 받는다.
+ */
+public class FileCache {
+
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    private static final String CACHE_DIR_NAME = "haru-files";
+    private static final String PARTIAL_DIR_NAME = "partial";
+
+    private static final Object lock = new Object();
+
+    private static File cacheDir, partialDir;
+    private static long maxSize = DEFAULT_MAX_SIZE;
+    private static long currentSize = 0;
+
+    // 파일 이름 → 크기. 접근 순서대로 정렬된다.
+    private static final LinkedHashMap<String, Long> entries =
+            new LinkedHashMap<String, Long>(32, 0.75f, true);
+
+    // 디스크의 캐시 목록을 다 읽었는지 여부. 다 읽기 전에는 캐시를 사용하는 쪽이 기다린다.
+    private static boolean isLoaded = false;
+
+    static void initialize(Context context) {
+        synchronized (lock) {
+            cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+            partialDir = new File(cacheDir, PARTIAL_DIR_NAME);
+            isLoaded = false;
+        }
+
+        // 파일 목록을 읽어 정렬하고 지우는 작업은 Haru.init을 부른 UI 스레드가 아닌 백그라운드에서 한다.
+        Task.callInBackground(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                load();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 마지막으로 사용된 순서대로 LRU 목록을 복원한다.
+     */
+    private static void load() {
+        File dir, partial;
+        synchronized (lock) {
+            dir = cacheDir;
+            partial = partialDir;
+        }
+
+        File[] files = null;
+        boolean isAvailable = partial.exists() || partial.mkdirs();
+        if (isAvailable) {
+            files = dir.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        long diff = lhs.lastModified() - rhs.lastModified();
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+            }
+        } else Haru.logE("FileCache : failed to create cache directory");
+
+        synchronized (lock) {
+            if (!isAvailable) {
+                cacheDir = partialDir = null;
+
+            } else if (files != null) {
+                entries.clear();
+                currentSize = 0;
+                for (File file : files) {
+                    if (!file.isFile()) continue;
+                    entries.put(file.getName(), file.length());
+                    currentSize += file.length();
+                }
+                trimToSize();
+            }
+            isLoaded = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 캐시 목록을 다 읽을 때까지 기다린다. lock 안에서 호출된다.
+     * @return 캐시를 사용할 수 있는지 여부
+     */
+    private static boolean awaitLoaded() {
+        while (cacheDir != null && !isLoaded) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return cacheDir != null;
+    }
+
+    /**
+     * 캐시의 최대 크기를 설정한다. 기본값은 32MB이다.
+     * @param bytes 최대 크기 (bytes)
+     */
+    public static void setMaxSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Cache size must be positive number!");
+        }
+        synchronized (lock) {
+            maxSize = bytes;
+            // 목록을 읽는 중이라면 다 읽은 후에 정리된다.
+            if (isLoaded) trimToSize();
+        }
+    }
+
+    /**
+     * 현재 캐시가 사용중인 크기를 반환한다. 다운로드 중인 파일은 포함하지 않는다.
+     * @return 크기 (bytes)
+     */
+    public static long getSize() {
+        synchronized (lock) {
+            return currentSize;
+        }
+    }
+
+    /**
+     * 캐시된 모든 파일과 다운로드 중이던 파일을 지운다.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            if (!awaitLoaded()) return;
+            for (String name : entries.keySet()) {
+                new File(cacheDir, name).delete();
+            }
+            entries.clear();
+            currentSize = 0;
+
+            File[] partials = partialDir.listFiles();
+            if (partials != null) {
+                for (File partial : partials) partial.delete();
+            }
+        }
+    }
+
+    static boolean isAvailable() {
+        return cacheDir != null;
+    }
+
+    /**
+     * 캐시된 파일을 가져온다.
+     * @param key 파일 ID 또는 URL
+     * @return 캐시된 파일 (없을 시 null)
+     */
+    static File get(String key) {
+        synchronized (lock) {
+            if (!awaitLoaded()) return null;
+
+            String name = Haru.cacheFileNameOf(key);
+            if (entries.get(name) == null) return null;
+
+            File file = new File(cacheDir, name);
+            if (!file.exists()) {
+                remove(name);
+                return null;
+            }
+
+            // LRU 순서를 위해 마지막 사용 시각을 기록한다.
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+    }
+
+    /**
+     * 다운로드 중인 파일의 경로를 반환한다. 이전에 중단된 다운로드가 있다면 그 파일이 남아있다.
+     * @param key 파일 ID 또는 URL
+     */
+    static File getPartialFile(String key) {
+        synchronized (lock) {
+            if (!awaitLoaded()) return null;
+            return new File(partialDir, Haru.cacheFileNameOf(key));
+        }
+    }
+
+    /**
+     * 다운로드가 끝난 파일을 캐시로 옮긴다.
+     * @param key 파일 ID 또는 URL
+     * @param partial {@link #getPartialFile(String)}로 받은, 다운로드가 끝난 파일
+     * @return 캐시된 파일
+     */
+    static File commit(String key, File partial) throws IOException {
+        synchronized (lock) {
+            if (!awaitLoaded()) {
+                throw new IOException("File cache is not available.");
+            }
+
+            String name = Haru.cacheFileNameOf(key);
+            File file = new File(cacheDir, name);
+            if (!partial.renameTo(file)) {
+                throw new IOException("Failed to move downloaded file to the cache.");
+            }
+
+            Long previousSize = entries.put(name, file.length());
+            if (previousSize != null) currentSize -= previousSize;
+            currentSize += file.length();
+
+            // 방금 받은 파일은 최대 크기보다 크더라도 지우지 않는다.
+            trimToSize(name);
+            return file;
+        }
+    }
+
+    private static void trimToSize() {
+        trimToSize(null);
+    }
+
+    /**
+     * 최대 크기를 넘지 않을 때까지 가장 오래 사용되지 않은 파일부터 지운다.
+     * @param keep 지우지 않을 파일 이름 (null 가능)
+     */
+    private static void trimToSize(String keep) {
+        Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+        while (currentSize > maxSize && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            if (eldest.getKey().equals(keep)) continue;
+
+            new File(cacheDir, eldest.getKey()).delete();
+            currentSize -= eldest.getValue();
+            iter.remove();
+        }
+    }
+
+    private static void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null) currentSize -= size;
+        new File(cacheDir, name).delete();
+    }
+}
@@ -0,0 +1,203 @@
+package com.haru;
+
+import com.haru.mime.ProgressOutputStream;
+import com.haru.task.Continuation;
+import com.haru.task.Task;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+
+/**
+ * 파일을 디스크로 바로 스트리밍해서 받아 {@link com.haru.FileCache}에 저장한다.
+ *
+ * 받는 중인 파일은 FileCache의 임시 디렉토리에 남으므로, 다운로드가 중단되면 다음 다운로드 때
+ * Range 요청으로 받지 못한 부분부터 이어서 받는다. 서버에 올라간 파일은 바뀌지 않으므로 이어받은 파일은 원본과 같다.
+ */
+class FileDownload {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+
+    // 진행중인 다운로드들. 같은 파일은 하나의 다운로드를 공유한다.
+    private static final HashMap<String, Task<File>> inFlightDownloads = new HashMap<String, Task<File>>();
+
+    /**
+     * 캐시된 파일이 있다면 바로 반환하고, 없다면 다운로드한다.
+     * @param key 캐시 키 (파일 ID 또는 URL)
+     * @param url 파일 URL
+     * @param progressListener 진행 상황을 받을 리스너 (null 가능). 이미 진행중인 다운로드를 공유하면 호출되지 않는다.
+     * @return 캐시된 파일
+     */
+    static Task<File> download(final String key,
+                               final String url,
+                               final ProgressOutputStream.ProgressListener progressListener) {
+        synchronized (inFlightDownloads) {
+            Task<File> sharedTask = inFlightDownloads.get(key);
+            if (sharedTask != null) return sharedTask;
+
+            // 캐시 확인도 디스크를 읽으므로 백그라운드에서 한다.
+            sharedTask = Task.callInBackground(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    File cached = FileCache.get(key);
+                    if (cached != null) {
+                        Haru.logD("FileDownload : %s is cached", url);
+                        return cached;
+                    }
+                    return fetch(key, url, progressListener);
+                }
+            });
+            inFlightDownloads.put(key, sharedTask);
+
+            // 다운로드가 끝나면 진행중 목록에서 제거한다.
+            sharedTask.continueWith(new Continuation<File, Void>() {
+                @Override
+                public Void then(Task<File> task) throws Exception {
+                    synchronized (inFlightDownloads) {
+                        inFlightDownloads.remove(key);
+                    }
+                    return null;
+                }
+            });
+            return sharedTask;
+        }
+    }
+
+    private static File fetch(String key,
+                              String url,
+                              ProgressOutputStream.ProgressListener progressListener) throws IOException {
+        File partial = FileCache.getPartialFile(key);
+        if (partial == null) {
+            throw new IOException("File cache is not available.");
+        }
+
+        long offset = partial.exists() ? partial.length() : 0;
+        HttpResponse response = execute(url, offset);
+        int statusCode = response.getStatusLine().getStatusCode();
+
+        if (statusCode == 416) {
+            // 받아둔 부분이 서버의 파일보다 크다. 처음부터 다시 받는다.
+            consume(response);
+            partial.delete();
+            offset = 0;
+            response = execute(url, 0);
+            statusCode = response.getStatusLine().getStatusCode();
+        }
+
+        if (statusCode == 206 && offset > 0 && getRangeStart(response) != offset) {
+            // 요청한 위치가 아닌 부분을 받았다. (프록시, CDN 등)
+            // 이어붙이면 파일이 손상된 채로 캐시되므로 처음부터 다시 받는다.
+            Haru.logE("FileDownload : unexpected Content-Range for %s, restarting", url);
+            consume(response);
+            partial.delete();
+            offset = 0;
+            response = execute(url, 0);
+            statusCode = response.getStatusLine().getStatusCode();
+        }
+
+        if (statusCode == 206 && getRangeStart(response) != offset) {
+            consume(response);
+            throw new IOException("Unexpected Content-Range from " + url);
+        }
+
+        if (statusCode == 200) {
+            // 서버가 Range를 지원하지 않는다.
+            offset = 0;
+
+        } else if (statusCode != 206) {
+            consume(response);
+            throw new HttpStatusException(statusCode, response.getStatusLine().toString());
+        }
+
+        if (offset > 0) Haru.logD("FileDownload : resuming %s from %d bytes", url, offset);
+
+        HttpEntity entity = response.getEntity();
+        long length = entity.getContentLength();
+        long total = length >= 0 ? offset + length : -1;
+
+        InputStream in = entity.getContent();
+        OutputStream out = new FileOutputStream(partial, offset > 0);
+        long transferred = offset;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                transferred += read;
+                if (progressListener != null) progressListener.progress(total, transferred);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+
+        if (total >= 0 && transferred < total) {
+            // 연결이 중간에 끊겼다. 받은 부분은 남겨두고 다음에 이어서 받는다.
+            throw new IOException("Download interrupted at " + transferred + " of " + total + " bytes");
+        }
+
+        return FileCache.commit(key, partial);
+    }
+
+    /**
+     * offset부터 받도록 요청하고, 리다이렉트를 따라간다.
+     * 공유 HTTP 엔진은 리다이렉트를 직접 따라가지 않는다.
+     */
+    private static HttpResponse execute(String url, long offset) throws IOException {
+        HttpTransport transport = HaruRequest.getTransport();
+        if (transport == null) {
+            throw new IllegalStateException("You need to call Haru.init() before downloading files.");
+        }
+
+        for (int redirects = 0; redirects < MAX_REDIRECTS; redirects++) {
+            HttpGet request = new HttpGet(url);
+            if (offset > 0) request.setHeader("Range", "bytes=" + offset + "-");
+
+            HttpResponse response = transport.execute(request);
+            int statusCode = response.getStatusLine().getStatusCode();
+            Header location = response.getFirstHeader("Location");
+            if (statusCode < 300 || statusCode >= 400 || location == null) {
+                return response;
+            }
+
+            consume(response);
+            url = URI.create(url).resolve(location.getValue()).toString();
+        }
+        throw new IOException("Too many redirects: " + url);
+    }
+
+    /**
+     * Content-Range 헤더 ("bytes start-end/total")의 시작 위치를 반환한다.
+     * @return 시작 위치 (헤더가 없거나 잘못되었을 시 -1)
+     */
+    private static long getRangeStart(HttpResponse response) {
+        Header range = response.getFirstHeader("Content-Range");
+        if (range == null) return -1;
+
+        String value = range.getValue().trim();
+        if (!value.startsWith("bytes ")) return -1;
+
+        int dash = value.indexOf('-');
+        if (dash < 0) return -1;
+        try {
+            return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void consume(HttpResponse response) throws IOException {
+        if (response.getEntity() != null) response.getEntity().consumeContent();
+    }
+}
@@ -4,6 +4,8 @@ import android.content.Context;
 import android.util.Log;
 
 import com.haru.callback.SaveCallback;
+import com.haru.json.JsonDecoder;
+import com.haru.json.JsonReader;
 import com.haru.task.Continuation;
 import com.haru.task.Task;
 
@@ -11,6 +13,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
@@ -49,6 +54,24 @@ public class Haru {
      * @param endpointUrl Plugy를 별도 설치한 경우, 설치된 서버의 Endpoint URL
      */
     public static void init(Context context, String appKey, String sdkKey, String endpointUrl) {
+        Haru.init(context, appKey, sdkKey, endpointUrl, null);
+    }
+
+    /**
+     * Plugy Android SDK를 초기화한다.
+     * 앱이 초기화될 시점에 호출되어야만 한다.
+     *
+     * @param context Application Context
+     * @param appKey Application Key - Plugy.io 대시보드 > 설정에서 확인
+     * @param sdkKey SDK Key - Plugy.io 대시보드 > 설정에서 확인
+     * @param endpointUrl Plugy를 별도 설치한 경우, 설치된 서버의 Endpoint URL (없을 시 null)
+     * @param transport SDK의 모든 HTTP 요청에 사용할 엔진 (null일 시 {@link com.haru.ApacheHttpTransport})
+     */
+    public static void init(Context context,
+                            String appKey,
+                            String sdkKey,
+                            String endpointUrl,
+                            HttpTransport transport) {
         if (context == null) {
             throw new IllegalArgumentException("A context must be given.");
         }
@@ -62,8 +85,7 @@ public class Haru {
         Entity.registerSubclass(Installation.class);
         Entity.registerSubclass(User.class);
 
-        if (endpointUrl != null) HaruRequest.initialize(context, endpointUrl);
-        else HaruRequest.initialize(context);
+        HaruRequest.initialize(context, endpointUrl, transport);
 
         useOfflineDataStoring(context);
         Config.init(context);
@@ -75,6 +97,10 @@ public class Haru {
 
     private static void useOfflineDataStoring(Context context) {
         LocalEntityStore.initialize(context);
+        OfflineQueue.initialize(context);
+
+        // 처음 getCurrentUser를 부를 때 기다리지 않도록 미리 불러온다.
+        User.loadCurrentUserInBackground();
     }
 
     public static String getSdkVersion() {
@@ -124,64 +150,53 @@ public class Haru {
         throw new IllegalArgumentException("The given object " + object.toString() + " is not encodable.");
     }
 
-    private static void convertJsonToMap(JSONObject json, Map<String, Object> outputMap) {
-        Iterator keys = json.keys();
-        while (keys.hasNext()) {
-            String key = (String) keys.next();
-            Object value = null;
-
-            // I know it's very dirty way, but it's the only way
-            // to convert JSON values to actual types.
-            // Try to parse name
-            try {
-                value = json.getInt(key);
-
-            } catch (Exception e) {
-                try {
-                    value = json.getLong(key);
-
-                } catch (JSONException le) {
-                    try {
-                        value = json.getDouble(key);
-
-                    } catch (JSONException ie) {
-                        try {
-                            value = json.getBoolean(key);
-
-                        } catch (JSONException je) {
-                            // or JSONObject?
-                            try {
-                                JSONObject nestedJson = json.getJSONObject(key);
-                                Map<String, Object> nestedMap = new HashMap<String, Object>();
-                                convertJsonToMap(nestedJson, nestedMap);
-                                value = nestedMap;
-
-                            } catch (JSONException jeee) {
-                                try {
-                                    // TODO: Nested array 처리
-                                    value = json.getJSONArray(key);
-
-                                } catch (JSONException jee) {
-                                    try {
-                                        value = json.getString(key);
-
-                                    } catch (JSONException j) {
-                                        throw new RuntimeException("Unknown type!");
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            outputMap.put(key, value);
-        }
+    /**
+     * JSONObject를 Map으로 변환한다. 중첩된 객체는 Map, 배열은 List로 변환된다.
+     * @see com.haru.json.JsonDecoder
+     */
+    public static HashMap<String, Object> convertJsonToMap(JSONObject json) {
+        return JsonDecoder.toMap(json);
     }
 
-    public static HashMap<String, Object> convertJsonToMap(JSONObject json) {
-        HashMap<String, Object> map = new HashMap<String, Object>();
-        convertJsonToMap(json, map);
-        return map;
+    /**
+     * JsonReader로부터 값 하나를 읽어 org.json 타입 (JSONObject, JSONArray, 기본 타입)으로 변환한다.
+     * @param reader 값의 시작 위치에 있는 JsonReader
+     * @return 변환된 값 (null일 시 null)
+     */
+    static Object readJsonValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.put(reader.nextName(), readJsonValue(reader));
+                }
+                reader.endObject();
+                return object;
+
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Object value = readJsonValue(reader);
+                    array.put(value != null ? value : JSONObject.NULL);
+                }
+                reader.endArray();
+                return array;
+
+            case NUMBER:
+                return reader.nextNumber();
+
+            case BOOLEAN:
+                return reader.nextBoolean();
+
+            case NULL:
+                reader.nextNull();
+                return null;
+
+            default:
+                return reader.nextString();
+        }
     }
 
     public static String urlJoin(String ...urlpaths) {
@@ -197,6 +212,27 @@ public class Haru {
         return builder.toString();
     }
 
+    /**
+     * 캐시 키를 파일 이름으로 쓸 수 있도록 MD5 해시 (16진수)로 바꾼다.
+     * @param key 캐시 키 (URL 등)
+     * @return 32자의 파일 이름
+     */
+    static String cacheFileNameOf(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("utf-8"));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : hash) builder.append(String.format("%02x", b));
+            return builder.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static String getAppKey() {
         return mAppKey;
     }
@@ -274,6 +310,7 @@ public class Haru {
         // request to help center server
         Task<HaruResponse> trackPurchaseTask = new HaruRequest("/monetization")
                 .post(param)
+                .priority(Task.Priority.BACKGROUND)
                 .executeAsync();
 
         return trackPurchaseTask.continueWith(new Continuation<HaruResponse, HaruResponse>() {
@@ -10,6 +10,12 @@ public class HaruException extends Exception {
     // 로그인 에러 : 해당 계정이 존재하지 않음
     public static final int NO_SUCH_ACCOUNT = 200;
 
+    // 오프라인 : 변경 사항이 로컬 큐에 저장되었으며, 네트워크가 연결되면 전송된다.
+    public static final int QUEUED_OFFLINE = 100;
+
+    // 캐시 : 쿼리 결과가 캐시되어 있지 않음 (QueryCachePolicy.CACHE_ONLY)
+    public static final int CACHE_MISS = 120;
+
     // 기타 에러 (서버 내부 오류)
     public static final int OTHER_CAUSE = 999;
 
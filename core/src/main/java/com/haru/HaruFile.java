@@ -1,16 +1,23 @@
 package com.haru;
 
 import com.haru.callback.DownloadCallback;
+import com.haru.callback.DownloadWithProgress;
 import com.haru.callback.SaveCallback;
 import com.haru.callback.SaveWithProgressCallback;
 import com.haru.mime.ProgressOutputStream;
+import com.haru.mime.ThrottledProgressListener;
+import com.haru.mime.content.ByteArrayBody;
+import com.haru.mime.content.ContentBody;
+import com.haru.mime.content.InputStreamBody;
 import com.haru.task.Continuation;
 import com.haru.task.Task;
 
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Haru 서버에 업로드된 파일에 대한 정보이다.
@@ -25,6 +32,9 @@ public class HaruFile implements JsonEncodable {
     // 실제 다운로드된 (로컬에 있는) 파일에 대한 정보
     private File file;
 
+    // 파일이 아닌 메모리나 스트림에서 올릴 내용
+    private ContentBody content;
+
     // 상태
     private boolean isAccessible, isInServer;
 
@@ -54,6 +64,91 @@ public class HaruFile implements JsonEncodable {
         this.isAccessible = true;
     }
 
+    /**
+     * 메모리에 있는 데이터로 새로운 파일을 생성한다. 임시 파일을 만들지 않고 바로 업로드된다.
+     * @param data 파일 내용
+     * @param fileName 파일 이름
+     */
+    public HaruFile(byte[] data, String fileName) {
+        this(data, fileName, "application/octet-stream");
+    }
+
+    /**
+     * 메모리에 있는 데이터로 새로운 파일을 생성한다. 임시 파일을 만들지 않고 바로 업로드된다.
+     * @param data 파일 내용
+     * @param fileName 파일 이름
+     * @param mimeType MIME 타입 (예: image/jpeg)
+     */
+    public HaruFile(byte[] data, String fileName, String mimeType) {
+        if (data == null) {
+            throw new IllegalArgumentException("Data cannot be null.");
+        }
+        this.content = new ByteArrayBody(data, mimeType, fileName);
+        this.isAccessible = true;
+    }
+
+    /**
+     * 스트림의 내용으로 새로운 파일을 생성한다. 업로드할 때 스트림을 읽으면서 바로 전송한다.
+     * 스트림은 한 번만 읽을 수 있으므로, 업로드가 실패하면 새로운 스트림으로 다시 만들어야 한다.
+     * @param in 파일 내용을 읽을 스트림. 업로드가 끝나면 닫힌다.
+     * @param fileName 파일 이름
+     * @param length 스트림의 길이 (모를 시 -1, 진행률을 받을 수 없다)
+     */
+    public HaruFile(InputStream in, String fileName, long length) {
+        this(in, fileName, "application/octet-stream", length);
+    }
+
+    /**
+     * 스트림의 내용으로 새로운 파일을 생성한다. 업로드할 때 스트림을 읽으면서 바로 전송한다.
+     * @param in 파일 내용을 읽을 스트림. 업로드가 끝나면 닫힌다.
+     * @param fileName 파일 이름
+     * @param mimeType MIME 타입 (예: image/jpeg)
+     * @param length 스트림의 길이 (모를 시 -1, 진행률을 받을 수 없다)
+     */
+    public HaruFile(InputStream in, String fileName, String mimeType, long length) {
+        if (in == null) {
+            throw new IllegalArgumentException("Input stream cannot be null.");
+        }
+        this.content = new InputStreamBody(in, mimeType, fileName, length);
+        this.isAccessible = true;
+    }
+
+    private HaruFile() {
+    }
+
+    /**
+     * 서버에 올라간 파일을 가리키는 HaruFile을 만든다. {@link #downloadInBackground()}로 받을 수 있다.
+     * @param url 파일 URL
+     */
+    public static HaruFile fromUrl(String url) {
+        return fromServer(null, url);
+    }
+
+    /**
+     * 서버에 올라간 파일을 가리키는 HaruFile을 만든다. 다운로드한 파일은 파일 ID로 캐시된다.
+     * @param fileId 파일 ID (null일 시 URL로 캐시된다)
+     * @param url 파일 URL
+     */
+    public static HaruFile fromServer(String fileId, String url) {
+        if (url == null) {
+            throw new IllegalArgumentException("URL cannot be null.");
+        }
+        HaruFile haruFile = new HaruFile();
+        haruFile.fileId = fileId;
+        haruFile.url = url;
+        haruFile.isInServer = true;
+        return haruFile;
+    }
+
+    /**
+     * 파일을 나누어 업로드할 조각의 크기를 설정한다. 기본값은 1MB이다.
+     * 이보다 큰 파일은 조각으로 나누어 올리며, 업로드가 중단되면 다음 업로드 때 이어서 올린다.
+     * @param bytes 조각의 크기 (bytes)
+     */
+    public static void setUploadChunkSize(int bytes) {
+        ChunkedUpload.setChunkSize(bytes);
+    }
+
     /**
      * 추가 및 수정된 파일을 서버로 업로드한다.
      * @return Task
@@ -74,25 +169,22 @@ public class HaruFile implements JsonEncodable {
             throw new IllegalStateException("The original file path is not set.");
         }
 
-        HaruRequest request = new HaruRequest("/files").post(file);
-
         // check if it's progress-able callback
+        ProgressOutputStream.ProgressListener progressListener = null;
         if (saveCallback != null && saveCallback instanceof SaveWithProgressCallback) {
             final SaveWithProgressCallback progressCallback = (SaveWithProgressCallback) saveCallback;
-            ProgressOutputStream.ProgressListener progressListener =
-                    new ProgressOutputStream.ProgressListener() {
-                        @Override
-                        public void progress(long total, long transferred) {
-                            progressCallback.progress((double) transferred / total * 100);
-                        }
-                    };
-
-            request.fileProgress(progressListener);
+            progressListener = new ProgressOutputStream.ProgressListener() {
+                @Override
+                public void progress(long total, long transferred) {
+                    if (total <= 0) return;
+                    progressCallback.progress((double) transferred / total * 100);
+                }
+            };
         }
 
-        return request.executeAsync().continueWith(new Continuation<HaruResponse, HaruFile>() {
+        return upload(progressListener, null, Task.Priority.INTERACTIVE).continueWith(new Continuation<HaruFile, HaruFile>() {
             @Override
-            public HaruFile then(Task<HaruResponse> task) throws Exception {
+            public HaruFile then(Task<HaruFile> task) throws Exception {
                 if (task.isFaulted()) {
                     Haru.stackTrace(task.getError());
                     if (saveCallback != null) {
@@ -101,19 +193,206 @@ public class HaruFile implements JsonEncodable {
                     throw task.getError();
                 }
 
+                // call callback
+                if (saveCallback != null) saveCallback.done(null);
+
+                return HaruFile.this;
+            }
+        });
+    }
+
+    /**
+     * 파일을 업로드하고, 서버로부터 받은 파일 정보를 채운다.
+     * @param progressListener 업로드 진행 상황을 받을 리스너 (null 가능)
+     * @param stopRequested 조각으로 나누어 올리는 중 true가 되면 다음 조각을 보내지 않고 멈춘다. (null 가능)
+     * @param priority 업로드 요청의 {@link com.haru.task.Task.Priority}
+     */
+    Task<HaruFile> upload(ProgressOutputStream.ProgressListener progressListener,
+                          AtomicBoolean stopRequested,
+                          final Task.Priority priority) {
+        if (!isAccessible) {
+            throw new IllegalStateException("The original file path is not set.");
+        }
+
+        Task<HaruResponse> uploadTask;
+        if (content != null) {
+            // 메모리나 스트림의 내용은 한 번에 올린다.
+            HaruRequest request = new HaruRequest("/files").post(content).priority(priority);
+            if (progressListener != null) request.fileProgress(progressListener);
+            uploadTask = request.executeAsync();
+
+        } else if (ChunkedUpload.shouldUse(file)) {
+            // 큰 파일은 조각으로 나누어 올린다. 실패하면 다음 업로드 때 이어서 올린다.
+            final ProgressOutputStream.ProgressListener listener = progressListener;
+            uploadTask = new ChunkedUpload(file, progressListener, stopRequested, priority).start()
+                    .continueWithTask(new Continuation<HaruResponse, Task<HaruResponse>>() {
+                        @Override
+                        public Task<HaruResponse> then(Task<HaruResponse> task) throws Exception {
+                            // 서버가 조각 업로드를 지원하지 않는다면 한 번에 올린다.
+                            if (task.isFaulted() && !ChunkedUpload.isSupported()) return postFile(listener, priority);
+                            return task;
+                        }
+                    });
+
+        } else uploadTask = postFile(progressListener, priority);
+
+        return uploadTask.onSuccess(new Continuation<HaruResponse, HaruFile>() {
+            @Override
+            public HaruFile then(Task<HaruResponse> task) throws Exception {
                 // Fill the file infomration
                 JSONObject body = task.getResult().getJsonBody();
                 HaruFile.this.fileId = body.getString("_id");
                 HaruFile.this.createdAt = new Date(body.getLong("createdAt"));
                 HaruFile.this.updatedAt = new Date(body.getLong("updatedAt"));
                 HaruFile.this.url = body.getString("url");
+                HaruFile.this.isInServer = true;
+                return HaruFile.this;
+            }
+        });
+    }
 
-                // call callback
-                if (saveCallback != null) saveCallback.done(null);
+    /**
+     * 파일을 한 번의 multipart 요청 (POST /files)으로 올린다.
+     */
+    private Task<HaruResponse> postFile(ProgressOutputStream.ProgressListener progressListener,
+                                        Task.Priority priority) {
+        HaruRequest request = new HaruRequest("/files").post(file).priority(priority);
+        if (progressListener != null) request.fileProgress(progressListener);
+        return request.executeAsync();
+    }
 
+    /**
+     * 서버에 올라간 파일을 다운로드한다.
+     * 다운로드한 파일은 {@link com.haru.FileCache}에 저장되어, 다음에는 네트워크 없이 바로 가져온다.
+     * @return Task
+     */
+    public Task<HaruFile> downloadInBackground() {
+        return download(null).continueWith(new Continuation<HaruFile, HaruFile>() {
+            @Override
+            public HaruFile then(Task<HaruFile> task) throws Exception {
+                if (task.isFaulted()) throw task.getError();
+                return task.getResult();
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 서버에 올라간 파일을 다운로드한다.
+     * @param callback 다운로드 완료시 호출할 콜백
+     * @return Task
+     */
+    public Task<HaruFile> downloadInBackground(final DownloadCallback callback) {
+        return download(null).continueWith(new Continuation<HaruFile, HaruFile>() {
+            @Override
+            public HaruFile then(Task<HaruFile> task) throws Exception {
+                if (task.isFaulted()) {
+                    if (callback != null) callback.done(null, new HaruException(task.getError()));
+                    throw task.getError();
+                }
+                if (callback != null) callback.done(HaruFile.this, null);
                 return HaruFile.this;
             }
-        });
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 서버에 올라간 파일을 다운로드하며, 진행률 (%)을 UI 스레드로 전달한다.
+     * 진행률은 {@link com.haru.mime.ThrottledProgressListener#DEFAULT_INTERVAL_MILLIS}마다 한 번씩만 전달된다.
+     * @param callback 진행률과 다운로드 완료를 전달받을 콜백
+     * @return Task
+     */
+    public Task<HaruFile> downloadInBackground(final DownloadWithProgress callback) {
+        ProgressOutputStream.ProgressListener progressListener = null;
+        if (callback != null) {
+            progressListener = new ThrottledProgressListener(new ProgressOutputStream.ProgressListener() {
+                @Override
+                public void progress(final long total, final long transferred) {
+                    if (total <= 0) return;
+                    Task.UI_THREAD_EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.progress((double) transferred / total * 100);
+                        }
+                    });
+                }
+            });
+        }
+
+        return download(progressListener).continueWith(new Continuation<HaruFile, HaruFile>() {
+            @Override
+            public HaruFile then(Task<HaruFile> task) throws Exception {
+                if (task.isFaulted()) {
+                    if (callback != null) callback.done(new HaruException(task.getError()));
+                    throw task.getError();
+                }
+                if (callback != null) callback.done(null);
+                return HaruFile.this;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    private Task<HaruFile> download(ProgressOutputStream.ProgressListener progressListener) {
+        if (url == null) {
+            throw new IllegalStateException("The file is not uploaded to the server.");
+        }
+
+        String cacheKey = fileId != null ? fileId : url;
+        return FileDownload.download(cacheKey, url, progressListener)
+                .onSuccess(new Continuation<File, HaruFile>() {
+                    @Override
+                    public HaruFile then(Task<File> task) throws Exception {
+                        HaruFile.this.file = task.getResult();
+                        HaruFile.this.isAccessible = true;
+                        return HaruFile.this;
+                    }
+                });
+    }
+
+    /**
+     * @return 업로드할 내용 (파일, 메모리, 스트림)이 있다면 true
+     */
+    boolean isAccessible() {
+        return isAccessible;
+    }
+
+    /**
+     * @return 업로드할 내용의 크기 (bytes, 모를 시 0)
+     */
+    long getUploadSize() {
+        if (file != null) return file.length();
+        return Math.max(0, content.getContentLength());
+    }
+
+    /**
+     * @return 업로드할 파일의 이름
+     */
+    String getName() {
+        if (file != null) return file.getName();
+        return content.getFilename();
+    }
+
+    /**
+     * 로컬에 있는 파일을 반환한다. 업로드할 파일이거나, 다운로드해서 캐시된 파일이다.
+     * 메모리나 스트림에서 만든 파일은 다운로드하기 전까지 null이다.
+     * 캐시된 파일은 캐시의 크기가 부족하면 지워질 수 있으므로, 오래 보관하려면 복사해야 한다.
+     * @return {@link java.io.File} (아직 다운로드하지 않았을 시 null)
+     */
+    public File getLocalFile() {
+        return file;
+    }
+
+    /**
+     * @return 서버에 올라간 파일의 URL (업로드되지 않았을 시 null)
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return 서버에 올라간 파일의 ID (알 수 없을 시 null)
+     */
+    public String getId() {
+        return fileId;
     }
 
     // TODO : For furture integration to Entity
@@ -4,38 +4,53 @@ import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 
+import com.haru.json.JsonReader;
+import com.haru.json.JsonToken;
 import com.haru.mime.HttpMultipartMode;
 import com.haru.mime.MultipartEntity;
 import com.haru.mime.ProgressOutputStream;
+import com.haru.mime.FormBodyPart;
+import com.haru.mime.content.ContentBody;
 import com.haru.mime.content.FileBody;
 import com.haru.task.Continuation;
 import com.haru.task.Task;
 
-import org.apache.http.HttpHost;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-
-import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Haru API 서버에 수동으로 비동기적 API 호출을 하기 위해서 사용된다.
@@ -44,77 +59,74 @@ public class HaruRequest {
 
     private static String PLUGY_ENDPOINT = "http://api.plugy.io/1";
 
-    private static final String USER_AGENT =
+    static final String USER_AGENT =
             "Haru SDK " + Haru.getSdkVersion() + " / Android " + Build.VERSION.RELEASE;
 
-    private static HttpClient defaultClient;
+    static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    static final int READ_TIMEOUT_MILLIS = 10000;
+
+    // SDK의 모든 HTTP 요청이 공유하는 엔진
+    private static HttpTransport transport;
     private static String appKey, sdkKey;
 
-    private HttpClient client;
+    // 진행중인 GET 요청들. 같은 요청은 하나의 네트워크 요청을 공유한다.
+    private static final HashMap<String, Task<HaruResponse>> inFlightRequests =
+            new HashMap<String, Task<HaruResponse>>();
+    private static final AtomicLong coalescedHitCount = new AtomicLong();
+    private static final AtomicLong coalescedMissCount = new AtomicLong();
 
     private String endpoint;
     private int method;
-    private JSONObject param;
+    private Object param; // JSONObject or Param
     private Param getParam;
 
-    private File file;
+    private ArrayList<FormBodyPart> parts; // Multipart 업로드할 part들
+    private HttpEntity body; // JSON이 아닌 요청 본문 (업로드 조각 등)
+    private HashMap<String, String> headers;
     private ProgressOutputStream.ProgressListener progressListener;
 
+    private CachePolicy cachePolicy = CachePolicy.REVALIDATE;
+    private boolean cachesAuthenticatedResponse = false;
+    private ResultDecoder<?> resultDecoder;
+    private RetryPolicy retryPolicy;
+    private Task.Priority priority = Task.Priority.INTERACTIVE;
+
+    private static ScheduledExecutorService retryScheduler;
+
+    private static final String[] METHOD_NAMES = { "GET", "POST", "PUT", "DELETE" };
+
+    // 마지막 시도의 측정 기록. UI 스레드에 결과가 전달된 뒤 NetworkMetrics에 보고된다.
+    private final Object timingLock = new Object();
+    private RequestTiming pendingTiming;
+    private boolean isDelivered;
+
     /**
      * HaruRequest를 초기화시킨다.
+     * @param context Application Context {@link android.content.Context}
+     * @param endpoint Plugy를 별도 설치한 경우, 설치된 서버의 Endpoint URL (null일 시 기본값 사용)
+     * @param httpTransport 사용할 HTTP 엔진 (null일 시 기본값 사용)
      */
-    static void initialize(Context context) {
-        if (defaultClient == null) {
-            defaultClient = initiateApacheHttpClient(context);
-        }
+    static void initialize(Context context, String endpoint, HttpTransport httpTransport) {
+        if (endpoint != null) PLUGY_ENDPOINT = endpoint;
+
+        if (httpTransport != null) transport = httpTransport;
+        else if (transport == null) transport = new ApacheHttpTransport();
+        ResponseCache.initialize(context);
+        FileCache.initialize(context);
 
         appKey = Haru.getAppKey();
         sdkKey = Haru.getSdkKey();
     }
 
     /**
-     * HaruRequest를 초기화시킨다.
-     * @param context Application Context {@link android.content.Context}
-     * @param endpoint Plugy를 별도 설치한 경우, 설치된 서버의 Endpoint URL
+     * SDK가 사용하는 HTTP 엔진을 반환한다. 다른 모듈에서도 HTTP 요청을 보낼 때 이 엔진을 공유한다.
+     * @return {@link com.haru.HttpTransport} (초기화되지 않았을 시 null)
      */
-    static void initialize(Context context, String endpoint) {
-        PLUGY_ENDPOINT = endpoint;
-        initialize(context);
-    }
-
-    /**
-     * HaruRequest의 기본값으로 HTTP Client를 생성한다.
-     * @return HTTP Client
-     */
-    private static HttpClient initiateApacheHttpClient(Context context) {
-        HttpParams params = new BasicHttpParams();
-
-        HttpConnectionParams.setStaleCheckingEnabled(params, false);
-
-        HttpConnectionParams.setConnectionTimeout(params, 10000);
-        HttpConnectionParams.setSoTimeout(params, 10000);
-        HttpConnectionParams.setSocketBufferSize(params, 8192);
-        HttpClientParams.setRedirecting(params, false);
-
-        HttpProtocolParams.setUserAgent(params, USER_AGENT);
-
-        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(20));
-        ConnManagerParams.setMaxTotalConnections(params, 20);
-
-        String host = System.getProperty("http.proxyHost");
-        String portString = System.getProperty("http.proxyPort");
-        if ((host != null) && (host.length() != 0) && (portString != null) && (portString.length() != 0)) {
-            int port = Integer.parseInt(portString);
-            HttpHost proxy = new HttpHost(host, port, "http");
-            params.setParameter("http.route.default-proxy", proxy);
-        }
-
-        return new DefaultHttpClient(new ThreadSafeClientConnManager(params,
-                new DefaultHttpClient().getConnectionManager().getSchemeRegistry()), params);
+    public static HttpTransport getTransport() {
+        return transport;
     }
 
     public HaruRequest() {
-        client = defaultClient;
     }
 
     public HaruRequest(String url) {
@@ -137,98 +149,699 @@ public class HaruRequest {
             throw new RuntimeException("You need to call Haru.init() before using other APIs.");
         }
 
+        synchronized (timingLock) {
+            pendingTiming = null;
+            isDelivered = false;
+        }
+
+        // 세션 토큰을 알기 위해 현재 유저가 필요하다. 아직 불러오는 중이라면 호출한 스레드를 막지 않고 불러온 후에 요청한다.
+        Task<HaruResponse> networkTask = User.getCurrentUserInBackground().continueWithTask(
+                new Continuation<User, Task<HaruResponse>>() {
+            @Override
+            public Task<HaruResponse> then(Task<User> task) throws Exception {
+                if (method == 0) return getWithCachePolicy();
+                return executeWithRetry();
+            }
+        });
+
+        return networkTask.continueWith(new Continuation<HaruResponse, HaruResponse>() {
+            @Override
+            public HaruResponse then(Task<HaruResponse> task) throws Exception {
+                reportDeliveredTiming();
+                if (task.isFaulted()) throw task.getError();
+                return task.getResult();
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 캐시 정책에 따라 응답 캐시, 혹은 서버로부터 GET 요청의 결과를 가져온다.
+     */
+    private Task<HaruResponse> getWithCachePolicy() {
+        boolean readsCacheFirst = cachePolicy == CachePolicy.CACHE_ELSE_NETWORK
+                || cachePolicy == CachePolicy.STALE_WHILE_REVALIDATE;
+
+        if (!readsCacheFirst || !usesResponseCache()) {
+            return getOrStartSharedRequest();
+        }
+
+        final String cacheKey = getCacheKey();
         return Task.callInBackground(new Callable<HaruResponse>() {
             @Override
             public HaruResponse call() throws Exception {
-                HttpUriRequest request;
+                ResponseCache.Entry cached = ResponseCache.get(cacheKey);
+                if (cached == null) return null;
 
-                Haru.logD("Request URL => %s", endpoint);
+                HaruResponse response = createResponse(200,
+                        new HashMap<String, String>(), cached.body);
+                response.setFromCache(true);
+                return response;
+            }
+        }, priority).continueWithTask(new Continuation<HaruResponse, Task<HaruResponse>>() {
+            @Override
+            public Task<HaruResponse> then(Task<HaruResponse> task) throws Exception {
+                if (task.isFaulted() || task.getResult() == null) {
+                    // 캐시에 없다.
+                    return getOrStartSharedRequest();
+                }
 
-                // Write HTTP Request
-                switch(method) {
-                    case 0: // GET
-                        String url = endpoint;
-                        if (getParam != null) url += "?" + getParam.toUrl();
-                        Log.d("Haru", "  GET Requests => " + url);
-                        request = new HttpGet(url);
-                        break;
+                // 캐시된 응답을 먼저 주고, 백그라운드에서 캐시를 갱신한다.
+                if (cachePolicy == CachePolicy.STALE_WHILE_REVALIDATE) getOrStartSharedRequest();
+                return task;
+            }
+        });
+    }
 
-                    case 1: // POST
-                        request = new HttpPost(endpoint);
+    /**
+     * 이 요청의 응답을 응답 캐시에 저장하거나 읽을 수 있는지 확인한다.
+     * 로그인한 유저의 응답은 유저마다 다를 수 있으므로, 따로 허용하지 않았다면 디스크에 저장하지 않는다.
+     */
+    private boolean usesResponseCache() {
+        return ResponseCache.isCacheable(endpoint)
+                && (cachesAuthenticatedResponse || User.getCurrentSessionToken() == null);
+    }
 
-                        // Multipart Upload인가?
-                        if (file != null) {
-                            MultipartEntity multipart = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
-                            multipart.addPart("file", new FileBody(file));
+    /**
+     * 응답 캐시의 키를 반환한다. (메서드, 엔드포인트, 파라미터, 세션)
+     */
+    private String getCacheKey() {
+        return "GET " + getUrl() + " " + User.getCurrentSessionToken();
+    }
 
-                            // Progress Callback 설정
-                            if (progressListener != null) multipart.setProgressListener(progressListener);
+    /**
+     * 진행중인 같은 GET 요청 (메서드, 엔드포인트, 파라미터, 세션)이 있다면 그 태스크를 반환하고,
+     * 없다면 새로운 요청을 시작한다.
+     */
+    private Task<HaruResponse> getOrStartSharedRequest() {
+        // 사용자가 기다리는 요청이 대기중인 백그라운드 요청을 기다리지 않도록 우선순위별로 공유한다.
+        final String key = getCacheKey() + " " + cachePolicy + " " + priority
+                + (resultDecoder != null ? " streamed" : "");
+
+        synchronized (inFlightRequests) {
+            Task<HaruResponse> sharedTask = inFlightRequests.get(key);
+            if (sharedTask != null) {
+                coalescedHitCount.incrementAndGet();
+                Haru.logD("Request coalesced => %s", endpoint);
+                return sharedTask;
+            }
+            coalescedMissCount.incrementAndGet();
+
+            sharedTask = executeWithRetry();
+            inFlightRequests.put(key, sharedTask);
+
+            // 요청이 끝나면 진행중 목록에서 제거한다.
+            sharedTask.continueWith(new Continuation<HaruResponse, Void>() {
+                @Override
+                public Void then(Task<HaruResponse> task) throws Exception {
+                    synchronized (inFlightRequests) {
+                        inFlightRequests.remove(key);
+                    }
+                    return null;
+                }
+            });
+            return sharedTask;
+        }
+    }
 
-                            ((HttpPost) request).setEntity(multipart);
+    /**
+     * 재시도 정책과 Circuit Breaker를 적용해서 요청을 실행한다.
+     */
+    private Task<HaruResponse> executeWithRetry() {
+        Task.TaskCompletionSource tcs = Task.create();
+        attempt(0, tcs);
+        return tcs.getTask();
+    }
 
-                        } else {
-                            Log.d("Haru", "Request => " + param.toString());
-                            ((HttpPost) request).setEntity(new StringEntity(param.toString(), "utf-8"));
-                        }
-                        break;
+    private void attempt(final int retryCount, final Task.TaskCompletionSource tcs) {
+        final String breakerKey = getBreakerKey();
+        final CircuitBreaker breaker = CircuitBreaker.forEndpoint(breakerKey);
+        if (!breaker.allowRequest()) {
+            // 서버 장애가 계속되고 있다. 요청을 보내지 않고 바로 실패한다.
+            tcs.setError(new CircuitBreakerOpenException(breakerKey));
+            return;
+        }
 
-                    case 2: // PUT
-                        request = new HttpPut(endpoint);
-                        ((HttpPut) request).setEntity(new StringEntity(param.toString(), "utf-8"));
-                        break;
+        final RequestTiming timing =
+                new RequestTiming(getEndpointTemplate(), METHOD_NAMES[method], retryCount);
 
-                    case 3: // DELETE
-                        request = new HttpDelete(endpoint);
-                        break;
+        Task.callInBackground(new Callable<HaruResponse>() {
+            @Override
+            public HaruResponse call() throws Exception {
+                timing.queueWaitMillis = RequestTiming.millisSince(timing.submittedAt);
+                return execute(timing);
+            }
+        }, priority).continueWith(new Continuation<HaruResponse, Void>() {
+            @Override
+            public Void then(Task<HaruResponse> task) throws Exception {
+                timing.finishedAt = System.nanoTime();
+                if (!task.isFaulted()) {
+                    breaker.recordSuccess();
+                    setPendingTiming(timing);
+                    tcs.setResult(task.getResult());
+                    return null;
+                }
 
-                    default: // can't be possible!
-                        throw new RuntimeException("method " + method + " does not exist!");
+                // 기기가 오프라인이라서 생긴 에러는 서버 장애로 보지 않는다.
+                Exception error = task.getError();
+                timing.error = error.toString();
+                boolean isOnline = OfflineQueue.isOnline();
+                if (RetryPolicy.isServerError(error) || (RetryPolicy.isNetworkError(error) && isOnline)) {
+                    breaker.recordFailure();
+                } else if (error instanceof HttpStatusException) {
+                    breaker.recordSuccess();
+                } else breaker.recordIgnored();
+
+                RetryPolicy policy = retryPolicy != null ? retryPolicy : RetryPolicy.getDefault();
+                boolean canRetry = isIdempotent()
+                        && isOnline
+                        && retryCount < policy.getMaxRetries()
+                        && RetryPolicy.isRetryable(error);
+
+                if (!canRetry) {
+                    setPendingTiming(timing);
+                    tcs.setError(error);
+                    return null;
                 }
 
-                // Haru API Header
-                request.setHeader("Application-Id", appKey);
-                request.setHeader("Android-API-Id", sdkKey);
+                // 재시도할 시도는 UI 스레드로 전달되지 않으므로 바로 보고한다.
+                NetworkMetrics.report(timing);
+
+                long delay = policy.getDelayMillis(retryCount);
+                Haru.logD("%s : Retrying in %dms (%s)", endpoint, delay, error.getMessage());
+                getRetryScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(retryCount + 1, tcs);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 같은 요청을 여러 번 보내도 결과가 같은 메서드 (GET, PUT, DELETE)인지 확인한다.
+     */
+    private boolean isIdempotent() {
+        return method != 1;
+    }
+
+    /**
+     * Circuit Breaker를 공유할 엔드포인트를 반환한다.
+     * 경로의 앞 두 단계까지만 사용한다. (/classes/Post/abc → /classes/Post)
+     */
+    private String getBreakerKey() {
+        String path = endpoint.startsWith(PLUGY_ENDPOINT)
+                ? endpoint.substring(PLUGY_ENDPOINT.length()) : endpoint;
 
-                if (file == null) {
-                    // Sending Standard JSON Requests
-                    request.setHeader("Accept", "application/json");
-                    request.setHeader("Accept-Encoding", "utf-8");
-                    request.setHeader("Content-Type", "application/json");
+        int slashes = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && ++slashes == 3) return path.substring(0, i);
+        }
+        return path;
+    }
+
+    /**
+     * 측정 기록에 사용할 엔드포인트의 형태를 반환한다.
+     * 경로의 앞 두 단계 이후는 :id로 바꾼다. (/classes/Post/abc → /classes/Post/:id)
+     */
+    private String getEndpointTemplate() {
+        String path = endpoint.startsWith(PLUGY_ENDPOINT)
+                ? endpoint.substring(PLUGY_ENDPOINT.length()) : endpoint;
+
+        int slashes = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && ++slashes == 3) {
+                StringBuilder template = new StringBuilder(path.substring(0, i));
+                for (int j = i; j < path.length(); j++) {
+                    if (path.charAt(j) == '/' && j + 1 < path.length()) template.append("/:id");
                 }
+                return template.toString();
+            }
+        }
+        return path;
+    }
 
-                // Session Token
-                if (User.getCurrentSessionToken() != null) {
-                    request.setHeader("Session-Token", User.getCurrentSessionToken());
+    /**
+     * 마지막 시도의 측정 기록을 보관한다.
+     * 결과가 이미 UI 스레드에 전달되었다면 (캐시된 응답을 먼저 준 경우) 바로 보고한다.
+     */
+    private void setPendingTiming(RequestTiming timing) {
+        synchronized (timingLock) {
+            if (!isDelivered) {
+                pendingTiming = timing;
+                return;
+            }
+        }
+        NetworkMetrics.report(timing);
+    }
+
+    /**
+     * 결과가 UI 스레드에 전달되었다. 보관한 측정 기록에 전달 지연 시간을 더해 보고한다.
+     * 캐시된 응답이나 진행중인 요청을 공유받은 경우에는 보관한 기록이 없다.
+     */
+    private void reportDeliveredTiming() {
+        RequestTiming timing;
+        synchronized (timingLock) {
+            isDelivered = true;
+            timing = pendingTiming;
+            pendingTiming = null;
+        }
+        if (timing == null) return;
+
+        timing.dispatchMillis = RequestTiming.millisSince(timing.finishedAt);
+        NetworkMetrics.report(timing);
+    }
+
+    private static synchronized ScheduledExecutorService getRetryScheduler() {
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Haru-Retry");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        return retryScheduler;
+    }
 
-                HttpResponse response = client.execute(request);
+    /**
+     * GET 요청시 파라미터를 포함한 URL을 반환한다.
+     */
+    private String getUrl() {
+        String url = endpoint;
+        if (getParam != null) url += "?" + getParam.toUrl();
+        return url;
+    }
+
+    /**
+     * 같은 GET 요청이 진행중이어서 네트워크 요청 없이 결과를 공유받은 횟수를 반환한다.
+     */
+    public static long getCoalescedHitCount() {
+        return coalescedHitCount.get();
+    }
+
+    /**
+     * 진행중인 같은 GET 요청이 없어 실제로 네트워크 요청을 보낸 횟수를 반환한다.
+     */
+    public static long getCoalescedMissCount() {
+        return coalescedMissCount.get();
+    }
+
+    /**
+     * 실제로 HTTP 요청을 보내고 응답을 읽는다. 백그라운드 스레드에서 호출된다.
+     * @param timing 각 단계의 소요 시간을 기록할 {@link com.haru.RequestTiming}
+     */
+    private HaruResponse execute(RequestTiming timing) throws Exception {
+        HttpUriRequest request;
+
+        Haru.logD("Request URL => %s", endpoint);
+
+        // Write HTTP Request
+        switch(method) {
+            case 0: // GET
+                String url = getUrl();
+                Log.d("Haru", "  GET Requests => " + url);
+                request = new HttpGet(url);
+                break;
+
+            case 1: // POST
+                request = new HttpPost(endpoint);
+
+                // Multipart Upload인가?
+                if (parts != null) {
+                    MultipartEntity multipart = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
+                    for (FormBodyPart part : parts) multipart.addPart(part);
 
-                // Read the response
-                String body = EntityUtils.toString(response.getEntity(), "utf-8");
-                Haru.logD("%s : Response => %s", endpoint, body);
+                    // Progress Callback 설정
+                    if (progressListener != null) multipart.setProgressListener(progressListener);
 
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    throw new RuntimeException(response.getStatusLine().toString());
+                    ((HttpPost) request).setEntity(multipart);
+
+                } else {
+                    ((HttpPost) request).setEntity(
+                            Compression.compressRequest(endpoint, new JsonRequestEntity(param)));
                 }
+                break;
+
+            case 2: // PUT
+                request = new HttpPut(endpoint);
+                if (body != null) {
+                    ((HttpPut) request).setEntity(body);
 
-                if (body.startsWith("[")) {
-                    // it must be jsonarray
-                    // TODO: Hotfix: Remove it when /batch route is edited
-                    JSONObject json = new JSONObject();
-                    json.put("results", new JSONArray(body));
-                    return new HaruResponse(response, json);
+                } else {
+                    ((HttpPut) request).setEntity(
+                            Compression.compressRequest(endpoint, new JsonRequestEntity(param)));
                 }
+                break;
+
+            case 3: // DELETE
+                request = new HttpDelete(endpoint);
+                break;
+
+            default: // can't be possible!
+                throw new RuntimeException("method " + method + " does not exist!");
+        }
+
+        // Haru API Header
+        request.setHeader("Application-Id", appKey);
+        request.setHeader("Android-API-Id", sdkKey);
 
-                return new HaruResponse(response, new JSONObject(body));
+        if (parts == null) {
+            // Sending Standard JSON Requests
+            request.setHeader("Accept", "application/json");
+            if (body == null) request.setHeader("Content-Type", "application/json");
+        }
+        request.setHeader("Accept-Encoding", "gzip");
 
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                request.setHeader(header.getKey(), header.getValue());
             }
-        }).continueWith(new Continuation<HaruResponse, HaruResponse>() {
-            @Override
-            public HaruResponse then(Task<HaruResponse> task) throws Exception {
-                if (task.isFaulted()) throw task.getError();
-                return task.getResult();
+        }
+
+        // Session Token
+        if (User.getCurrentSessionToken() != null) {
+            request.setHeader("Session-Token", User.getCurrentSessionToken());
+        }
+
+        // 캐시된 응답이 있다면, 변경되었을 때만 본문을 받는다.
+        boolean usesCache = method == 0
+                && cachePolicy != CachePolicy.NETWORK_ONLY
+                && usesResponseCache();
+
+        ResponseCache.Entry cached = usesCache ? ResponseCache.get(getCacheKey()) : null;
+        if (cached != null) {
+            if (cached.etag != null) request.setHeader("If-None-Match", cached.etag);
+            if (cached.lastModified != null) request.setHeader("If-Modified-Since", cached.lastModified);
+        }
+
+        HttpResponse response;
+        long sentAt = System.nanoTime();
+        try {
+            response = transport.execute(request);
+        } finally {
+            timing.connectMillis = NetworkMetrics.takeConnectMillis();
+        }
+        timing.timeToFirstByteMillis = RequestTiming.millisSince(sentAt);
+        timing.bytesSent = getBytesSent(request);
+
+        int statusCode = response.getStatusLine().getStatusCode();
+        timing.statusCode = statusCode;
+        if (response.getEntity() != null) {
+            // 압축을 풀기 전에 실제로 전송된 크기를 센다.
+            response.setEntity(new CountingEntity(response.getEntity(), timing));
+        }
+        Compression.decompressResponse(endpoint, response);
+
+        if (statusCode == 304 && cached != null) {
+            // Not Modified : 캐시된 응답을 사용한다.
+            if (response.getEntity() != null) response.getEntity().consumeContent();
+            Haru.logD("%s : Not modified, using cached response", endpoint);
+
+            long parseStartedAt = System.nanoTime();
+            HaruResponse cachedResponse = createResponse(200,
+                    HaruResponse.convertHeaders(response.getAllHeaders()), cached.body);
+            cachedResponse.setFromCache(true);
+            timing.parseMillis = RequestTiming.millisSince(parseStartedAt);
+            return cachedResponse;
+        }
+
+        if (resultDecoder != null && statusCode == 200) {
+            // 읽으면서 바로 변환하므로 변환 시간은 본문 읽기 시간에 포함된다.
+            timing.isStreamed = true;
+            long readStartedAt = System.nanoTime();
+            HaruResponse result = executeStreaming(response, usesCache);
+            timing.bodyReadMillis = RequestTiming.millisSince(readStartedAt);
+            return result;
+        }
+
+        // Read the response
+        long readStartedAt = System.nanoTime();
+        String body = EntityUtils.toString(response.getEntity(), "utf-8");
+        timing.bodyReadMillis = RequestTiming.millisSince(readStartedAt);
+        Haru.logD("%s : Response => %s", endpoint, body);
+
+        if (statusCode != 200) {
+            throw new HttpStatusException(statusCode, response.getStatusLine().toString());
+        }
+
+        if (usesCache) {
+            ResponseCache.put(getCacheKey(),
+                    getHeaderValue(response, "ETag"),
+                    getHeaderValue(response, "Last-Modified"),
+                    body);
+        }
+
+        long parseStartedAt = System.nanoTime();
+        JSONObject json = parseBody(body);
+        timing.parseMillis = RequestTiming.millisSince(parseStartedAt);
+        return new HaruResponse(response, json);
+    }
+
+    /**
+     * 전송한 요청 본문의 크기를 반환한다. 본문이 없다면 0이다.
+     */
+    private static long getBytesSent(HttpUriRequest request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) return 0;
+
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null) return 0;
+        if (entity instanceof JsonRequestEntity) return ((JsonRequestEntity) entity).getBytesWritten();
+        return entity.getContentLength();
+    }
+
+    /**
+     * 응답 본문을 문자열로 만들지 않고, 읽으면서 바로 results의 각 원소를 변환한다.
+     * 캐시해야 하는 응답이라면 읽은 본문을 메모리에 모으지 않고 임시 파일로 함께 복사해두며,
+     * 응답 캐시의 최대 크기를 넘으면 복사를 멈추고 캐시하지 않는다.
+     */
+    private HaruResponse executeStreaming(HttpResponse response, boolean usesCache) throws Exception {
+        InputStream content = response.getEntity().getContent();
+
+        File cacheFile = usesCache ? ResponseCache.createTempFile() : null;
+        DataOutputStream cacheOut = null;
+        CopyingInputStream copying = null;
+        if (cacheFile != null) {
+            try {
+                cacheOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+                ResponseCache.writeHeader(cacheOut,
+                        getHeaderValue(response, "ETag"),
+                        getHeaderValue(response, "Last-Modified"));
+                copying = new CopyingInputStream(content, cacheOut, ResponseCache.getMaxSize());
+                content = copying;
+
+            } catch (IOException e) {
+                Haru.logE("%s : failed to open response cache file (%s)", endpoint, e.getMessage());
+                closeQuietly(cacheOut);
+                cacheOut = null;
+                cacheFile.delete();
             }
-        }, Task.UI_THREAD_EXECUTOR);
+        }
+
+        HaruResponse result;
+        boolean isCopied = false;
+        try {
+            result = decodeStreaming(response.getStatusLine().getStatusCode(),
+                    HaruResponse.convertHeaders(response.getAllHeaders()),
+                    new InputStreamReader(content, "utf-8"));
+
+            if (copying != null) {
+                // 캐시에는 본문 전체가 있어야 하므로 남은 부분 (공백 등)까지 읽는다.
+                byte[] buffer = new byte[1024];
+                while (content.read(buffer) != -1);
+                isCopied = copying.isComplete();
+            }
+        } finally {
+            content.close();
+            if (cacheOut != null) {
+                try {
+                    cacheOut.close();
+                } catch (IOException e) {
+                    isCopied = false;
+                }
+                if (isCopied) ResponseCache.commit(getCacheKey(), cacheFile);
+                else cacheFile.delete();
+            }
+        }
+        Haru.logD("%s : Response => %d results (streamed)", endpoint,
+                result.getResults() != null ? result.getResults().size() : 0);
+        return result;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 문자열로 된 응답 본문 (캐시된 응답)으로부터 HaruResponse를 만든다.
+     */
+    private HaruResponse createResponse(int statusCode,
+                                        HashMap<String, String> headers,
+                                        String body) throws Exception {
+        if (resultDecoder != null) {
+            return decodeStreaming(statusCode, headers, new StringReader(body));
+        }
+        return new HaruResponse(statusCode, headers, parseBody(body));
+    }
+
+    /**
+     * 응답 본문을 읽으며 results 배열의 원소들은 ResultDecoder로 변환하고,
+     * 나머지 필드는 JSON으로 읽는다.
+     */
+    private HaruResponse decodeStreaming(int statusCode,
+                                         HashMap<String, String> headers,
+                                         Reader body) throws Exception {
+        JsonReader reader = new JsonReader(body);
+        JSONObject json = new JSONObject();
+        ArrayList<Object> results = null;
+
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            // TODO: Hotfix: Remove it when /batch route is edited
+            results = decodeResults(reader);
+
+        } else {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("results") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    results = decodeResults(reader);
+                } else json.put(name, Haru.readJsonValue(reader));
+            }
+            reader.endObject();
+        }
+
+        HaruResponse response = new HaruResponse(statusCode, headers, json);
+        response.setResults(results);
+        return response;
+    }
+
+    private ArrayList<Object> decodeResults(JsonReader reader) throws Exception {
+        ArrayList<Object> results = new ArrayList<Object>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            results.add(resultDecoder.decode(reader));
+        }
+        reader.endArray();
+        return results;
+    }
+
+    /**
+     * 읽은 내용을 다른 스트림에 복사해두는 InputStream.
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        private final long limit;
+        private long copiedBytes = 0;
+        private boolean isCopying = true;
+
+        /**
+         * @param copy 읽은 내용을 복사할 스트림
+         * @param limit 복사할 최대 크기. 넘으면 복사를 멈춘다.
+         */
+        CopyingInputStream(InputStream in, OutputStream copy, long limit) {
+            super(in);
+            this.copy = copy;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && prepareCopy(1)) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    isCopying = false;
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0 && prepareCopy(read)) {
+                try {
+                    copy.write(buffer, offset, read);
+                } catch (IOException e) {
+                    // 복사에 실패해도 (디스크 공간 부족 등) 응답은 계속 읽는다.
+                    isCopying = false;
+                }
+            }
+            return read;
+        }
+
+        private boolean prepareCopy(int count) {
+            if (!isCopying) return false;
+            copiedBytes += count;
+            if (copiedBytes > limit) isCopying = false;
+            return isCopying;
+        }
+
+        /**
+         * 읽은 내용을 빠짐없이 복사했는지 여부를 반환한다.
+         */
+        boolean isComplete() {
+            return isCopying;
+        }
+    }
+
+    /**
+     * 읽은 응답 본문의 크기를 측정 기록에 더하는 HTTP Entity.
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+        private final RequestTiming timing;
+
+        CountingEntity(HttpEntity wrapped, RequestTiming timing) {
+            super(wrapped);
+            this.timing = timing;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            timing.bytesReceived = 0;
+            return new FilterInputStream(wrappedEntity.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) timing.bytesReceived++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) timing.bytesReceived += read;
+                    return read;
+                }
+            };
+        }
+    }
+
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * 응답 본문을 JSON으로 변환한다.
+     */
+    private static JSONObject parseBody(String body) throws JSONException {
+        if (body.startsWith("[")) {
+            // it must be jsonarray
+            // TODO: Hotfix: Remove it when /batch route is edited
+            JSONObject json = new JSONObject();
+            json.put("results", new JSONArray(body));
+            return json;
+        }
+        return new JSONObject(body);
     }
 
     public HaruRequest get() {
@@ -256,8 +869,78 @@ public class HaruRequest {
     }
 
     public HaruRequest post(File file) {
+        return post(new FileBody(file));
+    }
+
+    /**
+     * 하나의 part를 "file"이라는 이름으로 Multipart 업로드한다.
+     * @param body {@link com.haru.mime.content.ContentBody}
+     */
+    public HaruRequest post(ContentBody body) {
+        return part("file", body);
+    }
+
+    /**
+     * Multipart 업로드할 part를 추가한다. 추가한 순서대로 전송된다.
+     * @param name part의 이름
+     * @param body {@link com.haru.mime.content.ContentBody}
+     */
+    public HaruRequest part(String name, ContentBody body) {
         setMethod(1);
-        this.file = file;
+        if (parts == null) parts = new ArrayList<FormBodyPart>();
+        parts.add(new FormBodyPart(name, body));
+        return this;
+    }
+
+    /**
+     * GET 요청시 응답 캐시를 사용하는 방법을 설정한다. 기본값은 {@link CachePolicy#REVALIDATE}이다.
+     * @param policy {@link com.haru.CachePolicy}
+     */
+    public HaruRequest cachePolicy(CachePolicy policy) {
+        this.cachePolicy = policy;
+        return this;
+    }
+
+    /**
+     * 로그인한 상태에서도 응답을 응답 캐시에 저장한다.
+     * 기본적으로 로그인한 유저의 응답은 ACL에 따라 유저마다 다를 수 있으므로 디스크에 저장하지 않는다.
+     * 저장된 응답은 로그아웃할 때 지워진다.
+     *
+     * @param enabled 저장 여부
+     */
+    public HaruRequest cacheAuthenticatedResponse(boolean enabled) {
+        this.cachesAuthenticatedResponse = enabled;
+        return this;
+    }
+
+    /**
+     * 응답의 results 배열을 스트리밍으로 읽으며 각 원소를 decoder로 변환하게 한다.
+     * 변환된 결과는 {@link HaruResponse#getResults()}로 가져올 수 있다.
+     * @param decoder {@link com.haru.ResultDecoder}
+     */
+    HaruRequest decodeResultsWith(ResultDecoder<?> decoder) {
+        this.resultDecoder = decoder;
+        return this;
+    }
+
+    /**
+     * 요청이 실패했을 때 재시도하는 방법을 설정한다. 기본값은 {@link RetryPolicy#getDefault()}이다.
+     * POST 요청은 재시도하지 않는다.
+     * @param policy {@link com.haru.RetryPolicy}
+     */
+    public HaruRequest retryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy;
+        return this;
+    }
+
+    /**
+     * 요청의 우선순위를 설정한다. 기본값은 {@link Task.Priority#INTERACTIVE}이다.
+     * 사용자가 기다리지 않는 요청 (동기화, 통계 등)은 {@link Task.Priority#BACKGROUND}로 보내면
+     * 사용자의 요청이 늦어지지 않는다.
+     * @param priority {@link com.haru.task.Task.Priority}
+     */
+    public HaruRequest priority(Task.Priority priority) {
+        this.priority = priority;
         return this;
     }
 
@@ -272,13 +955,37 @@ public class HaruRequest {
         return this;
     }
 
+    /**
+     * JSON이 아닌 본문을 그대로 PUT한다. 본문의 Content-Type이 사용되며, 압축하지 않는다.
+     * @param body 요청 본문
+     */
+    HaruRequest put(HttpEntity body) {
+        setMethod(2); // PUT
+        this.body = body;
+        return this;
+    }
+
+    /**
+     * 요청에 HTTP 헤더를 추가한다.
+     */
+    HaruRequest header(String name, String value) {
+        if (headers == null) headers = new HashMap<String, String>();
+        headers.put(name, value);
+        return this;
+    }
+
     public HaruRequest delete() {
         setMethod(3); // DELETE
         return this;
     }
 
+    /**
+     * 요청 본문을 설정한다. 본문은 전송할 때 JSONObject를 거치지 않고 바로 쓰여진다.
+     * 전송과 재시도는 나중에 다른 스레드에서 이루어지므로, 지금의 파라미터를 복사해둔다.
+     * @param param {@link com.haru.Param}
+     */
     public void setParameter(Param param) {
-        this.param = (JSONObject) param.toJson();
+        this.param = param.copy();
     }
 
     public void setParameter(JSONObject param) {
@@ -6,6 +6,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Haru API 호출 결과를 담는 클래스이다.
@@ -17,11 +18,21 @@ public class HaruResponse {
 
     private HaruException exception;
     private boolean hasError = false;
+    private boolean isFromCache = false;
+
+    // 스트리밍으로 변환된 results 배열 (ResultDecoder를 사용한 경우)
+    private List<Object> results;
 
     HaruResponse(HttpResponse response, JSONObject result) {
-        statusCode = response.getStatusLine().getStatusCode();
-        jsonResult = result;
-        headers = convertHeaders(response.getAllHeaders());
+        this(response.getStatusLine().getStatusCode(),
+                convertHeaders(response.getAllHeaders()),
+                result);
+    }
+
+    HaruResponse(int statusCode, HashMap<String, String> headers, JSONObject result) {
+        this.statusCode = statusCode;
+        this.jsonResult = result;
+        this.headers = headers;
 
         try {
             if (jsonResult.has("code") && jsonResult.has("error")) {
@@ -81,7 +92,33 @@ public class HaruResponse {
         return exception;
     }
 
-    private HashMap<String, String> convertHeaders(Header[] headers) {
+    /**
+     * {@link com.haru.ResultDecoder}로 스트리밍 변환된 results 배열을 반환한다.
+     * 이 경우 {@link #getJsonBody()}에는 results가 포함되지 않는다.
+     *
+     * @return 변환된 결과 목록 (스트리밍 변환을 하지 않았을 시 null)
+     */
+    List<Object> getResults() {
+        return results;
+    }
+
+    void setResults(List<Object> results) {
+        this.results = results;
+    }
+
+    /**
+     * 서버에 요청하지 않고 응답 캐시에서 가져온 결과인지 여부를 반환한다.
+     * @return 캐시 사용 여부
+     */
+    public boolean isFromCache() {
+        return isFromCache;
+    }
+
+    void setFromCache(boolean fromCache) {
+        this.isFromCache = fromCache;
+    }
+
+    static HashMap<String, String> convertHeaders(Header[] headers) {
         HashMap<String, String> result = new HashMap<String, String>(headers.length);
         for (Header header : headers) {
             result.put(header.getName(), header.getValue());
@@ -0,0 +1,28 @@
+package com.haru;
+
+/**
+ * 서버가 200이 아닌 HTTP 상태 코드로 응답했을 때 발생한다.
+ */
+public class HttpStatusException extends RuntimeException {
+
+    private final int statusCode;
+
+    public HttpStatusException(int statusCode, String statusLine) {
+        super(statusLine);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return HTTP 상태 코드
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * 서버 측의 일시적인 장애 (5xx, 429 Too Many Requests)인지 확인한다.
+     */
+    public boolean isServerError() {
+        return statusCode >= 500 || statusCode == 429;
+    }
+}
@@ -0,0 +1,26 @@
+package com.haru;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/**
+ * SDK의 모든 HTTP 요청을 실제로 전송하는 엔진이다.
+ * {@link com.haru.Haru#init(android.content.Context, String, String, String, HttpTransport)}에서
+ * 사용할 엔진을 선택할 수 있으며, 지정하지 않으면 {@link com.haru.ApacheHttpTransport}를 사용한다.
+ *
+ * @see com.haru.ApacheHttpTransport
+ * @see com.haru.UrlConnectionHttpTransport
+ */
+public interface HttpTransport {
+
+    /**
+     * 요청을 보내고 응답을 받는다. 백그라운드 스레드에서 호출된다.
+     * 응답 본문은 스트림으로 제공되어야 하며, 다 읽고 닫으면 연결이 재사용될 수 있어야 한다.
+     *
+     * @param request HTTP 요청
+     * @return HTTP 응답
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException;
+}
@@ -9,6 +9,8 @@ import android.util.Log;
 
 import com.haru.callback.GetCallback;
 import com.haru.callback.SaveCallback;
+import com.haru.task.Continuation;
+import com.haru.task.Task;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -28,7 +30,7 @@ import java.util.UUID;
 public final class Installation extends Entity {
 
     public static final String CLASS_NAME = "Installations";
-    private static final String CURRENT_INSTALLATION_TAG = "__currentInstallation";
+    static final String CURRENT_INSTALLATION_TAG = "__currentInstallation";
 
     private static boolean initialized = false;
 
@@ -36,6 +38,9 @@ public final class Installation extends Entity {
     private static Context context;
     private static Installation currentInstallation;
 
+    // 로컬 데이터스토어로부터 현재 설치 정보를 불러오는 Task
+    private static Task<Installation> loadTask;
+
     /**
      * Cannot initiate from other place - the installation must be only one.
      */
@@ -50,43 +55,48 @@ public final class Installation extends Entity {
     public static void init(Context appContext, final SaveCallback makeCallback) {
         context = appContext;
 
-        // check already have installation in local
-        ArrayList<Installation> entities =
-                LocalEntityStore.retrieveEntitiesByTag(CLASS_NAME, CURRENT_INSTALLATION_TAG);
-
-        if (entities == null || entities.size() == 0) {
-            // this is the first time.
-            currentInstallation = new Installation();
-            Haru.logI("Making a new installation...");
-
-            // update and save
-            currentInstallation.fillInformation();
-            currentInstallation.saveInBackground(new SaveCallback() {
-                @Override
-                public void done(HaruException error) {
-                    if (error != null) {
-                        Log.e("Haru", "An error occured when saving installation first time : " + error.getMessage());
-                        error.printStackTrace();
-                        if (makeCallback != null) makeCallback.done(error);
-                        return;
+        // check already have installation in local, without blocking the caller
+        loadTask = LocalEntityStore.<Installation>retrievePinnedEntitiesInBackground(CLASS_NAME, CURRENT_INSTALLATION_TAG)
+                .onSuccess(new Continuation<ArrayList<Installation>, Installation>() {
+                    @Override
+                    public Installation then(Task<ArrayList<Installation>> task) throws Exception {
+                        ArrayList<Installation> entities = task.getResult();
+                        if (entities != null && entities.size() > 0) {
+                            // use the old one.
+                            currentInstallation = entities.get(0);
+                            Haru.logI("Installation already exists (%s)", currentInstallation.entityId);
+
+                            // update and save
+//                          currentInstallation.fillInformation();
+//                          currentInstallation.saveInBackground();
+                            return currentInstallation;
+                        }
+
+                        // this is the first time.
+                        currentInstallation = new Installation();
+                        Haru.logI("Making a new installation...");
+
+                        // update and save
+                        currentInstallation.fillInformation();
+                        currentInstallation.saveInBackground(new SaveCallback() {
+                            @Override
+                            public void done(HaruException error) {
+                                if (error != null) {
+                                    Log.e("Haru", "An error occured when saving installation first time : " + error.getMessage());
+                                    error.printStackTrace();
+                                    if (makeCallback != null) makeCallback.done(error);
+                                    return;
+                                }
+
+                                // save in local
+                                LocalEntityStore.saveEntityInBackground(currentInstallation, CURRENT_INSTALLATION_TAG);
+
+                                if (makeCallback != null) makeCallback.done(null);
+                            }
+                        });
+                        return currentInstallation;
                     }
-
-                    // save in local
-                    LocalEntityStore.saveEntity(currentInstallation, CURRENT_INSTALLATION_TAG);
-
-                    if (makeCallback != null) makeCallback.done(null);
-                }
-            });
-
-        } else {
-            // use the old one.
-            currentInstallation = entities.get(0);
-            Haru.logI("Installation already exists (%s)", currentInstallation.entityId);
-
-            // update and save
-//          currentInstallation.fillInformation();
-//          currentInstallation.saveInBackground();
-        }
+                });
         initialized = true;
     }
 
@@ -235,9 +245,14 @@ public final class Installation extends Entity {
 
     /**
      * 현재 이 앱의 설치 정보를 반환한다.
+     * 아직 로컬 데이터스토어로부터 불러오는 중이라면 기다린다. (데이터베이스가 열리고 한 번 읽는 시간)
      * @return {@link com.haru.Installation}
      */
     public static Installation getCurrentInstallation() {
+        if (currentInstallation == null && loadTask != null) {
+            // 아직 로컬 데이터스토어로부터 불러오는 중이면 기다린다.
+            return LocalEntityStore.await(loadTask);
+        }
         return currentInstallation;
     }
 
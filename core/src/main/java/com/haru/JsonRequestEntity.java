@@ -0,0 +1,163 @@
+package com.haru;
+
+import com.haru.json.JsonWriter;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * 요청 본문을 JSON 문자열로 만들지 않고, UTF-8로 바로 쓰는 HTTP Entity이다.
+ *
+ * 대부분의 요청은 작으므로, {@link #BUFFER_THRESHOLD}보다 작은 본문은 미리 써두고 Content-Length와 함께 보낸다.
+ * 그보다 큰 본문 (대량 저장 등)만 전송할 때 스트림에 바로 쓰며, 길이를 미리 알 수 없으므로 chunked 방식으로 전송된다.
+ */
+class JsonRequestEntity extends AbstractHttpEntity {
+
+    // 이보다 작은 본문은 메모리에 써두고 길이와 함께 보낸다.
+    static final int BUFFER_THRESHOLD = 64 * 1024;
+
+    private final Object body;
+    private volatile long bytesWritten = -1;
+
+    // 미리 써둔 본문 (BUFFER_THRESHOLD를 넘었을 시 null)
+    private byte[] buffered;
+    private boolean isPrepared = false;
+
+    /**
+     * @param body 보낼 내용 (JSONObject, Map, List, {@link com.haru.json.JsonWritable} 등)
+     */
+    JsonRequestEntity(Object body) {
+        this.body = body;
+        setContentType("application/json; charset=utf-8");
+    }
+
+    /**
+     * 본문이 작다면 미리 써둔다. 처음 길이를 물어볼 때 한 번만 실행된다.
+     */
+    private synchronized void prepare() {
+        if (isPrepared) return;
+        isPrepared = true;
+
+        BoundedOutputStream out = new BoundedOutputStream(BUFFER_THRESHOLD);
+        try {
+            write(out);
+            buffered = out.toByteArray();
+
+        } catch (IOException e) {
+            // 본문이 크다 : 전송할 때 스트림에 바로 쓴다.
+            buffered = null;
+        }
+    }
+
+    @Override
+    public boolean isChunked() {
+        prepare();
+        return buffered == null;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        prepare();
+        return buffered != null ? buffered.length : -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        prepare();
+        if (buffered != null) {
+            out.write(buffered);
+            bytesWritten = buffered.length;
+            return;
+        }
+
+        CountingOutputStream counting = new CountingOutputStream(out);
+        write(counting);
+        bytesWritten = counting.count;
+    }
+
+    private void write(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "utf-8"), 8192));
+        writer.value(body);
+        writer.flush();
+    }
+
+    /**
+     * @return 마지막으로 쓴 본문의 크기 (bytes, 아직 쓰지 않았을 시 -1)
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * 최대 크기를 넘으면 더 쓰지 않고 예외를 던지는 메모리 스트림.
+     */
+    private static class BoundedOutputStream extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        private final int limit;
+
+        BoundedOutputStream(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer.size() + 1 > limit) throw new IOException("Body exceeds " + limit + " bytes");
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (buffer.size() + length > limit) throw new IOException("Body exceeds " + limit + " bytes");
+            buffer.write(bytes, offset, length);
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
+        }
+    }
+}
@@ -5,54 +5,369 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+import com.haru.task.Continuation;
 import com.haru.task.Task;
 
-import org.json.JSONObject;
+import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Entity를 로컬에 저장하기 위한 로컬 데이터 스토어이다.
+ *
+ * 모든 쓰기는 하나의 쓰기 스레드에서 요청된 순서대로 실행된다. 쓰기 스레드는 그동안 쌓인 쓰기들을 모아
+ * 하나의 트랜잭션으로 저장하며, 같은 Entity에 대한 이전 쓰기는 마지막 쓰기로 합친다.
+ * 읽기는 읽기 스레드들에서 실행되고, 그 전에 요청된 쓰기가 모두 끝난 후에 실행된다.
+ *
+ * 모든 작업은 {@link com.haru.task.Task}를 반환하므로, 호출한 스레드 (주로 UI 스레드)는 디스크를 기다리지 않는다.
  */
 class LocalEntityStore {
 
     private static final String DB_NAME = "local_entities";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 7;
+
+    private static final int READ_THREADS = 2;
 
     private static SQLiteOpenHelper sqLiteHelper;
 
-    static void initialize(Context context) {
-        sqLiteHelper =  new SQLiteOpenHelper(context, DB_NAME, null, DB_VERSION) {
-            @Override
-            public void onCreate(SQLiteDatabase sqLiteDatabase) {
-                createDatabase(sqLiteDatabase);
-            }
+    // 앱이 실행되는 동안 계속 열어두는 연결. 요청마다 다시 열지 않는다.
+    private static SQLiteDatabase database;
 
-            @Override
-            public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i2) {
-                // 기존 (legacy) 데이터를 로드한다.
+    // 초기화되기 전에 선언된 인덱스들 (className, field)
+    private static final ArrayList<String[]> pendingIndexes = new ArrayList<String[]>();
+
+    private static final ExecutorService writeExecutor =
+            Executors.newSingleThreadExecutor(newThreadFactory("Haru-LocalStore-Writer"));
+    private static final ExecutorService readExecutor =
+            Executors.newFixedThreadPool(READ_THREADS, newThreadFactory("Haru-LocalStore-Reader"));
 
-                // 기존 테이블을 전부 날린다.
-                sqLiteDatabase.execSQL("DROP TABLE IF EXISTS HaruEntity");
+    // 쓰기 스레드가 아직 실행하지 않은 쓰기들
+    private static final LinkedList<Write> pendingWrites = new LinkedList<Write>();
+    private static boolean isFlushScheduled = false;
 
-                // 새로운 테이블을 생성한다.
-                this.onCreate(sqLiteDatabase);
+    // 마지막으로 요청된 쓰기. 읽기는 이 쓰기가 끝난 후에 실행된다.
+    private static Task lastWrite = Task.forResult(null);
 
-                // 다시 데이터를 넣는다.
+    // 데이터베이스가 열리면 끝나는 태스크. 순서가 필요 없는 읽기는 이것만 기다린다.
+    private static Task openTask = Task.forResult(null);
+
+    // Outbox에 남은 변경 사항의 수. 데이터베이스가 열릴 때 세고, 이후에는 쓰기가 끝날 때마다 쓰기 스레드에서 바뀐다.
+    private static final AtomicInteger outboxSize = new AtomicInteger(0);
+
+    // 쓰기 스레드에서만 사용되는, 미리 컴파일된 구문들
+    private static SQLiteStatement insertStatement;
+    private static SQLiteStatement deleteStatement;
+
+    /**
+     * 쓰기 스레드에서 실행되는 쓰기 하나.
+     */
+    private static abstract class Write {
+        // 같은 키를 가진 이전 쓰기들은 이 쓰기로 대체된다. (null일 시 대체하지 않는다)
+        final String key;
+        final Task.TaskCompletionSource completion = Task.create();
+
+        Write(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 쓰기를 실행한다. 쓰기 스레드의 트랜잭션 안에서 호출된다.
+         * @return 태스크의 결과
+         */
+        abstract Object run(SQLiteDatabase db) throws Exception;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private int threadCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + (threadCount++));
+                thread.setDaemon(true);
+                return thread;
             }
         };
+    }
 
-        sqLiteHelper.getWritableDatabase();
-        sqLiteHelper.close();
+    /**
+     * 로컬 데이터스토어를 초기화한다. 데이터베이스는 쓰기 스레드에서 열린다.
+     * @param context Application Context
+     */
+    static void initialize(Context context) {
+        synchronized (pendingIndexes) {
+            sqLiteHelper = new SQLiteOpenHelper(context, DB_NAME, null, DB_VERSION) {
+                @Override
+                public void onCreate(SQLiteDatabase sqLiteDatabase) {
+                    createDatabase(sqLiteDatabase);
+                }
+
+                @Override
+                public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+                    // 버전 2 : 오프라인 변경 사항 큐 (HaruOutbox)
+                    if (oldVersion < 2) createOutbox(sqLiteDatabase);
+
+                    // 버전 3 : 쿼리 결과 캐시 (HaruQueryCache)
+                    if (oldVersion < 3) createQueryCache(sqLiteDatabase);
+
+                    // 버전 4 : 필드 인덱스 (HaruIndexDefinition, HaruIndexString, ...)
+                    // 인덱스 자체의 형식은 LocalIndex.INDEX_VERSION으로 따로 관리된다.
+                    if (oldVersion < 4) LocalIndex.createTables(sqLiteDatabase);
+
+                    // 버전 5 : 바이너리 레코드 (HaruKeyDictionary). JSON으로 저장된 Entity들을 변환하고,
+                    // 캐시된 쿼리 결과는 버린다.
+                    if (oldVersion < 5) {
+                        LocalRecord.createTables(sqLiteDatabase);
+                        migrateToRecords(sqLiteDatabase);
+                        sqLiteDatabase.delete("HaruQueryCache", null, null);
+                    }
+
+                    // 버전 6 : Entity 정리를 위한 레코드 크기와 마지막 접근 시각 (LocalEviction)
+                    if (oldVersion < 6) addEvictionColumns(sqLiteDatabase);
+
+                    // 버전 7 : 쿼리 결과 캐시의 만료 시각 (expiresAt). 캐시된 결과는 버린다.
+                    if (oldVersion < 7) {
+                        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS HaruQueryCache;");
+                        createQueryCache(sqLiteDatabase);
+                    }
+                }
+            };
+
+        }
+
+        // 단일 스레드이므로 이후에 요청된 쓰기들은 데이터베이스가 열린 후에 실행되고,
+        // 읽기들은 열리기를 기다린다.
+        final Task.TaskCompletionSource opened = Task.create();
+        synchronized (pendingWrites) {
+            lastWrite = opened.getTask();
+            openTask = lastWrite;
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        open();
+                    } finally {
+                        opened.setResult(null);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 데이터베이스를 연다. 쓰기 스레드에서 실행된다.
+     */
+    private static void open() {
+        SQLiteDatabase sqLiteDatabase = sqLiteHelper.getWritableDatabase();
+
+        // WAL 모드에서는 쓰는 동안에도 읽을 수 있고, 트랜잭션마다 전체 파일을 동기화하지 않는다. (API 11+)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            sqLiteDatabase.enableWriteAheadLogging();
+        }
+
+        insertStatement = sqLiteDatabase.compileStatement(
+                "INSERT OR REPLACE INTO HaruEntity (className, entityId, data, tag, size, accessedAt) "
+                        + "VALUES (?, ?, ?, ?, ?, ?)");
+        deleteStatement = sqLiteDatabase.compileStatement("DELETE FROM HaruEntity WHERE entityId=?");
+
+        LocalIndex.load(sqLiteDatabase);
+        synchronized (pendingIndexes) {
+            for (String[] index : pendingIndexes) LocalIndex.declare(sqLiteDatabase, index[0], index[1]);
+            pendingIndexes.clear();
+            database = sqLiteDatabase;
+        }
+        outboxSize.set(countOutbox());
     }
 
     static boolean isInitialized() {
         return sqLiteHelper != null;
     }
 
+    private static SQLiteDatabase getDatabase() {
+        if (database == null) {
+            throw new IllegalStateException("You need to call Haru.init() before using local datastore.");
+        }
+        return database;
+    }
+
+    /**
+     * 쓰기들을 쓰기 스레드에 요청한다. 함께 요청된 쓰기들은 같은 트랜잭션에서 실행된다.
+     * @return 각 쓰기의 태스크
+     */
+    private static ArrayList<Task<?>> enqueue(List<? extends Write> writes) {
+        ArrayList<Task<?>> tasks = new ArrayList<Task<?>>(writes.size());
+        synchronized (pendingWrites) {
+            for (Write write : writes) {
+                pendingWrites.add(write);
+                lastWrite = write.completion.getTask();
+                tasks.add(lastWrite);
+            }
+            if (!isFlushScheduled) {
+                isFlushScheduled = true;
+                writeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }
+        return tasks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Task<T> enqueue(Write write) {
+        ArrayList<Write> writes = new ArrayList<Write>(1);
+        writes.add(write);
+        return (Task<T>) enqueue(writes).get(0);
+    }
+
+    /**
+     * 쌓여있는 쓰기들을 하나의 트랜잭션으로 실행한다. 쓰기 스레드에서 실행된다.
+     */
+    private static void flush() {
+        ArrayList<Write> writes;
+        synchronized (pendingWrites) {
+            writes = new ArrayList<Write>(pendingWrites);
+            pendingWrites.clear();
+            isFlushScheduled = false;
+        }
+
+        // 같은 행에 대한 쓰기는 마지막 쓰기만 실행한다.
+        HashMap<String, Write> latest = new HashMap<String, Write>();
+        for (Write write : writes) {
+            if (write.key != null) latest.put(write.key, write);
+        }
+        ArrayList<Write> effective = new ArrayList<Write>(writes.size());
+        for (Write write : writes) {
+            if (write.key == null || latest.get(write.key) == write) effective.add(write);
+        }
+
+        HashMap<Write, Object> results = new HashMap<Write, Object>();
+        HashMap<Write, Exception> errors = new HashMap<Write, Exception>();
+        try {
+            runInTransaction(effective, results);
+
+        } catch (Exception e) {
+            LocalRecord.invalidate();
+            results.clear();
+
+            // 하나의 쓰기가 실패해도 다른 쓰기들은 저장되도록, 하나씩 다시 실행한다.
+            for (Write write : effective) {
+                try {
+                    runInTransaction(Collections.singletonList(write), results);
+                } catch (Exception error) {
+                    LocalRecord.invalidate();
+                    errors.put(write, error);
+                }
+            }
+        }
+
+        for (Write write : writes) {
+            Write executed = write.key != null ? latest.get(write.key) : write;
+            if (errors.containsKey(executed)) write.completion.setError(errors.get(executed));
+            else write.completion.setResult(results.get(executed));
+        }
+        if (effective.size() > 1) {
+            Haru.logD("LocalEntityStore : wrote %d of %d requests in a transaction", effective.size(), writes.size());
+        }
+        if (LocalEviction.checkDue()) enqueue(new EvictionWrite());
+    }
+
+    private static void runInTransaction(List<Write> writes, HashMap<Write, Object> results) throws Exception {
+        SQLiteDatabase sqLiteDatabase = getDatabase();
+        sqLiteDatabase.beginTransaction();
+        try {
+            for (Write write : writes) results.put(write, write.run(sqLiteDatabase));
+            sqLiteDatabase.setTransactionSuccessful();
+        } finally {
+            sqLiteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * 읽기를 읽기 스레드에 요청한다. 그 전에 요청된 쓰기들이 끝난 후에 실행된다.
+     */
+    private static <T> Task<T> read(Callable<T> callable) {
+        return read(callable, true);
+    }
+
+    /**
+     * 읽기를 읽기 스레드에 요청한다.
+     * @param isOrdered false일 시 그 전에 요청된 쓰기들을 기다리지 않고, 데이터베이스가 열리기만을 기다린다.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Task<T> read(final Callable<T> callable, boolean isOrdered) {
+        Task after;
+        synchronized (pendingWrites) {
+            after = isOrdered ? lastWrite : openTask;
+        }
+        return after.continueWith(new Continuation<Object, T>() {
+            @Override
+            public T then(Task<Object> task) throws Exception {
+                T result = callable.call();
+                if (LocalEviction.checkDue()) enqueue(new EvictionWrite());
+                return result;
+            }
+        }, readExecutor);
+    }
+
+    /**
+     * Entity 정리를 요청한다. 이미 요청되어있다면 아무 일도 하지 않는다.
+     */
+    static void scheduleEviction() {
+        if (isInitialized() && LocalEviction.markScheduled()) enqueue(new EvictionWrite());
+    }
+
+    /**
+     * 접근 시각을 기록하고 Entity들을 조금씩 정리하는 쓰기. 정리할 Entity가 남았다면 다음 정리를 요청한다.
+     */
+    private static class EvictionWrite extends Write {
+        EvictionWrite() {
+            super("__eviction");
+        }
+
+        @Override
+        Object run(SQLiteDatabase db) {
+            if (LocalEviction.run(db)) scheduleEviction();
+            return null;
+        }
+    }
+
+    /**
+     * 태스크가 끝날 때까지 기다린다. 동기 API를 위한 것이며, UI 스레드에서 호출하면 그동안 UI가 멈춘다.
+     * @return 태스크의 결과
+     */
+    static <T> T await(Task<T> task) {
+        try {
+            task.waitForCompletion();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for local datastore.", e);
+        }
+
+        if (task.isFaulted()) {
+            Exception error = task.getError();
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            throw new RuntimeException(error);
+        }
+        return task.getResult();
+    }
+
     /**
      * 데이터베이스 스키마 구조를 생성한다.
      * @param db
@@ -66,131 +381,637 @@ class LocalEntityStore {
                 + "entityId TEXT NOT NULL,"
                 + "data TEXT,"
                 + "tag TEXT,"
+                + "size INTEGER NOT NULL DEFAULT 0,"
+                + "accessedAt INTEGER NOT NULL DEFAULT 0,"
                 + "UNIQUE(className, entityId));";
 
         db.execSQL(sql);
+        db.execSQL("CREATE INDEX HaruEntity_accessedAt ON HaruEntity (accessedAt);");
+        createOutbox(db);
+        createQueryCache(db);
+        LocalIndex.createTables(db);
+        LocalRecord.createTables(db);
     }
 
     /**
-     * Entity를 로컬 데이터스토어에 저장한다.
+     * JSON으로 저장된 Entity들을 바이너리 레코드로 변환한다. onUpgrade의 트랜잭션 안에서 호출된다.
+     * @param db
+     */
+    private static void migrateToRecords(SQLiteDatabase db) {
+        Haru.logI("Migrating local entities to binary records...");
+        SQLiteStatement update = db.compileStatement("UPDATE HaruEntity SET data=? WHERE rowid=?");
+        long lastRowId = -1;
+        try {
+            while (true) {
+                Cursor cursor = db.rawQuery("SELECT rowid, className, data FROM HaruEntity "
+                        + "WHERE rowid>? ORDER BY rowid LIMIT 200", new String[] { String.valueOf(lastRowId) });
+                if (cursor == null) return;
+
+                int count = 0;
+                while (cursor.moveToNext()) {
+                    count++;
+                    lastRowId = cursor.getLong(0);
+                    if (cursor.isNull(2)) continue;
+
+                    String className = cursor.getString(1);
+                    try {
+                        HashMap<String, Object> data = LocalRecord.decode(db, className, cursor.getBlob(2));
+                        update.bindBlob(1, LocalRecord.encode(db, className, data));
+                        update.bindLong(2, lastRowId);
+                        update.execute();
+
+                    } catch (JSONException e) {
+                        Haru.logE("LocalEntityStore : skipping malformed entity at row %d", lastRowId);
+                    }
+                }
+                cursor.close();
+                if (count == 0) return;
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Entity 정리에 필요한 레코드 크기와 마지막 접근 시각을 추가한다. 기존 Entity들은 지금 접근된 것으로 본다.
+     * @param db
+     */
+    private static void addEvictionColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE HaruEntity ADD COLUMN size INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE HaruEntity ADD COLUMN accessedAt INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE HaruEntity SET size=IFNULL(LENGTH(data), 0), accessedAt=" + System.currentTimeMillis());
+        db.execSQL("CREATE INDEX HaruEntity_accessedAt ON HaruEntity (accessedAt);");
+    }
+
+    /**
+     * 서버에 보내지 못한 변경 사항 (Outbox)을 저장할 테이블을 생성한다.
+     * @param db
+     */
+    private static void createOutbox(SQLiteDatabase db) {
+        String sql = "CREATE TABLE HaruOutbox ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "className TEXT NOT NULL,"
+                + "entityId TEXT,"
+                + "localId TEXT,"
+                + "method TEXT NOT NULL,"
+                + "data TEXT NOT NULL,"
+                + "createdAt INTEGER);";
+
+        db.execSQL(sql);
+    }
+
+    /**
+     * 쿼리 결과를 캐시할 테이블을 생성한다.
+     * @param db
+     */
+    private static void createQueryCache(SQLiteDatabase db) {
+        String sql = "CREATE TABLE HaruQueryCache ("
+                + "queryKey TEXT PRIMARY KEY,"
+                + "className TEXT NOT NULL,"
+                + "results TEXT NOT NULL,"
+                + "cachedAt INTEGER NOT NULL,"
+                + "expiresAt INTEGER NOT NULL);";
+
+        db.execSQL(sql);
+        db.execSQL("CREATE INDEX HaruQueryCache_expiresAt ON HaruQueryCache (expiresAt);");
+    }
+
+    /**
+     * 필드 인덱스를 추가한다. 이미 저장된 Entity들도 인덱스된다.
+     * 초기화되기 전이라면 초기화할 때 추가된다.
+     * @param className 클래스 이름 (Collection name)
+     * @param field 필드 이름 (중첩된 필드는 "a.b")
+     */
+    static Task<Void> addIndexInBackground(final String className, final String field) {
+        synchronized (pendingIndexes) {
+            if (sqLiteHelper == null) {
+                pendingIndexes.add(new String[] { className, field });
+                return Task.forResult(null);
+            }
+        }
+        return enqueue(new Write(null) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                LocalIndex.declare(db, className, field);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 필드 인덱스를 제거한다.
+     * @param className 클래스 이름 (Collection name)
+     * @param field 필드 이름
+     */
+    static Task<Void> removeIndexInBackground(final String className, final String field) {
+        return enqueue(new Write(null) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                LocalIndex.drop(db, className, field);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Entity를 로컬 데이터스토어에 저장한다. 요청한 시점의 데이터가 저장된다.
      * @param entity 저장할 엔티티
      * @param tag 엔티티를 저장할 때 로컬 데이터스토어에 붙일 태그.
      *              null이 주어질 시 태그를 붙이지 않는다.
      */
-    static void saveEntity(Entity entity, String tag) {
+    static Task<Void> saveEntityInBackground(Entity entity, String tag) {
+        return enqueue(new SaveWrite(entity, tag));
+    }
 
-        try {
-            SQLiteDatabase sqLiteDatabase = sqLiteHelper.getWritableDatabase();
+    /**
+     * 여러 Entity를 하나의 트랜잭션으로 로컬 데이터스토어에 저장한다.
+     * @param entities 저장할 엔티티들
+     * @param tag 엔티티들에 붙일 태그 (null일 시 태그를 붙이지 않는다)
+     */
+    static Task<Void> saveAllInBackground(Collection<? extends Entity> entities, String tag) {
+        ArrayList<Write> writes = new ArrayList<Write>(entities.size());
+        for (Entity entity : entities) writes.add(new SaveWrite(entity, tag));
+        return Task.whenAll(enqueue(writes));
+    }
 
-            ContentValues values = new ContentValues();
-            values.put("className", entity.getClassName());
-            values.put("entityId", entity.getId());
-            values.put("data", entity.toJson().toString());
-            if (tag != null) values.put("tag", tag);
+    /**
+     * Entity를 저장하는 쓰기. 데이터는 요청한 스레드에서 미리 복사해둔다.
+     */
+    private static class SaveWrite extends Write {
+        final String className, entityId, tag;
+        final HashMap<String, Object> data;
+
+        SaveWrite(Entity entity, String tag) {
+            super(entity.getClassName() + "/" + entity.getId());
+            this.className = entity.getClassName();
+            this.entityId = entity.getId();
+            this.tag = tag;
+            synchronized (entity.lock) {
+                this.data = entity.getAll();
+            }
+        }
 
-            sqLiteDatabase.insertWithOnConflict("HaruEntity", null, values, SQLiteDatabase.CONFLICT_REPLACE);
-            sqLiteDatabase.close();
+        @Override
+        Object run(SQLiteDatabase db) {
+            byte[] record = LocalRecord.encode(db, className, data);
+            insertStatement.bindString(1, className);
+            insertStatement.bindString(2, entityId);
+            insertStatement.bindBlob(3, record);
+            if (tag != null) insertStatement.bindString(4, tag);
+            else insertStatement.bindNull(4);
+            insertStatement.bindLong(5, record.length);
+            insertStatement.bindLong(6, System.currentTimeMillis());
+            insertStatement.executeInsert();
+            LocalEviction.recordWrite(record.length);
+
+            // 인덱스도 같은 트랜잭션에서 갱신한다.
+            LocalIndex.update(db, className, entityId, data);
+            return null;
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * 해당 Entity를 로컬에서 삭제한다.
+     * @param entity 삭제하길 원하는 Entity
+     */
+    static Task<Void> deleteEntityInBackground(Entity entity) {
+        return enqueue(new DeleteWrite(entity));
+    }
+
+    /**
+     * 여러 Entity를 하나의 트랜잭션으로 로컬에서 삭제한다.
+     * @param entities 삭제하길 원하는 Entity들
+     */
+    static Task<Void> deleteAllInBackground(Collection<? extends Entity> entities) {
+        ArrayList<Write> writes = new ArrayList<Write>(entities.size());
+        for (Entity entity : entities) writes.add(new DeleteWrite(entity));
+        return Task.whenAll(enqueue(writes));
+    }
+
+    private static class DeleteWrite extends Write {
+        final String className, entityId;
+
+        DeleteWrite(Entity entity) {
+            super(entity.getClassName() + "/" + entity.getId());
+            this.className = entity.getClassName();
+            this.entityId = entity.getId();
         }
+
+        @Override
+        Object run(SQLiteDatabase db) {
+            deleteStatement.bindString(1, entityId);
+            deleteStatement.execute();
+            LocalIndex.delete(db, className, entityId);
+            return null;
+        }
+    }
+
+    /**
+     * 해당 태그에 해당하는 Entity를 전부 삭제한다.
+     * @param className 클래스 이름 (Collection name)
+     * @param tag 태그 이름
+     */
+    static Task<Void> deleteTagInBackground(final String className, final String tag) {
+        return enqueue(new Write(null) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                db.delete("HaruEntity", "className=? AND tag=?", new String[] { className, tag });
+                LocalIndex.deleteOrphans(db, className);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Entity를 로컬 데이터스토어로부터 불러온다.
+     * @param className Entity의 className (Collection name)
+     * @param entityId Entity의 ID
+     * @return 해당 Entity (없을 시 null)
+     */
+    static <T extends Entity> Task<T> retrieveEntityInBackground(final String className, final String entityId) {
+        return read(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                ArrayList<T> entities = retrieve(className,
+                        "SELECT data, entityId FROM HaruEntity WHERE className=? AND entityId=?",
+                        new String[] { className, entityId });
+                return entities.isEmpty() ? null : entities.get(0);
+            }
+        });
+    }
+
+    /**
+     * 한 Class 안의 모든 Entity를 로컬 데이터스토어로부터 불러온다.
+     * @param className Entity의 className (Collection name)
+     * @return Entity List
+     */
+    static <T extends Entity> Task<ArrayList<T>> retrieveAllEntitiesInBackground(final String className) {
+        return read(new Callable<ArrayList<T>>() {
+            @Override
+            public ArrayList<T> call() throws Exception {
+                return retrieve(className,
+                        "SELECT data, entityId FROM HaruEntity WHERE className=?",
+                        new String[] { className });
+            }
+        });
+    }
+
+    /**
+     * 고정된 태그 (현재 유저, 현재 설치 정보)의 Entity들을 불러온다.
+     * 이 Entity들은 한 번 불러온 후에는 메모리에 유지되므로, 앞서 요청된 쓰기들을 기다리지 않는다.
+     * @param className Entity의 className (Collection name)
+     * @param tag 고정된 태그 이름
+     * @return Entity List
+     */
+    static <T extends Entity> Task<ArrayList<T>> retrievePinnedEntitiesInBackground(final String className,
+                                                                                    final String tag) {
+        return read(new Callable<ArrayList<T>>() {
+            @Override
+            public ArrayList<T> call() throws Exception {
+                return retrieve(className,
+                        "SELECT data, entityId FROM HaruEntity WHERE className=? AND tag=?",
+                        new String[] { className, tag });
+            }
+        }, false);
+    }
+
+    /**
+     * 쿼리 조건에 맞는 Entity들을 로컬 데이터스토어로부터 불러온다.
+     * @param query {@link com.haru.LocalQuery}
+     * @return 조건에 맞는 Entity List (정렬 및 페이지 적용)
+     */
+    static <T extends Entity> Task<List<T>> findInBackground(final LocalQuery query) {
+        return read(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return find(query);
+            }
+        });
     }
 
     @SuppressWarnings("unchecked")
     private static <T extends Entity> ArrayList<T> retrieve(String className,
                                               String sql,
                                               String[] selectionArgs) {
-        SQLiteDatabase sqLiteDatabase = sqLiteHelper.getReadableDatabase();
+        SQLiteDatabase sqLiteDatabase = getDatabase();
         Cursor cursor = sqLiteDatabase.rawQuery(sql, selectionArgs);
 
         if (cursor == null) {
             throw new RuntimeException("Failed to query to local datastore.");
         }
 
-        // Convert JSON Data to Entity object
+        // Convert local record to Entity object
         try {
             ArrayList<T> entities = new ArrayList<T>();
             while (cursor.moveToNext()) {
-                entities.add((T) Entity.fromJsonToSubclass(Entity.findClassByName(className),
+                entities.add((T) Entity.fromLocalData(Entity.findClassByName(className),
                         className,
                         cursor.getString(cursor.getColumnIndex("entityId")),
-                        new JSONObject(cursor.getString(cursor.getColumnIndex("data")))));
+                        LocalRecord.decode(sqLiteDatabase, className, cursor.getBlob(cursor.getColumnIndex("data")))));
             }
             cursor.close();
-            //sqLiteHelper.close();
+            LocalEviction.touch(entities);
             return entities;
 
         } catch (Exception e) {
-            sqLiteHelper.close();
-            throw new RuntimeException("Failed to convert entity from local data: Malformed JSON", e);
+            cursor.close();
+            throw new RuntimeException("Failed to convert entity from local data: Malformed record", e);
         }
     }
 
     /**
-     * Entity를 로컬 데이터스토어로부터 불러온다.
-     * @param className Entity의 className (Collection name)
-     * @param entityId Entity의 ID
+     * 쿼리 조건에 맞는 Entity들을 로컬 데이터스토어로부터 불러온다.
+     * @param query {@link com.haru.LocalQuery}
+     * @return 조건에 맞는 Entity List (정렬 및 페이지 적용)
      */
     @SuppressWarnings("unchecked")
-    static <T extends Entity> T retriveEntity(String className, String entityId) {
+    private static <T extends Entity> ArrayList<T> find(LocalQuery query) {
+        String sql = "SELECT entityId, data FROM HaruEntity WHERE " + query.getSelection();
+        String limit = query.getSqlLimit();
+        if (limit != null) sql += " ORDER BY rowid LIMIT " + limit;
+
+        SQLiteDatabase sqLiteDatabase = getDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery(sql, query.getSelectionArgs());
 
-        return (T) retrieve(className,
-                "SELECT data, entityId FROM HaruEntity WHERE className=? AND entityId=?",
-                new String[] { className, entityId }).get(0);
+        if (cursor == null) {
+            throw new RuntimeException("Failed to query to local datastore.");
+        }
+
+        try {
+            // 지원하지 않는 조건은 matches에서 예외를 던지므로, 커서는 항상 finally에서 닫는다.
+            ArrayList<LocalQuery.Row> rows = new ArrayList<LocalQuery.Row>();
+            try {
+                while (cursor.moveToNext()) {
+                    LocalQuery.Row row = new LocalQuery.Row(cursor.getString(0),
+                            LocalRecord.decode(sqLiteDatabase, query.className, cursor.getBlob(1)));
+                    if (query.matches(row)) rows.add(row);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            Class<? extends Entity> classObject = Entity.findClassByName(query.className);
+            if (classObject == null) classObject = Entity.class;
+
+            ArrayList<T> entities = new ArrayList<T>();
+            for (LocalQuery.Row row : query.sortAndPage(rows)) {
+                entities.add((T) Entity.fromLocalData(classObject, query.className, row.entityId, row.data));
+            }
+            LocalEviction.touch(entities);
+            return entities;
+
+        } catch (JSONException e) {
+            throw new RuntimeException("Failed to convert entity from local data: Malformed record", e);
+
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to convert entity from local data", e);
+        }
     }
 
     /**
-     * 한 Class 안의 모든 Entity를 로컬 데이터스토어로부터 불러온다.
-     * @param className Entity의 className (Collection name)
-     * @return Entity List
+     * 서버에 보내지 못한 변경 사항을 Outbox에 추가한다.
+     * @param mutation 변경 사항
+     * @return 추가된 행의 ID
      */
-    static <T extends Entity> ArrayList<T> retrieveAllEntities(String className) {
-        return retrieve(className,
-                "SELECT data, entityId FROM HaruEntity WHERE className=?",
-                new String[] { className });
+    static Task<Long> addOutboxMutationInBackground(OfflineQueue.Mutation mutation) {
+        final ContentValues values = new ContentValues();
+        values.put("className", mutation.className);
+        values.put("entityId", mutation.entityId);
+        values.put("localId", mutation.localId);
+        values.put("method", mutation.method);
+        values.put("data", mutation.data);
+        values.put("createdAt", System.currentTimeMillis());
+
+        return LocalEntityStore.<Long>enqueue(new Write(null) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                return db.insertOrThrow("HaruOutbox", null, values);
+            }
+        }).onSuccess(new Continuation<Long, Long>() {
+            @Override
+            public Long then(Task<Long> task) throws Exception {
+                outboxSize.incrementAndGet();
+                return task.getResult();
+            }
+        });
     }
 
     /**
-     * 한 Class 안에서 특정 태그를 가진 모든 Entity를 로컬 데이터스토어로부터 불러온다.
-     * @param className Entity의 className (Collection name)
-     * @param tag 태그 이름
-     * @return Entity List
+     * Outbox에 쌓인 변경 사항들을 저장된 순서대로 불러온다.
+     * @return 변경 사항 목록
+     */
+    static Task<ArrayList<OfflineQueue.Mutation>> retrieveOutboxInBackground() {
+        return read(new Callable<ArrayList<OfflineQueue.Mutation>>() {
+            @Override
+            public ArrayList<OfflineQueue.Mutation> call() throws Exception {
+                return retrieveOutbox();
+            }
+        });
+    }
+
+    /**
+     * Outbox에 쌓인 변경 사항의 수를 반환한다. 데이터베이스를 읽지 않으며, 열리기 전에는 0이다.
      */
-    static <T extends Entity> ArrayList<T> retrieveEntitiesByTag(String className, String tag) {
-        return retrieve(className,
-                "SELECT data, entityId FROM HaruEntity WHERE className=? AND tag=?",
-                new String[] { className, tag });
+    static int getOutboxSize() {
+        return outboxSize.get();
+    }
+
+    /**
+     * Outbox에 쌓인 변경 사항들을 저장된 순서대로 불러온다.
+     * @return 변경 사항 목록
+     */
+    private static ArrayList<OfflineQueue.Mutation> retrieveOutbox() {
+        SQLiteDatabase sqLiteDatabase = getDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery(
+                "SELECT id, className, entityId, localId, method, data FROM HaruOutbox ORDER BY id",
+                null);
+
+        if (cursor == null) {
+            throw new RuntimeException("Failed to query to local datastore.");
+        }
+
+        ArrayList<OfflineQueue.Mutation> mutations = new ArrayList<OfflineQueue.Mutation>();
+        while (cursor.moveToNext()) {
+            OfflineQueue.Mutation mutation = new OfflineQueue.Mutation();
+            mutation.id = cursor.getLong(0);
+            mutation.className = cursor.getString(1);
+            mutation.entityId = cursor.getString(2);
+            mutation.localId = cursor.getString(3);
+            mutation.method = cursor.getString(4);
+            mutation.data = cursor.getString(5);
+            mutations.add(mutation);
+        }
+        cursor.close();
+        return mutations;
     }
 
-    static Task saveEntityToLocalInBackground(final Entity entity) {
-        return Task.call(new Callable<Entity>() {
+    /**
+     * Outbox에 쌓인 변경 사항의 수를 반환한다.
+     */
+    private static int countOutbox() {
+        SQLiteDatabase sqLiteDatabase = getDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery("SELECT COUNT(*) FROM HaruOutbox", null);
+        int count = 0;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) count = cursor.getInt(0);
+            cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * 오프라인에서 생성된 Entity가 서버에 저장되면, 해당 Entity의 남은 변경 사항들에 서버 ID를 채운다.
+     * @param localId 오프라인 생성시 부여된 로컬 ID
+     * @param entityId 서버에서 부여받은 ID
+     */
+    static Task<Void> resolveOutboxEntityIdInBackground(final String localId, String entityId) {
+        final ContentValues values = new ContentValues();
+        values.put("entityId", entityId);
+
+        return enqueue(new Write(null) {
             @Override
-            public Entity call() throws Exception {
-                saveEntity(entity, null);
-                return entity;
+            Object run(SQLiteDatabase db) {
+                db.update("HaruOutbox", values, "localId=?", new String[] { localId });
+                return null;
             }
         });
     }
 
     /**
-     * 해당 Entity를 로컬에서 삭제한다.
-     * @param entity 삭제하길 원하는 Entity
+     * 서버로 전송된 변경 사항들을 Outbox에서 삭제한다.
+     * @param ids 삭제할 행의 ID들
      */
-    static void deleteEntityFromLocal(Entity entity) {
-        SQLiteDatabase sqLiteDatabase = sqLiteHelper.getWritableDatabase();
-        sqLiteDatabase.delete("HaruEntity", "entityId=?", new String[] { entity.getId() });
-        sqLiteDatabase.close();
+    static Task<Void> deleteOutboxMutationsInBackground(final List<Long> ids) {
+        return LocalEntityStore.<Integer>enqueue(new Write(null) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                int deleted = 0;
+                for (Long id : ids) {
+                    deleted += db.delete("HaruOutbox", "id=?", new String[] { String.valueOf(id) });
+                }
+                return deleted;
+            }
+        }).onSuccess(new Continuation<Integer, Void>() {
+            @Override
+            public Void then(Task<Integer> task) throws Exception {
+                outboxSize.addAndGet(-task.getResult());
+                return null;
+            }
+        });
     }
 
     /**
-     * 해당 태그에 해당하는 Entity를 전부 삭제한다.
+     * 쿼리 결과를 캐시한다. 아직 저장하지 않은 변경 사항은 제외하고 서버의 데이터만 저장한다.
+     * @param queryKey 쿼리의 캐시 키
      * @param className 클래스 이름 (Collection name)
-     * @param tag 태그 이름
+     * @param entities 쿼리 결과
+     * @param maxAgeMillis 캐시된 결과의 최대 수명 (ms). 이보다 오래된 결과는 정리할 때 삭제된다.
      */
-    static void deleteTagFromLocal(String className, String tag) {
-        SQLiteDatabase sqLiteDatabase = sqLiteHelper.getWritableDatabase();
-        sqLiteDatabase.delete("HaruEntity", "className=? AND tag=?",
-                new String[] { className, tag });
-        sqLiteDatabase.close();
+    static Task<Void> saveQueryResultsInBackground(final String queryKey,
+                                                   final String className,
+                                                   final List<? extends Entity> entities,
+                                                   final long maxAgeMillis) {
+        // 쓰기 스레드에서 인코딩하는 동안 Entity가 바뀌지 않도록 지금의 데이터를 복사해둔다.
+        final LinkedHashMap<String, HashMap<String, Object>> snapshot =
+                new LinkedHashMap<String, HashMap<String, Object>>();
+        for (Entity entity : entities) {
+            synchronized (entity.lock) {
+                snapshot.put(entity.getId(), new HashMap<String, Object>(entity.getEntityData()));
+            }
+        }
+
+        return enqueue(new Write("query:" + queryKey) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                long now = System.currentTimeMillis();
+                ContentValues values = new ContentValues();
+                values.put("queryKey", queryKey);
+                values.put("className", className);
+                values.put("results", LocalRecord.encodeList(db, className, snapshot));
+                values.put("cachedAt", now);
+                values.put("expiresAt", now + Math.min(maxAgeMillis, Long.MAX_VALUE - now));
+
+                db.insertWithOnConflict("HaruQueryCache", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 캐시된 쿼리 결과를 불러온다.
+     * @param queryKey 쿼리의 캐시 키
+     * @param className 클래스 이름 (Collection name)
+     * @param maxAgeMillis 캐시된 결과의 최대 수명 (ms). 이보다 오래된 결과는 무시한다.
+     * @return 쿼리 결과 (없거나 오래되었을 시 null)
+     */
+    static <T extends Entity> Task<List<T>> retrieveQueryResultsInBackground(final String queryKey,
+                                                                            final String className,
+                                                                            final long maxAgeMillis) {
+        return read(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return retrieveQueryResults(queryKey, className, maxAgeMillis);
+            }
+        });
+    }
+
+    /**
+     * 캐시된 쿼리 결과를 불러온다.
+     * @param queryKey 쿼리의 캐시 키
+     * @param className 클래스 이름 (Collection name)
+     * @param maxAgeMillis 캐시된 결과의 최대 수명 (ms). 이보다 오래된 결과는 무시한다.
+     * @return 쿼리 결과 (없거나 오래되었을 시 null)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Entity> ArrayList<T> retrieveQueryResults(String queryKey,
+                                                               String className,
+                                                               long maxAgeMillis) {
+        SQLiteDatabase sqLiteDatabase = getDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery(
+                "SELECT results, cachedAt FROM HaruQueryCache WHERE queryKey=?",
+                new String[] { queryKey });
+
+        if (cursor == null) {
+            throw new RuntimeException("Failed to query to local datastore.");
+        }
+
+        byte[] results = null;
+        if (cursor.moveToFirst()) {
+            long age = System.currentTimeMillis() - cursor.getLong(1);
+            if (age <= maxAgeMillis) results = cursor.getBlob(0);
+        }
+        cursor.close();
+        if (results == null) return null;
+
+        try {
+            Class<? extends Entity> classObject = Entity.findClassByName(className);
+            if (classObject == null) classObject = Entity.class;
+
+            LinkedHashMap<String, HashMap<String, Object>> records =
+                    LocalRecord.decodeList(sqLiteDatabase, className, results);
+            ArrayList<T> entities = new ArrayList<T>(records.size());
+            for (Map.Entry<String, HashMap<String, Object>> record : records.entrySet()) {
+                entities.add((T) Entity.fromLocalData(classObject, className, record.getKey(), record.getValue()));
+            }
+            return entities;
+
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to convert entity from local data: Malformed record", e);
+        }
+    }
+
+    /**
+     * 캐시된 쿼리 결과를 삭제한다.
+     * @param queryKey 쿼리의 캐시 키 (null일 시 모든 결과를 삭제한다)
+     */
+    static Task<Void> deleteQueryResultsInBackground(final String queryKey) {
+        return enqueue(new Write(queryKey != null ? "query:" + queryKey : null) {
+            @Override
+            Object run(SQLiteDatabase db) {
+                if (queryKey == null) db.delete("HaruQueryCache", null, null);
+                else db.delete("HaruQueryCache", "queryKey=?", new String[] { queryKey });
+                return null;
+            }
+        });
     }
 }
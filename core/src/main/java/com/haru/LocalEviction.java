@@ -0,0 +1,276 @@
+package com.haru;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 로컬 데이터스토어 ({@link com.haru.LocalEntityStore})의 Entity 정리(eviction) 정책이다.
+ *
+ * HaruEntity의 각 행은 레코드 크기 (size)와 마지막으로 저장되거나 읽힌 시각 (accessedAt)을 가진다.
+ * 정리는 쓰기 스레드에서 조금씩 (한 번에 {@link #BATCH_SIZE}행씩) 이루어지며, 다음 순서로 Entity를 삭제한다.
+ *
+ * 1. 수명 (TTL)이 설정된 태그에서 수명보다 오래 접근되지 않은 Entity
+ * 2. 클래스별 용량을 넘은 클래스에서 가장 오래 접근되지 않은 Entity
+ * 3. 전체 용량을 넘었을 시 가장 오래 접근되지 않은 Entity
+ *
+ * 고정된 태그 (현재 유저, 현재 설치 정보)와 Outbox에 보내지 않은 변경 사항이 남은 Entity는 삭제하지 않는다.
+ * 만료된 쿼리 결과 캐시 (HaruQueryCache)도 정리할 때마다 삭제한다.
+ * 설정은 저장되지 않으므로, 앱을 시작할 때마다 설정한다.
+ */
+class LocalEviction {
+
+    // 기본 전체 용량 (레코드 크기 기준)
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024L;
+
+    // 한 번의 정리에서 삭제하는 최대 행 수
+    static final int BATCH_SIZE = 100;
+
+    // 이만큼 쓰였거나, 읽힌 Entity가 이만큼 쌓이면 정리한다.
+    private static final long CHECK_BYTES = 256 * 1024L;
+    private static final int CHECK_TOUCHES = 50;
+
+    // 마지막 정리 후 이 시간이 지나면 정리한다. (TTL 만료, 접근 시각 기록)
+    private static final long CHECK_INTERVAL = 5 * 60 * 1000L;
+
+    // 절대 삭제하지 않는 태그들
+    private static final HashSet<String> pinnedTags = new HashSet<String>(Arrays.asList(
+            User.CURRENT_USER_TAG, Installation.CURRENT_INSTALLATION_TAG));
+
+    // 서버로 보내지 않은 변경 사항이 남은 Entity는 삭제하지 않는다.
+    private static final String NOT_IN_OUTBOX =
+            "entityId NOT IN (SELECT entityId FROM HaruOutbox WHERE entityId IS NOT NULL)";
+
+    private static long maxBytes = DEFAULT_MAX_BYTES;
+    private static final HashMap<String, Long> classMaxBytes = new HashMap<String, Long>();
+    private static final HashMap<String, Long> tagTimeToLive = new HashMap<String, Long>();
+
+    // 읽혔지만 아직 accessedAt에 기록되지 않은 Entity들 (className → entityId → 시각)
+    private static final HashMap<String, HashMap<String, Long>> touches =
+            new HashMap<String, HashMap<String, Long>>();
+    private static int touchCount = 0;
+
+    private static long bytesSinceCheck = 0;
+    private static long lastCheckedAt = 0;
+    private static boolean isScheduled = false;
+
+    static synchronized void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+    }
+
+    static synchronized void setMaxBytes(String className, long bytes) {
+        if (bytes > 0) classMaxBytes.put(className, bytes);
+        else classMaxBytes.remove(className);
+    }
+
+    static synchronized void setTimeToLive(String tag, long millis) {
+        if (pinnedTags.contains(tag)) {
+            throw new IllegalArgumentException("Tag " + tag + " is pinned and cannot expire.");
+        }
+        if (millis > 0) tagTimeToLive.put(tag, millis);
+        else tagTimeToLive.remove(tag);
+    }
+
+    /**
+     * Entity들이 읽혔음을 기록한다. 다음 정리에서 accessedAt에 반영된다.
+     */
+    static synchronized void touch(List<? extends Entity> entities) {
+        long now = System.currentTimeMillis();
+        for (Entity entity : entities) {
+            if (entity.getId() == null) continue;
+
+            HashMap<String, Long> ids = touches.get(entity.getClassName());
+            if (ids == null) {
+                ids = new HashMap<String, Long>();
+                touches.put(entity.getClassName(), ids);
+            }
+            if (ids.put(entity.getId(), now) == null) touchCount++;
+        }
+    }
+
+    /**
+     * Entity가 저장되었음을 기록한다.
+     * @param size 저장된 레코드의 크기
+     */
+    static synchronized void recordWrite(long size) {
+        bytesSinceCheck += size;
+    }
+
+    /**
+     * 정리할 때가 되었는지 확인하고, 되었다면 정리가 요청된 것으로 표시한다.
+     * @return 정리를 요청해야 하는지 여부
+     */
+    static synchronized boolean checkDue() {
+        if (isScheduled) return false;
+
+        boolean isDue = bytesSinceCheck >= CHECK_BYTES
+                || touchCount >= CHECK_TOUCHES
+                || System.currentTimeMillis() - lastCheckedAt >= CHECK_INTERVAL;
+        if (isDue) isScheduled = true;
+        return isDue;
+    }
+
+    /**
+     * 정리를 요청된 것으로 표시한다.
+     * @return 이미 요청되어있었다면 false
+     */
+    static synchronized boolean markScheduled() {
+        if (isScheduled) return false;
+        isScheduled = true;
+        return true;
+    }
+
+    /**
+     * 접근 시각을 기록하고, 최대 {@link #BATCH_SIZE}개의 Entity를 정리한다. 쓰기 스레드의 트랜잭션 안에서 호출된다.
+     * @return 아직 정리할 Entity가 남았는지 여부
+     */
+    static boolean run(SQLiteDatabase db) {
+        HashMap<String, HashMap<String, Long>> pendingTouches;
+        long budget;
+        HashMap<String, Long> classBudgets;
+        HashMap<String, Long> timeToLive;
+        synchronized (LocalEviction.class) {
+            pendingTouches = new HashMap<String, HashMap<String, Long>>(touches);
+            touches.clear();
+            touchCount = 0;
+            bytesSinceCheck = 0;
+            lastCheckedAt = System.currentTimeMillis();
+            isScheduled = false;
+
+            budget = maxBytes;
+            classBudgets = new HashMap<String, Long>(classMaxBytes);
+            timeToLive = new HashMap<String, Long>(tagTimeToLive);
+        }
+
+        applyTouches(db, pendingTouches);
+
+        // 읽을 때는 건너뛰기만 하므로, 만료된 쿼리 결과는 여기서 삭제한다.
+        int expiredQueries = db.delete("HaruQueryCache", "expiresAt<?",
+                new String[] { String.valueOf(System.currentTimeMillis()) });
+        if (expiredQueries > 0) {
+            Haru.logI("LocalEviction : deleted %d expired query results", expiredQueries);
+        }
+
+        int remaining = BATCH_SIZE;
+        remaining -= evictExpired(db, timeToLive, remaining);
+
+        // 클래스별 용량
+        if (remaining > 0 && !classBudgets.isEmpty()) {
+            Cursor cursor = db.rawQuery("SELECT className, SUM(size) FROM HaruEntity GROUP BY className", null);
+            HashMap<String, Long> classSizes = new HashMap<String, Long>();
+            while (cursor.moveToNext()) classSizes.put(cursor.getString(0), cursor.getLong(1));
+            cursor.close();
+
+            for (Map.Entry<String, Long> classBudget : classBudgets.entrySet()) {
+                Long size = classSizes.get(classBudget.getKey());
+                if (size == null || size <= classBudget.getValue() || remaining <= 0) continue;
+                remaining -= evictLeastRecent(db, classBudget.getKey(), size - classBudget.getValue(), remaining);
+            }
+        }
+
+        // 전체 용량
+        if (remaining > 0 && budget > 0) {
+            Cursor cursor = db.rawQuery("SELECT SUM(size) FROM HaruEntity", null);
+            long size = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            cursor.close();
+
+            if (size > budget) remaining -= evictLeastRecent(db, null, size - budget, remaining);
+        }
+
+        if (remaining < BATCH_SIZE) {
+            Haru.logI("LocalEviction : evicted %d local entities", BATCH_SIZE - remaining);
+        }
+        return remaining <= 0;
+    }
+
+    private static void applyTouches(SQLiteDatabase db, HashMap<String, HashMap<String, Long>> pendingTouches) {
+        if (pendingTouches.isEmpty()) return;
+
+        SQLiteStatement update = db.compileStatement(
+                "UPDATE HaruEntity SET accessedAt=? WHERE className=? AND entityId=? AND accessedAt<?");
+        try {
+            for (Map.Entry<String, HashMap<String, Long>> classTouches : pendingTouches.entrySet()) {
+                for (Map.Entry<String, Long> touch : classTouches.getValue().entrySet()) {
+                    update.bindLong(1, touch.getValue());
+                    update.bindString(2, classTouches.getKey());
+                    update.bindString(3, touch.getKey());
+                    update.bindLong(4, touch.getValue());
+                    update.execute();
+                }
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * 수명이 지난 태그의 Entity들을 삭제한다.
+     * @return 삭제한 Entity 수
+     */
+    private static int evictExpired(SQLiteDatabase db, HashMap<String, Long> timeToLive, int limit) {
+        int evicted = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> ttl : timeToLive.entrySet()) {
+            if (evicted >= limit) break;
+
+            Cursor cursor = db.rawQuery("SELECT className, entityId, size FROM HaruEntity "
+                    + "WHERE tag=? AND accessedAt<? AND " + NOT_IN_OUTBOX + " LIMIT " + (limit - evicted),
+                    new String[] { ttl.getKey(), String.valueOf(now - ttl.getValue()) });
+            evicted += delete(db, cursor, Long.MAX_VALUE);
+        }
+        return evicted;
+    }
+
+    /**
+     * 가장 오래 접근되지 않은 Entity부터, 주어진 크기 이상이 확보될 때까지 삭제한다.
+     * @param className 대상 클래스 (null일 시 전체)
+     * @param excess 확보해야 할 크기
+     * @return 삭제한 Entity 수
+     */
+    private static int evictLeastRecent(SQLiteDatabase db, String className, long excess, int limit) {
+        ArrayList<String> args = new ArrayList<String>();
+        StringBuilder sql = new StringBuilder("SELECT className, entityId, size FROM HaruEntity WHERE ");
+        if (className != null) {
+            sql.append("className=? AND ");
+            args.add(className);
+        }
+        sql.append("(tag IS NULL OR tag NOT IN (");
+        boolean isFirst = true;
+        for (String tag : pinnedTags) {
+            sql.append(isFirst ? "?" : ",?");
+            args.add(tag);
+            isFirst = false;
+        }
+        sql.append(")) AND ").append(NOT_IN_OUTBOX).append(" ORDER BY accessedAt LIMIT ").append(limit);
+
+        Cursor cursor = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        return delete(db, cursor, excess);
+    }
+
+    /**
+     * 커서의 (className, entityId, size) 행들을 주어진 크기만큼 삭제한다.
+     * @return 삭제한 Entity 수
+     */
+    private static int delete(SQLiteDatabase db, Cursor cursor, long bytes) {
+        ArrayList<String[]> targets = new ArrayList<String[]>();
+        long freed = 0;
+        while (freed < bytes && cursor.moveToNext()) {
+            targets.add(new String[] { cursor.getString(0), cursor.getString(1) });
+            freed += cursor.getLong(2);
+        }
+        cursor.close();
+
+        for (String[] target : targets) {
+            db.delete("HaruEntity", "className=? AND entityId=?", target);
+            LocalIndex.delete(db, target[0], target[1]);
+        }
+        return targets.size();
+    }
+}
@@ -0,0 +1,239 @@
+package com.haru;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 로컬 데이터스토어 ({@link com.haru.LocalEntityStore})의 필드 인덱스이다.
+ *
+ * 인덱스된 필드의 값은 타입별 인덱스 테이블 (HaruIndexString, HaruIndexInteger, HaruIndexReal)에
+ * (className, field, value, entityId)로 저장되어, {@link com.haru.LocalQuery}가 JSON을 읽지 않고
+ * SQLite 인덱스로 동등 비교와 범위 검색을 할 수 있다. 배열 필드는 원소마다 한 행씩 저장된다.
+ *
+ * 선언된 인덱스는 HaruIndexDefinition에 인덱스 형식 버전과 함께 기록된다. 새로 선언되었거나 형식이 바뀐 인덱스는
+ * 이미 저장된 Entity들로부터 다시 만들어지며, Entity 데이터는 건드리지 않는다.
+ */
+class LocalIndex {
+
+    // 인덱스에 값을 저장하는 방식이 바뀌면 올린다. 이전 버전의 인덱스는 다시 만들어진다.
+    static final int INDEX_VERSION = 1;
+
+    static final String STRING_TABLE = "HaruIndexString";
+    static final String INTEGER_TABLE = "HaruIndexInteger";
+    static final String REAL_TABLE = "HaruIndexReal";
+
+    private static final String[] VALUE_TABLES = { STRING_TABLE, INTEGER_TABLE, REAL_TABLE };
+
+    // className → 인덱스된 필드들
+    private static final HashMap<String, HashSet<String>> indexedFields = new HashMap<String, HashSet<String>>();
+
+    /**
+     * 인덱스 테이블들을 생성한다.
+     * @param db
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE HaruIndexDefinition ("
+                + "className TEXT NOT NULL,"
+                + "field TEXT NOT NULL,"
+                + "version INTEGER NOT NULL,"
+                + "PRIMARY KEY(className, field));");
+
+        createValueTable(db, STRING_TABLE, "TEXT");
+        createValueTable(db, INTEGER_TABLE, "INTEGER");
+        createValueTable(db, REAL_TABLE, "REAL");
+    }
+
+    private static void createValueTable(SQLiteDatabase db, String table, String type) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + "className TEXT NOT NULL,"
+                + "field TEXT NOT NULL,"
+                + "value " + type + " NOT NULL,"
+                + "entityId TEXT NOT NULL);");
+        db.execSQL("CREATE INDEX " + table + "_value ON " + table + " (className, field, value);");
+        db.execSQL("CREATE INDEX " + table + "_entity ON " + table + " (className, entityId);");
+    }
+
+    static boolean isIndexed(String className, String field) {
+        synchronized (indexedFields) {
+            HashSet<String> fields = indexedFields.get(className);
+            return fields != null && fields.contains(field);
+        }
+    }
+
+    private static HashSet<String> getIndexedFields(String className) {
+        synchronized (indexedFields) {
+            HashSet<String> fields = indexedFields.get(className);
+            return fields != null ? new HashSet<String>(fields) : null;
+        }
+    }
+
+    /**
+     * 기록된 인덱스 정의들을 불러온다. 형식 버전이 같은 인덱스는 바로 사용하고, 다른 인덱스는 다시 만든다.
+     * @param db
+     */
+    static void load(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT className, field, version FROM HaruIndexDefinition", null);
+        if (cursor == null) return;
+
+        ArrayList<String[]> outdated = new ArrayList<String[]>();
+        while (cursor.moveToNext()) {
+            String className = cursor.getString(0), field = cursor.getString(1);
+            if (cursor.getInt(2) == INDEX_VERSION) register(className, field);
+            else outdated.add(new String[] { className, field });
+        }
+        cursor.close();
+
+        for (String[] index : outdated) build(db, index[0], index[1]);
+    }
+
+    /**
+     * 인덱스를 선언한다. 처음 선언되었다면 이미 저장된 Entity들로부터 인덱스를 만든다.
+     * @param db
+     */
+    static void declare(SQLiteDatabase db, String className, String field) {
+        if (isIndexed(className, field)) return;
+        build(db, className, field);
+    }
+
+    /**
+     * 인덱스를 제거한다.
+     * @param db
+     */
+    static void drop(SQLiteDatabase db, String className, String field) {
+        synchronized (indexedFields) {
+            HashSet<String> fields = indexedFields.get(className);
+            if (fields != null) fields.remove(field);
+        }
+
+        String[] args = new String[] { className, field };
+        db.beginTransaction();
+        try {
+            db.delete("HaruIndexDefinition", "className=? AND field=?", args);
+            for (String table : VALUE_TABLES) db.delete(table, "className=? AND field=?", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void register(String className, String field) {
+        synchronized (indexedFields) {
+            HashSet<String> fields = indexedFields.get(className);
+            if (fields == null) {
+                fields = new HashSet<String>();
+                indexedFields.put(className, fields);
+            }
+            fields.add(field);
+        }
+    }
+
+    /**
+     * 저장된 Entity들로부터 인덱스를 (다시) 만든다.
+     */
+    private static void build(SQLiteDatabase db, String className, String field) {
+        Haru.logI("LocalIndex : building index on %s.%s", className, field);
+        String[] args = new String[] { className, field };
+
+        db.beginTransaction();
+        try {
+            for (String table : VALUE_TABLES) db.delete(table, "className=? AND field=?", args);
+
+            Cursor cursor = db.rawQuery("SELECT entityId, data FROM HaruEntity WHERE className=?",
+                    new String[] { className });
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    try {
+                        HashMap<String, Object> data = LocalRecord.decode(db, className, cursor.getBlob(1));
+                        insertValues(db, className, field, cursor.getString(0), data);
+                    } catch (Exception e) {
+                        Haru.logE("LocalIndex : skipping malformed entity %s", cursor.getString(0));
+                    }
+                }
+                cursor.close();
+            }
+
+            ContentValues definition = new ContentValues();
+            definition.put("className", className);
+            definition.put("field", field);
+            definition.put("version", INDEX_VERSION);
+            db.insertWithOnConflict("HaruIndexDefinition", null, definition, SQLiteDatabase.CONFLICT_REPLACE);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        register(className, field);
+    }
+
+    /**
+     * 저장된 Entity의 인덱스를 갱신한다. saveEntity와 같은 트랜잭션 안에서 호출된다.
+     * @param data Entity의 데이터
+     */
+    static void update(SQLiteDatabase db, String className, String entityId, Map<String, Object> data) {
+        HashSet<String> fields = getIndexedFields(className);
+        if (fields == null) return;
+
+        delete(db, className, entityId);
+        for (String field : fields) insertValues(db, className, field, entityId, data);
+    }
+
+    /**
+     * Entity의 인덱스를 삭제한다.
+     */
+    static void delete(SQLiteDatabase db, String className, String entityId) {
+        String[] args = new String[] { className, entityId };
+        for (String table : VALUE_TABLES) db.delete(table, "className=? AND entityId=?", args);
+    }
+
+    /**
+     * 삭제된 Entity들의 인덱스를 정리한다.
+     */
+    static void deleteOrphans(SQLiteDatabase db, String className) {
+        String[] args = new String[] { className, className };
+        for (String table : VALUE_TABLES) {
+            db.delete(table, "className=? AND entityId NOT IN "
+                    + "(SELECT entityId FROM HaruEntity WHERE className=?)", args);
+        }
+    }
+
+    private static void insertValues(SQLiteDatabase db, String className, String field,
+                                     String entityId, Map<String, Object> data) {
+        Object value = LocalQuery.resolve(data, field);
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                insertValue(db, className, field, entityId, element);
+            }
+        } else insertValue(db, className, field, entityId, value);
+    }
+
+    private static void insertValue(SQLiteDatabase db, String className, String field,
+                                    String entityId, Object value) {
+        String table;
+        ContentValues values = new ContentValues();
+        if (value instanceof String) {
+            table = STRING_TABLE;
+            values.put("value", (String) value);
+
+        } else if (value instanceof Integer || value instanceof Long) {
+            table = INTEGER_TABLE;
+            values.put("value", ((Number) value).longValue());
+
+        } else if (value instanceof Number) {
+            table = REAL_TABLE;
+            values.put("value", ((Number) value).doubleValue());
+
+        } else return; // boolean, null, 객체는 인덱스하지 않는다.
+
+        values.put("className", className);
+        values.put("field", field);
+        values.put("entityId", entityId);
+        db.insert(table, null, values);
+    }
+}
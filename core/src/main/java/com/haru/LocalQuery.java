@@ -0,0 +1,404 @@
+package com.haru;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link com.haru.Query}의 조건을 로컬 데이터스토어 ({@link com.haru.LocalEntityStore})에 저장된 Entity에 대해 수행한다.
+ * 서버와 같은 의미로 조건 ($ne, $gt, $gte, $lt, $lte, $in, $nin, 동등 비교)을 평가하고, 정렬하고, 페이지를 나눈다.
+ *
+ * 클래스 이름과 _id 조건, 인덱스된 필드 ({@link com.haru.LocalIndex})의 조건은 SQLite에서 바로 걸러낸다.
+ * 다른 필드의 조건은 남은 행의 레코드 ({@link com.haru.LocalRecord})를 읽어서 평가한다.
+ */
+class LocalQuery {
+
+    /**
+     * 로컬 데이터스토어의 행 하나. data에는 _id가 들어있지 않다.
+     */
+    static class Row {
+        final String entityId;
+        final HashMap<String, Object> data;
+
+        Row(String entityId, HashMap<String, Object> data) {
+            this.entityId = entityId;
+            this.data = data;
+        }
+    }
+
+    private static final HashMap<String, String> COMPARISONS = new HashMap<String, String>();
+    static {
+        COMPARISONS.put("$gt", ">?");
+        COMPARISONS.put("$gte", ">=?");
+        COMPARISONS.put("$lt", "<?");
+        COMPARISONS.put("$lte", "<=?");
+    }
+
+    final String className;
+    private final JSONObject where;
+    private final String[] sortFields;
+    private final int skip, limit;
+
+    private final StringBuilder selection = new StringBuilder("className=?");
+    private final ArrayList<String> selectionArgs = new ArrayList<String>();
+
+    // SQL 조건만으로 결과가 정확히 걸러지는지의 여부. 그렇다면 LIMIT도 SQLite에 맡긴다.
+    private boolean isExact = true;
+
+    /**
+     * @param sortOption 정렬 옵션 (예: "name,-createdAt,")
+     * @param countPerPage 페이지당 항목의 갯수 (-1일 시 페이지를 나누지 않는다)
+     * @param pageIndex 페이지 인덱스 (0부터 시작)
+     */
+    LocalQuery(String className, JSONObject where, String sortOption, int countPerPage, int pageIndex) {
+        this.className = className;
+        this.where = where;
+
+        ArrayList<String> fields = new ArrayList<String>();
+        for (String field : sortOption.split(",")) {
+            if (field.length() != 0) fields.add(field);
+        }
+        this.sortFields = fields.toArray(new String[fields.size()]);
+
+        if (countPerPage != -1 && pageIndex != -1) {
+            this.skip = countPerPage * pageIndex;
+            this.limit = countPerPage;
+        } else {
+            this.skip = 0;
+            this.limit = -1;
+        }
+
+        selectionArgs.add(className);
+        Iterator<?> keys = where.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            pushDown(key, where.opt(key));
+        }
+    }
+
+    String getSelection() {
+        return selection.toString();
+    }
+
+    String[] getSelectionArgs() {
+        return selectionArgs.toArray(new String[selectionArgs.size()]);
+    }
+
+    /**
+     * @return SQLite에 맡길 LIMIT 절 (예: "20,10"), 직접 나누어야 한다면 null
+     */
+    String getSqlLimit() {
+        if (!isExact || sortFields.length != 0 || limit == -1) return null;
+        return skip + "," + limit;
+    }
+
+    /**
+     * 조건 하나를 SQL로 옮긴다. 옮길 수 없는 조건은 행을 읽은 후에 평가한다.
+     */
+    private void pushDown(String key, Object condition) {
+        if ("_id".equals(key)) {
+            if (condition instanceof String) {
+                selection.append(" AND entityId=?");
+                selectionArgs.add((String) condition);
+                return;
+            }
+
+            JSONArray in = onlyOperand(condition, "$in");
+            if (in != null && containsOnlyStrings(in)) {
+                selection.append(" AND entityId IN (");
+                for (int i = 0; i < in.length(); i++) {
+                    selection.append(i == 0 ? "?" : ",?");
+                    selectionArgs.add(in.optString(i));
+                }
+                selection.append(')');
+                return;
+            }
+            isExact = false;
+            return;
+        }
+
+        if (LocalIndex.isIndexed(className, key) && pushDownToIndex(key, condition)) return;
+        isExact = false;
+    }
+
+    /**
+     * 인덱스된 필드의 조건을 인덱스 테이블에 대한 검색으로 옮긴다.
+     * @return 조건을 하나라도 옮겼다면 true
+     */
+    private boolean pushDownToIndex(String key, Object condition) {
+        if (condition instanceof String) {
+            addIndexTerm(LocalIndex.STRING_TABLE, key, "=?", condition);
+            return true;
+
+        } else if (condition instanceof Number) {
+            addNumberTerm(key, "=?", condition);
+            return true;
+
+        } else if (!(condition instanceof JSONObject) || !isOperatorObject((JSONObject) condition)) {
+            return false;
+        }
+
+        // 배열 필드는 연산자마다 다른 원소가 만족해도 되므로, 연산자마다 따로 검색한다.
+        JSONObject operators = (JSONObject) condition;
+        boolean isPushed = false;
+        Iterator<?> keys = operators.keys();
+        while (keys.hasNext()) {
+            String operator = (String) keys.next();
+            Object operand = operators.opt(operator);
+            String comparison = COMPARISONS.get(operator);
+
+            if (comparison != null && operand instanceof Number) {
+                addNumberTerm(key, comparison, operand);
+                isPushed = true;
+
+            } else if ("$in".equals(operator) && operand instanceof JSONArray
+                    && containsOnlyStrings((JSONArray) operand) && ((JSONArray) operand).length() != 0) {
+                addIndexInTerm(key, (JSONArray) operand);
+                isPushed = true;
+
+            } else {
+                // $ne, $nin은 필드가 없는 Entity도 만족하므로 인덱스로 찾을 수 없다.
+                // 문자열의 대소 비교는 SQLite (UTF-8 바이트 순서)와 Java (UTF-16 순서)의 결과가 달라서,
+                // SQL에서 걸러내면 Java에서는 만족하는 행이 빠질 수 있다.
+                isExact = false;
+            }
+        }
+        return isPushed;
+    }
+
+    private void addIndexTerm(String table, String key, String comparison, Object operand) {
+        selection.append(" AND entityId IN (SELECT entityId FROM ").append(table)
+                .append(" WHERE className=? AND field=? AND value").append(comparison).append(')');
+        selectionArgs.add(className);
+        selectionArgs.add(key);
+        selectionArgs.add(String.valueOf(operand));
+    }
+
+    /**
+     * 숫자는 정수와 실수 인덱스에 나누어 저장되므로 둘 다 검색한다.
+     */
+    private void addNumberTerm(String key, String comparison, Object operand) {
+        selection.append(" AND entityId IN (SELECT entityId FROM ").append(LocalIndex.INTEGER_TABLE)
+                .append(" WHERE className=? AND field=? AND value").append(comparison)
+                .append(" UNION ALL SELECT entityId FROM ").append(LocalIndex.REAL_TABLE)
+                .append(" WHERE className=? AND field=? AND value").append(comparison).append(')');
+        for (int i = 0; i < 2; i++) {
+            selectionArgs.add(className);
+            selectionArgs.add(key);
+            selectionArgs.add(String.valueOf(operand));
+        }
+    }
+
+    private void addIndexInTerm(String key, JSONArray values) {
+        selection.append(" AND entityId IN (SELECT entityId FROM ").append(LocalIndex.STRING_TABLE)
+                .append(" WHERE className=? AND field=? AND value IN (");
+        selectionArgs.add(className);
+        selectionArgs.add(key);
+        for (int i = 0; i < values.length(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs.add(values.optString(i));
+        }
+        selection.append("))");
+    }
+
+    private static JSONArray onlyOperand(Object condition, String operator) {
+        if (!(condition instanceof JSONObject)) return null;
+        JSONObject operators = (JSONObject) condition;
+        if (operators.length() != 1) return null;
+        return operators.optJSONArray(operator);
+    }
+
+    private static boolean containsOnlyStrings(JSONArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            if (!(array.opt(i) instanceof String)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 행이 모든 조건을 만족하는지 확인한다.
+     */
+    boolean matches(Row row) {
+        Iterator<?> keys = where.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object actual = "_id".equals(key) ? row.entityId : resolve(row.data, key);
+            if (!matchesCondition(actual, where.opt(key))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 조건에 맞는 행들을 정렬하고, 요청한 페이지만 남긴다.
+     */
+    List<Row> sortAndPage(List<Row> rows) {
+        if (sortFields.length != 0) {
+            Collections.sort(rows, new Comparator<Row>() {
+                @Override
+                public int compare(Row lhs, Row rhs) {
+                    for (String field : sortFields) {
+                        boolean isDescending = field.startsWith("-");
+                        String name = isDescending ? field.substring(1) : field;
+                        int result = compareForSort(valueOf(lhs, name), valueOf(rhs, name));
+                        if (result != 0) return isDescending ? -result : result;
+                    }
+                    return 0;
+                }
+            });
+        }
+
+        // SQLite에서 이미 페이지를 나누었다.
+        if (limit == -1 || getSqlLimit() != null) return rows;
+
+        if (skip >= rows.size()) return new ArrayList<Row>();
+        return rows.subList(skip, Math.min(rows.size(), skip + limit));
+    }
+
+    private static Object valueOf(Row row, String field) {
+        return "_id".equals(field) ? row.entityId : resolve(row.data, field);
+    }
+
+    private static boolean matchesCondition(Object actual, Object condition) {
+        if (!(condition instanceof JSONObject) || !isOperatorObject((JSONObject) condition)) {
+            return matchesEquality(actual, LocalRecord.normalize(condition));
+        }
+
+        JSONObject operators = (JSONObject) condition;
+        Iterator<?> keys = operators.keys();
+        while (keys.hasNext()) {
+            String operator = (String) keys.next();
+            Object operand = LocalRecord.normalize(operators.opt(operator));
+
+            boolean result;
+            if ("$ne".equals(operator)) {
+                result = !matchesEquality(actual, operand);
+
+            } else if ("$in".equals(operator)) {
+                result = matchesAny(actual, operand);
+
+            } else if ("$nin".equals(operator)) {
+                result = !matchesAny(actual, operand);
+
+            } else if ("$gt".equals(operator) || "$gte".equals(operator)
+                    || "$lt".equals(operator) || "$lte".equals(operator)) {
+                result = matchesComparison(actual, operator, operand);
+
+            } else {
+                throw new IllegalArgumentException("Unsupported operator in local query: " + operator);
+            }
+            if (!result) return false;
+        }
+        return true;
+    }
+
+    private static boolean isOperatorObject(JSONObject object) {
+        Iterator<?> keys = object.keys();
+        return keys.hasNext() && ((String) keys.next()).startsWith("$");
+    }
+
+    /**
+     * 값이 같은지 비교한다. 필드가 배열이라면 원소 중 하나라도 같으면 된다.
+     */
+    private static boolean matchesEquality(Object actual, Object expected) {
+        if (valuesEqual(actual, expected)) return true;
+        if (actual instanceof List) {
+            for (Object element : (List<?>) actual) {
+                if (valuesEqual(element, expected)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(Object actual, Object candidates) {
+        if (!(candidates instanceof List)) {
+            throw new IllegalArgumentException("$in and $nin require an array.");
+        }
+        for (Object candidate : (List<?>) candidates) {
+            if (matchesEquality(actual, candidate)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 크기를 비교한다. 숫자는 숫자끼리, 문자열은 문자열끼리만 비교되고, 필드가 없으면 만족하지 않는다.
+     * 필드가 배열이라면 원소 중 하나라도 만족하면 된다.
+     */
+    private static boolean matchesComparison(Object actual, String operator, Object operand) {
+        if (actual instanceof List) {
+            for (Object element : (List<?>) actual) {
+                if (matchesComparison(element, operator, operand)) return true;
+            }
+            return false;
+        }
+
+        int result;
+        if (actual instanceof Number && operand instanceof Number) {
+            result = Double.compare(((Number) actual).doubleValue(), ((Number) operand).doubleValue());
+
+        } else if (actual instanceof String && operand instanceof String) {
+            result = ((String) actual).compareTo((String) operand);
+
+        } else return false;
+
+        if ("$gt".equals(operator)) return result > 0;
+        if ("$gte".equals(operator)) return result >= 0;
+        if ("$lt".equals(operator)) return result < 0;
+        return result <= 0;
+    }
+
+    private static boolean valuesEqual(Object lhs, Object rhs) {
+        if (lhs == null || rhs == null) return lhs == rhs;
+        if (lhs instanceof Number && rhs instanceof Number) {
+            return ((Number) lhs).doubleValue() == ((Number) rhs).doubleValue();
+        }
+        return lhs.equals(rhs);
+    }
+
+    /**
+     * 정렬 순서 : 없음 < 숫자 < 문자열 < 객체 < 배열 < boolean
+     */
+    private static int compareForSort(Object lhs, Object rhs) {
+        int lhsRank = rankOf(lhs), rhsRank = rankOf(rhs);
+        if (lhsRank != rhsRank) return lhsRank < rhsRank ? -1 : 1;
+
+        if (lhs instanceof Number) {
+            return Double.compare(((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+        } else if (lhs instanceof String) {
+            return ((String) lhs).compareTo((String) rhs);
+        } else if (lhs instanceof Boolean) {
+            return ((Boolean) lhs).compareTo((Boolean) rhs);
+        } else if (lhs != null) {
+            return lhs.toString().compareTo(rhs.toString());
+        }
+        return 0;
+    }
+
+    private static int rankOf(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Number) return 1;
+        if (value instanceof String) return 2;
+        if (value instanceof Map) return 3;
+        if (value instanceof List) return 4;
+        return 5;
+    }
+
+    /**
+     * "a.b" 형식의 경로로 중첩된 객체의 값을 가져온다.
+     */
+    static Object resolve(Map<String, Object> data, String path) {
+        Object current = data;
+        for (String name : path.split("\\.")) {
+            current = LocalRecord.normalize(current);
+            if (!(current instanceof Map)) return null;
+            current = ((Map<?, ?>) current).get(name);
+        }
+        return LocalRecord.normalize(current);
+    }
+}
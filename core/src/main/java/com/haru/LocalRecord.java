@@ -0,0 +1,485 @@
+package com.haru;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.haru.json.JsonDecoder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 로컬 데이터스토어 ({@link com.haru.LocalEntityStore})에 Entity의 데이터를 저장하는 바이너리 레코드 형식이다.
+ * JSON 문자열을 만들고 다시 파싱하는 대신, 값을 타입과 함께 그대로 쓰고 읽는다.
+ *
+ * 레코드는 [MAGIC][FORMAT_VERSION][필드 수][필드 ID, 값]... 으로 이루어진다.
+ * 최상위 필드 이름은 클래스별 키 사전 (HaruKeyDictionary)의 ID로 저장되고, 중첩된 객체의 키는 문자열로 저장된다.
+ * 값은 한 바이트의 타입 뒤에 내용이 온다. 정수와 길이는 varint로 쓴다.
+ *
+ * 읽은 값은 {@link com.haru.json.JsonDecoder}와 같은 타입 (HashMap, ArrayList, Integer, Long, Double,
+ * Boolean, String, null)으로 변환된다. 이전 버전에서 저장된 JSON 행도 읽을 수 있다.
+ */
+class LocalRecord {
+
+    private static final byte MAGIC = (byte) 0xB7;
+
+    // 레코드 형식이 바뀌면 올린다.
+    static final int FORMAT_VERSION = 1;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_FALSE = 1;
+    private static final int TYPE_TRUE = 2;
+    private static final int TYPE_INT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_STRING = 6;
+    private static final int TYPE_MAP = 7;
+    private static final int TYPE_LIST = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 한 클래스의 키 사전. 키의 ID는 추가된 순서이다.
+     */
+    private static class KeyDictionary {
+        final ArrayList<String> keys = new ArrayList<String>();
+        final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+        void add(String key) {
+            ids.put(key, keys.size());
+            keys.add(key);
+        }
+    }
+
+    // className → 키 사전
+    private static final HashMap<String, KeyDictionary> dictionaries = new HashMap<String, KeyDictionary>();
+
+    /**
+     * 키 사전 테이블을 생성한다.
+     * @param db
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE HaruKeyDictionary ("
+                + "className TEXT NOT NULL,"
+                + "keyId INTEGER NOT NULL,"
+                + "key TEXT NOT NULL,"
+                + "PRIMARY KEY(className, keyId));");
+    }
+
+    /**
+     * 메모리에 있는 키 사전을 버린다. 새로운 키를 추가한 트랜잭션이 롤백되었을 때 호출된다.
+     */
+    static void invalidate() {
+        synchronized (dictionaries) {
+            dictionaries.clear();
+        }
+    }
+
+    /**
+     * 클래스의 키 사전을 가져온다. 없거나 reload라면 데이터베이스에서 읽는다.
+     * SQL은 dictionaries의 lock 밖에서 실행한다. 읽기 스레드가 lock을 잡은 채 데이터베이스를 기다리면,
+     * 트랜잭션 중에 키를 추가하려는 쓰기 스레드와 서로를 기다리게 된다.
+     */
+    private static KeyDictionary dictionaryOf(SQLiteDatabase db, String className, boolean reload) {
+        if (!reload) {
+            synchronized (dictionaries) {
+                KeyDictionary dictionary = dictionaries.get(className);
+                if (dictionary != null) return dictionary;
+            }
+        }
+
+        KeyDictionary loaded = new KeyDictionary();
+        Cursor cursor = db.rawQuery("SELECT key FROM HaruKeyDictionary WHERE className=? ORDER BY keyId",
+                new String[] { className });
+        if (cursor != null) {
+            while (cursor.moveToNext()) loaded.add(cursor.getString(0));
+            cursor.close();
+        }
+
+        synchronized (dictionaries) {
+            // 키는 추가만 되므로, 그사이 다른 스레드가 올린 사전이 더 크다면 그것을 쓴다.
+            // (읽기 스레드는 쓰기 스레드가 아직 커밋하지 않은 키를 보지 못한다.)
+            KeyDictionary current = dictionaries.get(className);
+            if (current != null && current.keys.size() >= loaded.keys.size()) return current;
+            dictionaries.put(className, loaded);
+            return loaded;
+        }
+    }
+
+    /**
+     * 키의 ID를 가져온다. 처음 보는 키라면 사전에 추가한다.
+     * 레코드를 저장하는 트랜잭션 안에서 호출되어야 한다. 키는 쓰기 스레드에서만 추가된다.
+     */
+    private static int idOf(SQLiteDatabase db, String className, String key) {
+        KeyDictionary dictionary = dictionaryOf(db, className, false);
+        int id;
+        synchronized (dictionaries) {
+            Integer existing = dictionary.ids.get(key);
+            if (existing != null) return existing;
+            id = dictionary.keys.size();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("className", className);
+        values.put("keyId", id);
+        values.put("key", key);
+        db.insertOrThrow("HaruKeyDictionary", null, values);
+
+        synchronized (dictionaries) {
+            KeyDictionary current = dictionaries.get(className);
+            if (current != null && current.keys.size() == id) current.add(key);
+            // 다른 연결에서 추가된 키로 사전이 바뀌었다. 다음에 다시 읽는다.
+            else dictionaries.remove(className);
+        }
+        return id;
+    }
+
+    private static String keyOf(SQLiteDatabase db, String className, int id) throws JSONException {
+        KeyDictionary dictionary = dictionaryOf(db, className, false);
+        synchronized (dictionaries) {
+            if (id < dictionary.keys.size()) return dictionary.keys.get(id);
+        }
+
+        // 다른 연결에서 추가된 키일 수 있다.
+        dictionary = dictionaryOf(db, className, true);
+        synchronized (dictionaries) {
+            if (id < dictionary.keys.size()) return dictionary.keys.get(id);
+        }
+        throw new JSONException("Unknown key #" + id + " in local record of " + className);
+    }
+
+    /**
+     * Entity의 데이터를 레코드로 인코딩한다.
+     * @param db 레코드를 저장할 데이터베이스 (키 사전이 여기에 저장된다)
+     * @param className 클래스 이름
+     * @param data Entity의 데이터
+     * @return 인코딩된 레코드
+     */
+    static byte[] encode(SQLiteDatabase db, String className, Map<String, Object> data) {
+        RecordWriter writer = new RecordWriter();
+        writer.writeByte(MAGIC);
+        writer.writeByte(FORMAT_VERSION);
+        writeFields(writer, db, className, data);
+        return writer.toByteArray();
+    }
+
+    /**
+     * 레코드를 디코딩한다. JSON으로 저장된 이전 행도 읽는다.
+     * @param db 레코드가 저장된 데이터베이스
+     * @param className 클래스 이름
+     * @param record 레코드
+     * @return Entity의 데이터
+     */
+    static HashMap<String, Object> decode(SQLiteDatabase db, String className, byte[] record) throws JSONException {
+        if (!isRecord(record)) {
+            return JsonDecoder.toMap(new JSONObject(new String(record, UTF_8)));
+        }
+
+        return readFields(new RecordReader(record, 2), db, className);
+    }
+
+    /**
+     * @return 현재 형식의 레코드라면 true, JSON이라면 false
+     */
+    static boolean isRecord(byte[] record) throws JSONException {
+        if (record.length < 2 || record[0] != MAGIC) return false;
+        if (record[1] != FORMAT_VERSION) {
+            throw new JSONException("Unsupported local record version: " + record[1]);
+        }
+        return true;
+    }
+
+    /**
+     * 여러 Entity의 데이터를 하나의 레코드 목록으로 인코딩한다. 쿼리 결과 캐시에 사용된다.
+     * @param entities entityId → Entity의 데이터 (이 순서대로 인코딩된다)
+     */
+    static byte[] encodeList(SQLiteDatabase db,
+                             String className,
+                             LinkedHashMap<String, HashMap<String, Object>> entities) {
+        RecordWriter writer = new RecordWriter();
+        writer.writeByte(MAGIC);
+        writer.writeByte(FORMAT_VERSION);
+        writer.writeVarint(entities.size());
+        for (Map.Entry<String, HashMap<String, Object>> entity : entities.entrySet()) {
+            writer.writeString(entity.getKey());
+            writeFields(writer, db, className, entity.getValue());
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * encodeList로 인코딩된 목록을 디코딩한다.
+     * @return entityId → Entity의 데이터 (인코딩된 순서대로)
+     */
+    static LinkedHashMap<String, HashMap<String, Object>> decodeList(SQLiteDatabase db,
+                                                                     String className,
+                                                                     byte[] list) throws JSONException {
+        if (!isRecord(list)) throw new JSONException("Not a local record list");
+
+        RecordReader reader = new RecordReader(list, 2);
+        int size = reader.readVarint();
+        LinkedHashMap<String, HashMap<String, Object>> entries = new LinkedHashMap<String, HashMap<String, Object>>();
+        for (int i = 0; i < size; i++) {
+            String entityId = reader.readString();
+            entries.put(entityId, readFields(reader, db, className));
+        }
+        return entries;
+    }
+
+    private static void writeFields(RecordWriter writer, SQLiteDatabase db, String className,
+                                    Map<String, Object> data) {
+        writer.writeVarint(data.size());
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            writer.writeVarint(idOf(db, className, entry.getKey()));
+            writeValue(writer, entry.getValue());
+        }
+    }
+
+    private static HashMap<String, Object> readFields(RecordReader reader, SQLiteDatabase db, String className)
+            throws JSONException {
+        int size = reader.readVarint();
+        HashMap<String, Object> data = new HashMap<String, Object>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = keyOf(db, className, reader.readVarint());
+            data.put(key, readValue(reader));
+        }
+        return data;
+    }
+
+    /**
+     * 값을 레코드에 저장되는 형태 (Map, List, 기본 타입)로 바꾼다.
+     * JSONObject, JSONArray, JsonEncodable등 Entity에 넣을 수 있는 값들을 처리한다.
+     */
+    @SuppressWarnings("unchecked")
+    static Object normalize(Object value) {
+        if (value == null || value == JSONObject.NULL) return null;
+        if (value instanceof JSONObject) return JsonDecoder.toMap((JSONObject) value);
+        if (value instanceof JSONArray) return JsonDecoder.toList((JSONArray) value);
+        if (value instanceof Map || value instanceof List) return value;
+        if (value instanceof Collection) return new ArrayList<Object>((Collection<Object>) value);
+        if (value instanceof Object[]) {
+            ArrayList<Object> list = new ArrayList<Object>();
+            for (Object element : (Object[]) value) list.add(element);
+            return list;
+        }
+        if (value instanceof JsonEncodable) {
+            try {
+                return normalize(((JsonEncodable) value).toJson());
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to encode " + value.getClass().getName(), e);
+            }
+        }
+        if (value instanceof String || value instanceof Boolean || value instanceof Number) return value;
+
+        // JSON으로 저장할 때와 같이 문자열로 저장한다.
+        return String.valueOf(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(RecordWriter writer, Object value) {
+        value = normalize(value);
+
+        if (value == null) {
+            writer.writeByte(TYPE_NULL);
+
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writer.writeByte(TYPE_INT);
+            writer.writeSignedVarint(((Number) value).intValue());
+
+        } else if (value instanceof Long) {
+            writer.writeByte(TYPE_LONG);
+            writer.writeSignedVarint((Long) value);
+
+        } else if (value instanceof Number) {
+            writer.writeByte(TYPE_DOUBLE);
+            writer.writeLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+
+        } else if (value instanceof String) {
+            writer.writeByte(TYPE_STRING);
+            writer.writeString((String) value);
+
+        } else if (value instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            writer.writeByte(TYPE_MAP);
+            writer.writeVarint(map.size());
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                writer.writeString(String.valueOf(entry.getKey()));
+                writeValue(writer, entry.getValue());
+            }
+
+        } else {
+            List<Object> list = (List<Object>) value;
+            writer.writeByte(TYPE_LIST);
+            writer.writeVarint(list.size());
+            for (Object element : list) writeValue(writer, element);
+        }
+    }
+
+    private static Object readValue(RecordReader reader) throws JSONException {
+        int type = reader.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+
+            case TYPE_INT:
+                return (int) reader.readSignedVarint();
+
+            case TYPE_LONG:
+                return reader.readSignedVarint();
+
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(reader.readLong());
+
+            case TYPE_STRING:
+                return reader.readString();
+
+            case TYPE_MAP:
+                int size = reader.readVarint();
+                HashMap<String, Object> map = new HashMap<String, Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    String key = reader.readString();
+                    map.put(key, readValue(reader));
+                }
+                return map;
+
+            case TYPE_LIST:
+                int length = reader.readVarint();
+                ArrayList<Object> list = new ArrayList<Object>(length);
+                for (int i = 0; i < length; i++) list.add(readValue(reader));
+                return list;
+
+            default:
+                throw new JSONException("Unknown value type " + type + " in local record");
+        }
+    }
+
+    private static class RecordWriter {
+        private byte[] buffer = new byte[256];
+        private int size = 0;
+
+        private void ensureCapacity(int extra) {
+            if (size + extra <= buffer.length) return;
+            byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeSignedVarint(long value) {
+            // zigzag : 절대값이 작은 음수도 짧게 쓴다.
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) buffer[size++] = (byte) (value >>> shift);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length);
+            write(bytes);
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[size];
+            System.arraycopy(buffer, 0, bytes, 0, size);
+            return bytes;
+        }
+    }
+
+    private static class RecordReader {
+        private final byte[] buffer;
+        private int position;
+
+        RecordReader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private void require(int length) throws JSONException {
+            if (length < 0 || position + length > buffer.length) {
+                throw new JSONException("Truncated local record");
+            }
+        }
+
+        int readByte() throws JSONException {
+            require(1);
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarintLong() throws JSONException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new JSONException("Malformed varint in local record");
+        }
+
+        int readVarint() throws JSONException {
+            long value = readVarintLong();
+            if (value > Integer.MAX_VALUE) throw new JSONException("Length out of range in local record");
+            return (int) value;
+        }
+
+        long readSignedVarint() throws JSONException {
+            long value = readVarintLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readLong() throws JSONException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) value = (value << 8) | (buffer[position++] & 0xFF);
+            return value;
+        }
+
+        String readString() throws JSONException {
+            int length = readVarint();
+            require(length);
+            String value = new String(buffer, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
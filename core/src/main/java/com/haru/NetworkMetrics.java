@@ -0,0 +1,154 @@
+package com.haru;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 모든 HTTP 요청의 단계별 소요 시간 ({@link com.haru.RequestTiming})을 수집한다.
+ *
+ * 요청마다 리스너에 기록을 전달하고, 엔드포인트별로 합계를 모아둔다.
+ * 요청마다 객체 하나와 몇 번의 시간 측정만 하므로 항상 켜두어도 된다.
+ */
+public class NetworkMetrics {
+
+    /**
+     * 요청이 끝날 때마다 호출된다. 재시도한 요청은 각 시도마다 호출된다.
+     * 네트워크 스레드나 UI 스레드에서 호출되므로 오래 걸리는 작업을 하면 안 된다.
+     */
+    public interface Listener {
+        public void onRequestFinished(RequestTiming timing);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private static volatile boolean aggregationEnabled = true;
+    private static final HashMap<String, Aggregate> aggregates = new HashMap<String, Aggregate>();
+
+    // HTTP 엔진이 측정한 연결 시간. 요청을 실행하는 스레드에서 기록된다.
+    private static final ThreadLocal<Long> connectMillis = new ThreadLocal<Long>();
+
+    /**
+     * 엔드포인트별 합계.
+     */
+    private static class Aggregate {
+        long count, errors;
+        long bytesSent, bytesReceived;
+        long queueWait, connect, timeToFirstByte, bodyRead, parse, dispatch, total;
+        long maxTotal;
+
+        void add(RequestTiming timing) {
+            count++;
+            if (timing.error != null) errors++;
+            bytesSent += Math.max(timing.bytesSent, 0);
+            bytesReceived += Math.max(timing.bytesReceived, 0);
+            queueWait += Math.max(timing.queueWaitMillis, 0);
+            connect += Math.max(timing.connectMillis, 0);
+            timeToFirstByte += Math.max(timing.timeToFirstByteMillis, 0);
+            bodyRead += Math.max(timing.bodyReadMillis, 0);
+            parse += Math.max(timing.parseMillis, 0);
+            dispatch += Math.max(timing.dispatchMillis, 0);
+            total += timing.getTotalMillis();
+            maxTotal = Math.max(maxTotal, timing.getTotalMillis());
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("errors", errors);
+            json.put("bytesSent", bytesSent);
+            json.put("bytesReceived", bytesReceived);
+            json.put("avgQueueWait", queueWait / count);
+            json.put("avgConnect", connect / count);
+            json.put("avgTimeToFirstByte", timeToFirstByte / count);
+            json.put("avgBodyRead", bodyRead / count);
+            json.put("avgParse", parse / count);
+            json.put("avgDispatch", dispatch / count);
+            json.put("avgTotal", total / count);
+            json.put("maxTotal", maxTotal);
+            return json;
+        }
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 엔드포인트별 합계를 모을지 여부를 설정한다. 기본값은 true이다.
+     * @param enable 사용 여부
+     */
+    public static void setAggregationEnabled(boolean enable) {
+        aggregationEnabled = enable;
+    }
+
+    /**
+     * 지금까지 모은 엔드포인트별 합계를 JSON으로 반환한다. 시간의 단위는 ms이다.
+     * @return { "/classes/Post": { "count": 10, "avgTotal": 120, ... }, ... }
+     */
+    public static JSONObject getAggregate() {
+        try {
+            JSONObject json = new JSONObject();
+            synchronized (aggregates) {
+                for (Map.Entry<String, Aggregate> entry : aggregates.entrySet()) {
+                    json.put(entry.getKey(), entry.getValue().toJson());
+                }
+            }
+            return json;
+
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 모아둔 합계를 지운다.
+     */
+    public static void reset() {
+        synchronized (aggregates) {
+            aggregates.clear();
+        }
+    }
+
+    /**
+     * HTTP 엔진이 연결에 걸린 시간을 기록한다. 요청을 실행하는 스레드에서 호출해야 한다.
+     * @param millis 연결 시간 (ms)
+     */
+    public static void recordConnect(long millis) {
+        connectMillis.set(millis);
+    }
+
+    /**
+     * 현재 스레드에서 기록된 연결 시간을 가져오고 지운다.
+     * @return 연결 시간 (기록되지 않았을 시 -1)
+     */
+    static long takeConnectMillis() {
+        Long millis = connectMillis.get();
+        connectMillis.remove();
+        return millis != null ? millis : -1;
+    }
+
+    static void report(RequestTiming timing) {
+        if (aggregationEnabled) {
+            synchronized (aggregates) {
+                Aggregate aggregate = aggregates.get(timing.endpointTemplate);
+                if (aggregate == null) {
+                    aggregate = new Aggregate();
+                    aggregates.put(timing.endpointTemplate, aggregate);
+                }
+                aggregate.add(timing);
+            }
+        }
+
+        for (Listener listener : listeners) {
+            listener.onRequestFinished(timing);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package com.haru;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.haru.callback.SaveCallback;
+import com.haru.task.Continuation;
+import com.haru.task.Task;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.ref.WeakReference;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 오프라인 상태에서 서버에 저장하지 못한 Entity의 변경 사항들을 로컬 데이터스토어에 보관하고,
+ * 네트워크가 다시 연결되면 저장된 순서대로 서버에 전송(replay)한다.
+ *
+ * 같은 Entity에 대한 변경 사항들은 하나의 요청으로 합쳐지며,
+ * 서로 다른 Entity들은 최대 {@link #MAX_PARALLEL_REPLAYS}개까지 동시에 전송된다.
+ */
+public class OfflineQueue {
+
+    /**
+     * 큐를 서버로 전송하는 진행 상황을 받기 위한 리스너이다.
+     */
+    public interface ReplayListener {
+        /**
+         * Entity 하나의 변경 사항들이 전송될 때마다 호출된다.
+         * @param replayed 전송이 끝난 변경 사항의 수
+         * @param total 이번 전송에서 보낼 변경 사항의 수
+         */
+        public void onReplayProgress(int replayed, int total);
+    }
+
+    static final String METHOD_CREATE = "create";
+    static final String METHOD_UPDATE = "update";
+
+    public static final int MAX_PARALLEL_REPLAYS = 4;
+
+    private static Context context;
+    private static ReplayListener replayListener;
+
+    // 큐에 변경 사항이 남아있는 Entity들의 키
+    private static final HashSet<String> queuedKeys = new HashSet<String>();
+
+    // 오프라인에서 생성된 Entity들. 서버 ID를 받으면 채워준다.
+    private static final HashMap<String, WeakReference<Entity>> localEntities =
+            new HashMap<String, WeakReference<Entity>>();
+
+    private static final AtomicBoolean isReplaying = new AtomicBoolean(false);
+    private static final AtomicInteger replayedCount = new AtomicInteger(0);
+    private static volatile int replayTotal = 0;
+
+    /**
+     * Outbox 테이블의 한 행 : 서버에 보내지 못한 변경 사항.
+     */
+    static class Mutation {
+        long id;
+        String className, entityId, localId;
+        String method;
+        String data;
+    }
+
+    /**
+     * 같은 Entity에 대한 변경 사항들을 합친 하나의 전송 단위.
+     */
+    private static class ReplayGroup {
+        String className, entityId, localId;
+        JSONObject creation;
+        JSONArray updates = new JSONArray();
+        List<Long> mutationIds = new ArrayList<Long>();
+
+        void add(Mutation mutation) throws JSONException {
+            mutationIds.add(mutation.id);
+            if (mutation.entityId != null) entityId = mutation.entityId;
+
+            if (METHOD_CREATE.equals(mutation.method)) {
+                creation = new JSONObject(mutation.data);
+                return;
+            }
+
+            JSONArray operations = new JSONArray(mutation.data);
+            if (creation != null) {
+                // 아직 생성되지 않은 Entity라면, 변경 사항을 생성 요청에 합친다.
+                foldIntoCreation(operations);
+
+            } else {
+                for (int i = 0; i < operations.length(); i++) {
+                    updates.put(operations.getJSONObject(i));
+                }
+            }
+        }
+
+        private void foldIntoCreation(JSONArray operations) throws JSONException {
+            for (int i = 0; i < operations.length(); i++) {
+                JSONObject operation = operations.getJSONObject(i);
+                if (operation.has("entity")) {
+                    JSONObject data = operation.getJSONObject("entity");
+                    Iterator keys = data.keys();
+                    while (keys.hasNext()) {
+                        String key = (String) keys.next();
+                        creation.put(key, data.get(key));
+                    }
+
+                } else if (operation.has("fields")) {
+                    JSONArray fields = operation.getJSONArray("fields");
+                    for (int j = 0; j < fields.length(); j++) {
+                        creation.remove(fields.getString(j));
+                    }
+                }
+            }
+        }
+    }
+
+    static void initialize(Context ctx) {
+        context = ctx;
+        reloadQueuedKeys();
+
+        // 네트워크가 다시 연결되면 큐를 전송한다.
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isOnline()) replayInBackground();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * 큐를 전송하는 진행 상황을 받을 리스너를 설정한다.
+     * @param listener {@link com.haru.OfflineQueue.ReplayListener}
+     */
+    public static void setReplayListener(ReplayListener listener) {
+        replayListener = listener;
+    }
+
+    /**
+     * 아직 서버로 전송되지 않은 변경 사항의 수를 반환한다. 메모리의 값을 반환하므로 UI 스레드에서 호출해도 된다.
+     * @return 큐에 남은 변경 사항의 수
+     */
+    public static int getQueueDepth() {
+        return LocalEntityStore.getOutboxSize();
+    }
+
+    /**
+     * 현재 큐를 서버로 전송하고 있는지 여부를 반환한다.
+     */
+    public static boolean isReplaying() {
+        return isReplaying.get();
+    }
+
+    /**
+     * 현재 (혹은 마지막) 전송에서 전송이 끝난 변경 사항의 수를 반환한다.
+     */
+    public static int getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * 현재 (혹은 마지막) 전송에서 보내야 할 변경 사항의 수를 반환한다.
+     */
+    public static int getReplayTotal() {
+        return replayTotal;
+    }
+
+    /**
+     * 네트워크가 연결되지 않아 실패한 요청인지 확인한다.
+     * 요청이 서버에 닿지 않았음이 확실한 에러 (연결 끊김, DNS 실패, 연결 거부)만 해당한다.
+     * 타임아웃처럼 서버가 요청을 이미 처리했을 수도 있는 에러는 큐에 넣어 다시 보내면
+     * 같은 Entity가 두 번 생성될 수 있으므로, 호출한 쪽에 그대로 전달한다.
+     * 에러를 받은 시점의 연결 상태는 요청이 서버에 닿았는지와 상관이 없으므로 보지 않는다.
+     *
+     * @param error 요청 중 발생한 에러
+     */
+    static boolean isOfflineError(Exception error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if (cause instanceof UnknownHostException
+                    || cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException) return true;
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    static boolean isOnline() {
+        // 초기화되기 전에는 연결 상태를 알 수 없으므로 온라인으로 가정한다.
+        if (context == null) return true;
+
+        ConnectivityManager cm = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        return netInfo != null && netInfo.isConnected();
+    }
+
+    /**
+     * 해당 Entity에 아직 전송되지 않은 변경 사항이 있는지 확인한다.
+     */
+    static boolean hasQueuedMutations(Entity entity) {
+        synchronized (queuedKeys) {
+            return !queuedKeys.isEmpty() && queuedKeys.contains(keyOf(entity));
+        }
+    }
+
+    private static String keyOf(Entity entity) {
+        return entity.localId != null
+                ? keyOf(entity.getClassName(), null, entity.localId)
+                : keyOf(entity.getClassName(), entity.getId(), null);
+    }
+
+    private static String keyOf(String className, String entityId, String localId) {
+        return localId != null ? "local:" + localId : className + "/" + entityId;
+    }
+
+    private static void reloadQueuedKeys() {
+        LocalEntityStore.retrieveOutboxInBackground().onSuccess(new Continuation<ArrayList<Mutation>, Void>() {
+            @Override
+            public Void then(Task<ArrayList<Mutation>> task) throws Exception {
+                // 불러오는 동안 큐에 추가된 키가 있을 수 있으므로, 비우지 않고 합친다.
+                synchronized (queuedKeys) {
+                    for (Mutation mutation : task.getResult()) {
+                        queuedKeys.add(keyOf(mutation.className, mutation.entityId, mutation.localId));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Entity의 변경 사항을 큐에 저장하고, 로컬 데이터에 반영한다.
+     * 콜백에는 {@link com.haru.HaruException#QUEUED_OFFLINE} 코드의 에러가 전달된다.
+     *
+     * @param entity 변경 사항이 있는 Entity
+     * @param callback 저장 콜백
+     * @return 저장 태스크
+     */
+    static Task<Entity> enqueue(final Entity entity, final SaveCallback callback) {
+        synchronized (entity.lock) {
+            Mutation mutation = new Mutation();
+            mutation.className = entity.getClassName();
+            mutation.entityId = entity.getId();
+
+            if (entity.isNewEntity() && entity.localId == null) {
+                // 오프라인에서 새로 생성된 Entity
+                entity.localId = UUID.randomUUID().toString();
+                mutation.localId = entity.localId;
+                mutation.method = METHOD_CREATE;
+                mutation.data = entity.encodeCreateRequest().toString();
+
+                synchronized (localEntities) {
+                    localEntities.put(entity.localId, new WeakReference<Entity>(entity));
+                }
+
+            } else {
+                JSONArray operations = entity.encodeUpdateRequests();
+                mutation.localId = entity.localId;
+                mutation.method = METHOD_UPDATE;
+                mutation.data = operations.length() > 0 ? operations.toString() : null;
+            }
+
+            if (mutation.data != null) {
+                LocalEntityStore.addOutboxMutationInBackground(mutation);
+                synchronized (queuedKeys) {
+                    queuedKeys.add(keyOf(entity));
+                }
+                entity.commitChangesLocally();
+                Haru.logI("OfflineQueue : queued %s of %s", mutation.method, mutation.className);
+            }
+        }
+
+        if (isOnline()) replayInBackground();
+
+        return Task.call(new Callable<Entity>() {
+            @Override
+            public Entity call() throws Exception {
+                if (callback != null) {
+                    callback.done(new HaruException(HaruException.QUEUED_OFFLINE,
+                            "Network offline - changes will be saved when connected."));
+                }
+                return entity;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 큐에 쌓인 변경 사항들을 서버로 전송한다.
+     * 이미 전송중이라면 아무 일도 하지 않는다.
+     *
+     * @return 전송 태스크
+     */
+    public static Task<Void> replayInBackground() {
+        if (!isReplaying.compareAndSet(false, true)) {
+            return Task.forResult(null);
+        }
+
+        return Task.callInBackground(new Callable<List<ReplayGroup>>() {
+            @Override
+            public List<ReplayGroup> call() throws Exception {
+                return coalesce(LocalEntityStore.await(LocalEntityStore.retrieveOutboxInBackground()));
+            }
+        }, Task.Priority.BACKGROUND).onSuccessTask(new Continuation<List<ReplayGroup>, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<List<ReplayGroup>> task) throws Exception {
+                List<ReplayGroup> groups = task.getResult();
+
+                int total = 0;
+                for (ReplayGroup group : groups) total += group.mutationIds.size();
+                replayTotal = total;
+                replayedCount.set(0);
+                if (groups.isEmpty()) return Task.forResult(null);
+
+                Haru.logI("OfflineQueue : replaying %d mutations of %d entities", total, groups.size());
+
+                // Entity별 순서는 지키고, 서로 다른 Entity는 최대 MAX_PARALLEL_REPLAYS개까지 동시에 보낸다.
+                ArrayList<Task<Void>> lanes = new ArrayList<Task<Void>>();
+                for (int lane = 0; lane < MAX_PARALLEL_REPLAYS && lane < groups.size(); lane++) {
+                    Task<Void> laneTask = Task.forResult(null);
+                    for (int i = lane; i < groups.size(); i += MAX_PARALLEL_REPLAYS) {
+                        final ReplayGroup group = groups.get(i);
+                        laneTask = laneTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
+                            @Override
+                            public Task<Void> then(Task<Void> task) throws Exception {
+                                return replay(group);
+                            }
+                        });
+                    }
+                    lanes.add(laneTask);
+                }
+                return Task.whenAll(lanes);
+            }
+        }).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                reloadQueuedKeys();
+                isReplaying.set(false);
+
+                if (task.isFaulted()) {
+                    Haru.logI("OfflineQueue : replay stopped (%s)", task.getError().getMessage());
+                    throw task.getError();
+                }
+                return null;
+            }
+        }, Task.executor(Task.Priority.BACKGROUND));
+    }
+
+    /**
+     * 변경 사항들을 Entity별로 묶고, 같은 Entity의 변경 사항들을 하나의 요청으로 합친다.
+     */
+    private static List<ReplayGroup> coalesce(List<Mutation> mutations) throws JSONException {
+        LinkedHashMap<String, ReplayGroup> groups = new LinkedHashMap<String, ReplayGroup>();
+        for (Mutation mutation : mutations) {
+            String key = keyOf(mutation.className, mutation.entityId, mutation.localId);
+            ReplayGroup group = groups.get(key);
+            if (group == null) {
+                group = new ReplayGroup();
+                group.className = mutation.className;
+                group.localId = mutation.localId;
+                groups.put(key, group);
+            }
+            group.add(mutation);
+        }
+
+        // 생성 요청이 없는데 서버 ID도 모르는 변경 사항은 보낼 수 없다.
+        ArrayList<ReplayGroup> result = new ArrayList<ReplayGroup>();
+        for (ReplayGroup group : groups.values()) {
+            if (group.creation != null || group.entityId != null) result.add(group);
+        }
+        return result;
+    }
+
+    /**
+     * 하나의 Entity에 대한 변경 사항들을 서버로 보낸다.
+     */
+    private static Task<Void> replay(final ReplayGroup group) throws JSONException {
+        Task<HaruResponse> request;
+        if (group.creation != null) {
+            String endpoint = Installation.CLASS_NAME.equals(group.className)
+                    ? "/installations" : "/classes/" + group.className;
+            request = new HaruRequest(endpoint)
+                    .post(group.creation)
+                    .priority(Task.Priority.BACKGROUND)
+                    .executeAsync();
+
+        } else {
+            for (int i = 0; i < group.updates.length(); i++) {
+                group.updates.getJSONObject(i).put("_id", group.entityId);
+            }
+            JSONObject body = new JSONObject();
+            body.put("requests", group.updates);
+            request = new HaruRequest("/batch")
+                    .post(body)
+                    .priority(Task.Priority.BACKGROUND)
+                    .executeAsync();
+        }
+
+        return request.continueWith(new Continuation<HaruResponse, Void>() {
+            @Override
+            public Void then(Task<HaruResponse> task) throws Exception {
+                if (task.isFaulted()) {
+                    // 아직 오프라인이라면 남은 전송을 멈춘다.
+                    throw task.getError();
+                }
+
+                HaruResponse response = task.getResult();
+                HaruException error = response.hasError() ? response.getError() : null;
+                if (error == null && group.creation == null) {
+                    JSONArray results = response.getJsonBody().getJSONArray("results");
+                    for (int i = 0; i < results.length(); i++) {
+                        JSONObject result = results.getJSONObject(i);
+                        if (result.has("code") && result.has("error")) {
+                            error = new HaruException(result.getInt("code"), result.getString("error"));
+                            break;
+                        }
+                    }
+                }
+
+                if (error != null) {
+                    // 서버가 거부한 변경 사항은 다시 보내도 실패하므로 버린다.
+                    Haru.logE("OfflineQueue : dropped mutations of %s (%s)",
+                            group.className, error.getMessage());
+
+                } else if (group.creation != null && group.localId != null) {
+                    resolveCreation(group.localId, response.getJsonBody());
+                }
+
+                LocalEntityStore.await(LocalEntityStore.deleteOutboxMutationsInBackground(group.mutationIds));
+
+                int replayed = replayedCount.addAndGet(group.mutationIds.size());
+                if (replayListener != null) replayListener.onReplayProgress(replayed, replayTotal);
+                return null;
+            }
+        }, Task.executor(Task.Priority.BACKGROUND));
+    }
+
+    /**
+     * 오프라인에서 생성된 Entity가 서버에 저장되었다. 서버 ID를 Entity와 남은 변경 사항에 채운다.
+     */
+    private static void resolveCreation(String localId, JSONObject result) throws JSONException {
+        String entityId = result.getString("_id");
+        LocalEntityStore.await(LocalEntityStore.resolveOutboxEntityIdInBackground(localId, entityId));
+
+        WeakReference<Entity> reference;
+        synchronized (localEntities) {
+            reference = localEntities.remove(localId);
+        }
+        Entity entity = reference != null ? reference.get() : null;
+        if (entity != null) {
+            synchronized (entity.lock) {
+                entity.applyReplayedCreation(result);
+            }
+        }
+    }
+}
@@ -1,25 +1,38 @@
 package com.haru;
 
+import com.haru.json.JsonWritable;
+import com.haru.json.JsonWriter;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Haru 서버 API를 호출 시 보낼 파라미터를 작성할 때 사용된다.
  */
-public class Param implements JsonEncodable {
+public class Param implements JsonEncodable, JsonWritable {
     private HashMap<String, Object> paramMap;
 
     public Param() {
         paramMap = new HashMap<String, Object>();
     }
 
+    /**
+     * 주어진 Map을 복사하지 않고 그대로 파라미터로 사용한다.
+     */
+    Param(HashMap<String, Object> paramMap) {
+        this.paramMap = paramMap;
+    }
+
     public void put(String key, Object value) {
         paramMap.put(key, value);
     }
@@ -36,18 +49,44 @@ public class Param implements JsonEncodable {
         return paramMap.get(key);
     }
 
+    /**
+     * 파라미터를 복사한다. 중첩된 Map과 List도 복사되므로, 복사한 후에 원본을 바꿔도 복사본에는 영향이 없다.
+     */
+    @SuppressWarnings("unchecked")
+    Param copy() {
+        return new Param((HashMap<String, Object>) copyValue(paramMap));
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            HashMap<String, Object> copied = new HashMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copied.put(String.valueOf(entry.getKey()), copyValue(entry.getValue()));
+            }
+            return copied;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            ArrayList<Object> copied = new ArrayList<Object>(list.size());
+            for (Object item : list) copied.add(copyValue(item));
+            return copied;
+        }
+        return value;
+    }
+
     /**
      * 파라미터들을 URL Encoding된 포맷으로 변환한다. (param1=name&param2=name)
+     * 같은 파라미터는 항상 같은 문자열이 되도록 키 순서대로 정렬한다.
      * @return String (URL Encoded UTF-8)
      */
     String toUrl() {
         try {
             StringBuilder query = new StringBuilder();
-            Iterator iter = paramMap.entrySet().iterator();
+            Iterator iter = new TreeMap<String, Object>(paramMap).entrySet().iterator();
             while (iter.hasNext()) {
                 Map.Entry entry = (Map.Entry) iter.next();
                 query.append(entry.getKey() + "="
-                        + URLEncoder.encode((String) entry.getValue(), "utf-8") + "&");
+                        + URLEncoder.encode(String.valueOf(entry.getValue()), "utf-8") + "&");
             }
             return query.toString();
 
@@ -65,6 +104,14 @@ public class Param implements JsonEncodable {
         return new JSONObject(paramMap);
     }
 
+    /**
+     * 파라미터들을 JSONObject를 만들지 않고 바로 쓴다.
+     */
+    @Override
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.value(paramMap);
+    }
+
     public static Param fromJson(JSONObject json) {
         Param param = new Param();
         param.paramMap = Haru.convertJsonToMap(json);
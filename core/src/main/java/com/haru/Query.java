@@ -2,6 +2,7 @@ package com.haru;
 
 import com.haru.callback.FindCallback;
 import com.haru.callback.GetCallback;
+import com.haru.json.JsonReader;
 import com.haru.task.Continuation;
 import com.haru.task.Task;
 
@@ -10,6 +11,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -27,6 +29,11 @@ public class Query {
     private int countPerPage = -1, pageIndex = -1;
     private String sortOption = "";
 
+    public static final long DEFAULT_MAX_CACHE_AGE = 24 * 60 * 60 * 1000L;
+
+    private QueryCachePolicy cachePolicy = QueryCachePolicy.NETWORK_ONLY;
+    private long maxCacheAge = DEFAULT_MAX_CACHE_AGE;
+
     private Query(Class<? extends Entity> subclassedClass) {
         this.className = Entity.getClassName(subclassedClass);
         this.classObject = subclassedClass;
@@ -297,8 +304,58 @@ public class Query {
         return this;
     }
 
+    /**
+     * 쿼리 결과를 로컬 캐시에서 가져올지, 서버에서 가져올지 설정한다.
+     * 기본값은 {@link QueryCachePolicy#NETWORK_ONLY}이다.
+     *
+     * @param policy {@link com.haru.QueryCachePolicy}
+     */
+    public Query cachePolicy(QueryCachePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Cache policy cannot be null!");
+        }
+        this.cachePolicy = policy;
+        return this;
+    }
+
+    /**
+     * 캐시된 결과의 최대 수명을 설정한다. 이보다 오래된 결과는 없는 것으로 취급한다. 기본값은 하루이다.
+     *
+     * @param millis 최대 수명 (ms)
+     */
+    public Query maxCacheAge(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("maxCacheAge must be positive number!");
+        }
+        this.maxCacheAge = millis;
+        return this;
+    }
+
+    /**
+     * 이 쿼리의 캐시된 결과를 삭제한다.
+     */
+    public void clearCachedResult() {
+        // 캐시 키에 현재 유저가 들어가므로, 현재 유저를 불러온 후에 삭제한다.
+        User.getCurrentUserInBackground().onSuccess(new Continuation<User, Void>() {
+            @Override
+            public Void then(Task<User> task) throws Exception {
+                LocalEntityStore.deleteQueryResultsInBackground(getCacheKey("findAll"));
+                LocalEntityStore.deleteQueryResultsInBackground(getCacheKey("findOne"));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 캐시된 모든 쿼리 결과를 삭제한다.
+     */
+    public static void clearAllCachedResults() {
+        LocalEntityStore.deleteQueryResultsInBackground(null);
+    }
+
     /**
      * 쿼리를 수행한 결과(Entity)의 목록을 받는다.
+     * {@link QueryCachePolicy#CACHE_THEN_NETWORK}일 때는 두 번 호출될 수 있다.
      *
      * @param callback {@link com.haru.callback.FindCallback}
      */
@@ -315,52 +372,146 @@ public class Query {
             param.put("page", sortParam);
         }
 
-        Task<HaruResponse> findTask = new HaruRequest("/classes/" + className)
-                .get(param)
-                .executeAsync();
+        find("findAll", param, callback);
+    }
 
-        findTask.continueWith(new Continuation<HaruResponse, Object>() {
+    /**
+     * 쿼리를 수행하고 1개의 결과만을 받는다.
+     * {@link QueryCachePolicy#CACHE_THEN_NETWORK}일 때는 두 번 호출될 수 있다.
+     *
+     * @param callback {@link com.haru.callback.GetCallback}
+     */
+    public void findOne(final GetCallback callback) {
+        Param param = new Param();
+        param.put("where", mainQueryObject);
+
+        find("findOne", param, new FindCallback() {
             @Override
-            public Object then(Task<HaruResponse> task) throws Exception {
+            public void done(List<Entity> findResult, HaruException error) {
+                if (error != null) {
+                    callback.done(null, error);
+
+                } else if (findResult.isEmpty()) {
+                    callback.done(null, null);
 
+                } else callback.done(findResult.get(0), null);
+            }
+        });
+    }
+
+    /**
+     * 로컬 데이터스토어에 저장된 Entity들에 대해 쿼리를 수행한다. 네트워크를 사용하지 않는다.
+     * 조건, 정렬, 페이지는 서버에서 수행할 때와 같게 적용된다.
+     *
+     * @param callback {@link com.haru.callback.FindCallback}
+     */
+    public void findAllFromLocal(final FindCallback callback) {
+        final LocalQuery localQuery = new LocalQuery(className, mainQueryObject, sortOption, countPerPage, pageIndex);
+        findInLocal(localQuery).continueWith(new Continuation<List<Entity>, Void>() {
+            @Override
+            public Void then(Task<List<Entity>> task) throws Exception {
                 if (task.isFaulted()) {
-                    // Exception
-                    task.getError().printStackTrace();
                     callback.done(null, new HaruException(task.getError()));
-                    throw task.getError();
-                }
 
+                } else callback.done(task.getResult(), null);
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
 
-                HaruResponse response = task.getResult();
-                if (response.hasError()) {
-                    // API Error
-                    callback.done(null, response.getError());
-                    throw response.getError();
-                }
+    /**
+     * 로컬 데이터스토어에 저장된 Entity들에 대해 쿼리를 수행하고 1개의 결과만을 받는다.
+     *
+     * @param callback {@link com.haru.callback.GetCallback}
+     */
+    public void findOneFromLocal(final GetCallback callback) {
+        final LocalQuery localQuery = new LocalQuery(className, mainQueryObject, sortOption, 1, 0);
+        findInLocal(localQuery).continueWith(new Continuation<List<Entity>, Void>() {
+            @Override
+            public Void then(Task<List<Entity>> task) throws Exception {
+                if (task.isFaulted()) {
+                    callback.done(null, new HaruException(task.getError()));
 
-                // re-encode results(containedIn JSON format) to Entity Object
-                ArrayList<Entity> findResult = new ArrayList<Entity>();
-                JSONArray array = response.getJsonBody().getJSONArray("results");
-                for (int i = 0; i < array.length(); i++) {
-                    findResult.add(Entity.fromJson(classObject, className, array.getJSONObject(i)));
-                }
+                } else if (task.getResult().isEmpty()) {
+                    callback.done(null, null);
 
-                callback.done(findResult, null);
+                } else callback.done(task.getResult().get(0), null);
                 return null;
             }
-        });
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    private Task<List<Entity>> findInLocal(LocalQuery localQuery) {
+        return LocalEntityStore.findInBackground(localQuery);
     }
 
     /**
-     * 쿼리를 수행하고 1개의 결과만을 받는다.
-     *
-     * @param callback {@link com.haru.callback.GetCallback}
+     * 현재 유저를 불러온 후에 쿼리를 수행한다. 캐시 키에 현재 유저가 들어가므로,
+     * 아직 불러오는 중이라면 호출한 스레드를 막지 않고 기다린다.
+     * @param operation findAll 또는 findOne
      */
-    public void findOne(final GetCallback callback) {
-        Param param = new Param();
-        param.put("where", mainQueryObject);
+    private void find(final String operation, final Param param, final FindCallback callback) {
+        User.getCurrentUserInBackground().continueWith(new Continuation<User, Void>() {
+            @Override
+            public Void then(Task<User> task) throws Exception {
+                if (task.isFaulted()) {
+                    callback.done(null, new HaruException(task.getError()));
+                    return null;
+                }
+                findWithCachePolicy(getCacheKey(operation), param, callback);
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 캐시 정책에 따라 로컬 캐시, 혹은 서버로부터 쿼리 결과를 가져온다.
+     * 콜백은 UI 스레드에서 호출된다.
+     */
+    private void findWithCachePolicy(final String cacheKey, final Param param, final FindCallback callback) {
+        switch (cachePolicy) {
+            case CACHE_ONLY:
+                findInCache(cacheKey).continueWith(new Continuation<List<Entity>, Void>() {
+                    @Override
+                    public Void then(Task<List<Entity>> task) throws Exception {
+                        if (task.isFaulted()) {
+                            callback.done(null, new HaruException(task.getError()));
+
+                        } else if (task.getResult() == null) {
+                            callback.done(null, new HaruException(HaruException.CACHE_MISS,
+                                    "No cached results for the query."));
+
+                        } else callback.done(task.getResult(), null);
+                        return null;
+                    }
+                }, Task.UI_THREAD_EXECUTOR);
+                break;
+
+            case CACHE_ELSE_NETWORK:
+            case CACHE_THEN_NETWORK:
+                findInCache(cacheKey).continueWith(new Continuation<List<Entity>, Void>() {
+                    @Override
+                    public Void then(Task<List<Entity>> task) throws Exception {
+                        List<Entity> cached = task.isFaulted() ? null : task.getResult();
+                        if (cached != null) {
+                            callback.done(cached, null);
+                            if (cachePolicy == QueryCachePolicy.CACHE_ELSE_NETWORK) return null;
+                        }
+                        findInNetwork(cacheKey, param, callback);
+                        return null;
+                    }
+                }, Task.UI_THREAD_EXECUTOR);
+                break;
+
+            default:
+                findInNetwork(cacheKey, param, callback);
+        }
+    }
+
+    private void findInNetwork(final String cacheKey, Param param, final FindCallback callback) {
         Task<HaruResponse> findTask = new HaruRequest("/classes/" + className)
                 .get(param)
+                .decodeResultsWith(newEntityDecoder())
                 .executeAsync();
 
         findTask.continueWith(new Continuation<HaruResponse, Object>() {
@@ -369,10 +520,20 @@ public class Query {
 
                 if (task.isFaulted()) {
                     // Exception
+                    task.getError().printStackTrace();
+
+                    // 네트워크 에러라면 캐시된 결과를 대신 사용한다.
+                    if (cachePolicy == QueryCachePolicy.NETWORK_ELSE_CACHE
+                            && RetryPolicy.isNetworkError(task.getError())) {
+                        findInCacheAfterError(cacheKey, task.getError(), callback);
+                        return null;
+                    }
+
                     callback.done(null, new HaruException(task.getError()));
                     throw task.getError();
                 }
 
+
                 HaruResponse response = task.getResult();
                 if (response.hasError()) {
                     // API Error
@@ -380,13 +541,109 @@ public class Query {
                     throw response.getError();
                 }
 
-                // re-encode results(containedIn JSON format) to Entity Object
-                JSONArray array = response.getJsonBody().getJSONArray("results");
+                // results are already decoded to Entity while streaming
+                ArrayList<Entity> findResult = new ArrayList<Entity>();
+                if (response.getResults() != null) {
+                    for (Object entity : response.getResults()) {
+                        findResult.add((Entity) entity);
+                    }
+                }
+
+                if (cachePolicy != QueryCachePolicy.NETWORK_ONLY) saveToCache(cacheKey, findResult);
 
-                callback.done(Entity.fromJson(classObject, className, array.getJSONObject(0)), null);
+                callback.done(findResult, null);
                 return null;
             }
-        });
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    private void findInCacheAfterError(String cacheKey, final Exception error, final FindCallback callback) {
+        findInCache(cacheKey).continueWith(new Continuation<List<Entity>, Void>() {
+            @Override
+            public Void then(Task<List<Entity>> task) throws Exception {
+                if (task.isFaulted() || task.getResult() == null) {
+                    callback.done(null, new HaruException(error));
+
+                } else callback.done(task.getResult(), null);
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 캐시된 결과를 백그라운드에서 읽는다.
+     * @return 캐시된 결과 (없거나 오래되었을 시 null)
+     */
+    private Task<List<Entity>> findInCache(String cacheKey) {
+        return LocalEntityStore.retrieveQueryResultsInBackground(cacheKey, className, maxCacheAge);
+    }
+
+    private void saveToCache(String cacheKey, List<Entity> results) {
+        LocalEntityStore.saveQueryResultsInBackground(cacheKey, className, results, maxCacheAge);
+    }
+
+    /**
+     * 캐시 키를 만든다. 같은 조건의 쿼리는 조건을 추가한 순서와 상관없이 같은 키를 가진다.
+     * 다른 유저의 결과가 보이지 않도록 키에 현재 유저의 ID를 포함한다.
+     * @param operation findAll 또는 findOne
+     */
+    private String getCacheKey(String operation) {
+        User user = User.getCurrentUser();
+        StringBuilder key = new StringBuilder();
+        key.append(operation).append(':').append(className).append(':');
+        key.append("user=").append(user != null ? user.getId() : "").append(':');
+        appendCanonical(key, mainQueryObject);
+        key.append(":sort=").append(sortOption);
+        if (countPerPage != -1 && pageIndex != -1) {
+            key.append(":page=").append(countPerPage).append(',').append(pageIndex);
+        }
+        return key.toString();
+    }
+
+    /**
+     * JSON을 키 순서대로 정렬해서 문자열로 만든다.
+     */
+    private static void appendCanonical(StringBuilder builder, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            ArrayList<String> keys = new ArrayList<String>();
+            Iterator<?> iter = object.keys();
+            while (iter.hasNext()) keys.add((String) iter.next());
+            Collections.sort(keys);
+
+            builder.append('{');
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) builder.append(',');
+                builder.append(JSONObject.quote(keys.get(i))).append(':');
+                appendCanonical(builder, object.opt(keys.get(i)));
+            }
+            builder.append('}');
+
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            builder.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) builder.append(',');
+                appendCanonical(builder, array.opt(i));
+            }
+            builder.append(']');
+
+        } else if (value instanceof String) {
+            builder.append(JSONObject.quote((String) value));
+
+        } else builder.append(value);
+    }
+
+    /**
+     * 응답의 각 결과를 스트리밍으로 읽어 Entity로 변환하는 decoder를 만든다.
+     */
+    private ResultDecoder<Entity> newEntityDecoder() {
+        return new ResultDecoder<Entity>() {
+            @Override
+            public Entity decode(JsonReader reader) throws Exception {
+                return Entity.fromJson(classObject, className, reader);
+            }
+        };
     }
 
     @Override
@@ -0,0 +1,36 @@
+package com.haru;
+
+/**
+ * {@link com.haru.Query}의 결과를 로컬 캐시 ({@link com.haru.LocalEntityStore})에서 가져올지,
+ * 서버에서 가져올지 결정한다. {@link com.haru.Query#cachePolicy(QueryCachePolicy)}로 지정할 수 있다.
+ *
+ * 쿼리 결과는 클래스 이름, 조건, 정렬, 페이지별로 캐시된다.
+ */
+public enum QueryCachePolicy {
+
+    /**
+     * 기본값. 캐시를 사용하지 않고 항상 서버에서 가져온다. 결과를 캐시하지도 않는다.
+     */
+    NETWORK_ONLY,
+
+    /**
+     * 캐시된 결과만 사용한다. 캐시된 결과가 없다면 에러가 전달된다.
+     */
+    CACHE_ONLY,
+
+    /**
+     * 캐시된 결과가 있으면 서버에 요청하지 않고 바로 사용한다. 없을 때만 서버에서 가져온다.
+     */
+    CACHE_ELSE_NETWORK,
+
+    /**
+     * 캐시된 결과가 있으면 먼저 전달하고, 서버에서 가져온 결과를 한 번 더 전달한다.
+     * 콜백이 두 번 호출될 수 있다.
+     */
+    CACHE_THEN_NETWORK,
+
+    /**
+     * 서버에서 가져오되, 네트워크 에러로 실패하면 캐시된 결과를 사용한다.
+     */
+    NETWORK_ELSE_CACHE
+}
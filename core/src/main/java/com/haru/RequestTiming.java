@@ -0,0 +1,180 @@
+package com.haru;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 하나의 HTTP 요청이 각 단계에서 걸린 시간과 주고받은 크기를 기록한다.
+ * 측정할 수 없는 단계의 값은 -1이다.
+ *
+ * @see com.haru.NetworkMetrics
+ */
+public class RequestTiming {
+
+    String endpointTemplate;
+    String method;
+    int statusCode = -1;
+    int attempt;
+    boolean isStreamed;
+    String error;
+
+    long queueWaitMillis = -1;
+    long connectMillis = -1;
+    long timeToFirstByteMillis = -1;
+    long bodyReadMillis = -1;
+    long parseMillis = -1;
+    long dispatchMillis = -1;
+
+    long bytesSent = -1;
+    long bytesReceived = -1;
+
+    // System.nanoTime() 기준 시각
+    long submittedAt;
+    long finishedAt;
+
+    RequestTiming(String endpointTemplate, String method, int attempt) {
+        this.endpointTemplate = endpointTemplate;
+        this.method = method;
+        this.attempt = attempt;
+        this.submittedAt = System.nanoTime();
+    }
+
+    /**
+     * 엔드포인트의 형태를 반환한다. ID 등의 값은 :id로 바뀐다. (예: /classes/Post/:id)
+     */
+    public String getEndpointTemplate() {
+        return endpointTemplate;
+    }
+
+    /**
+     * @return HTTP 메서드 (GET, POST, PUT, DELETE)
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return HTTP 상태 코드 (응답을 받지 못했을 시 -1)
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return 재시도 횟수 (처음 보낸 요청은 0)
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * 응답을 스트리밍으로 변환했는지 여부. 이 경우 JSON 변환 시간은 본문 읽기 시간에 포함된다.
+     */
+    public boolean isStreamed() {
+        return isStreamed;
+    }
+
+    /**
+     * @return 요청이 실패했을 시 에러 메세지 (성공했을 시 null)
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return 백그라운드 스레드 풀에서 실행되기를 기다린 시간 (ms)
+     */
+    public long getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    /**
+     * @return 연결 (DNS, TCP, TLS)에 걸린 시간 (ms). HTTP 엔진이 측정하지 않으면 -1
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return 요청을 보내기 시작해서 응답 헤더를 받을 때까지 걸린 시간 (ms). 연결 시간을 포함한다.
+     */
+    public long getTimeToFirstByteMillis() {
+        return timeToFirstByteMillis;
+    }
+
+    /**
+     * @return 응답 본문을 읽는 데 걸린 시간 (ms)
+     */
+    public long getBodyReadMillis() {
+        return bodyReadMillis;
+    }
+
+    /**
+     * @return 응답 본문을 JSON으로 변환하는 데 걸린 시간 (ms)
+     */
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    /**
+     * @return 요청이 끝난 뒤 UI 스레드에서 결과가 전달될 때까지 기다린 시간 (ms)
+     */
+    public long getDispatchMillis() {
+        return dispatchMillis;
+    }
+
+    /**
+     * @return 보낸 요청 본문의 크기 (bytes)
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return 받은 응답 본문의 크기 (bytes, 압축된 크기)
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return 요청이 시작되어 끝날 때까지 걸린 시간 (ms). UI 스레드 전달 시간은 제외한다.
+     */
+    public long getTotalMillis() {
+        return (finishedAt - submittedAt) / 1000000;
+    }
+
+    public JSONObject toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("endpoint", endpointTemplate);
+            json.put("method", method);
+            json.put("status", statusCode);
+            json.put("attempt", attempt);
+            json.put("streamed", isStreamed);
+            if (error != null) json.put("error", error);
+            json.put("queueWait", queueWaitMillis);
+            json.put("connect", connectMillis);
+            json.put("timeToFirstByte", timeToFirstByteMillis);
+            json.put("bodyRead", bodyReadMillis);
+            json.put("parse", parseMillis);
+            json.put("dispatch", dispatchMillis);
+            json.put("total", getTotalMillis());
+            json.put("bytesSent", bytesSent);
+            json.put("bytesReceived", bytesReceived);
+            return json;
+
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    static long millisSince(long nanoTime) {
+        return (System.nanoTime() - nanoTime) / 1000000;
+    }
+}
@@ -0,0 +1,359 @@
+package com.haru;
+
+import android.content.Context;
+
+import com.haru.task.Task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * GET 응답을 검증자 (ETag, Last-Modified)와 함께 디스크에 저장하는 캐시이다.
+ * 최대 크기를 넘으면 가장 오래 사용되지 않은 응답부터 지운다 (LRU).
+ *
+ * 파일을 읽고 쓰는 작업은 lock 밖에서 이루어지며, lock은 LRU 목록을 갱신할 때만 잡는다.
+ * 응답은 임시 파일 (.tmp)에 먼저 쓴 뒤 이름을 바꿔 저장하므로, 읽는 쪽은 항상 완성된 파일을 읽는다.
+ *
+ * @see com.haru.CachePolicy
+ */
+public class ResponseCache {
+
+    public static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final String CACHE_DIR_NAME = "haru-responses";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // 캐시할 수 있는 엔드포인트들. 로그인과 같은 요청은 캐시하지 않는다.
+    private static final String[] CACHEABLE_PATHS = {
+            "/classes/", "/config", "/faq/", "/notice/"
+    };
+
+    private static final Object lock = new Object();
+
+    private static File cacheDir;
+    private static long maxSize = DEFAULT_MAX_SIZE;
+    private static long currentSize = 0;
+
+    // 파일 이름 → 크기. 접근 순서대로 정렬된다.
+    private static final LinkedHashMap<String, Long> entries =
+            new LinkedHashMap<String, Long>(32, 0.75f, true);
+
+    // 디스크의 캐시 목록을 다 읽었는지 여부. 다 읽기 전에는 캐시를 사용하는 쪽이 기다린다.
+    private static boolean isLoaded = false;
+
+    /**
+     * 캐시된 응답.
+     */
+    static class Entry {
+        String etag;
+        String lastModified;
+        long storedAt;
+        String body;
+    }
+
+    static void initialize(Context context) {
+        synchronized (lock) {
+            cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+            isLoaded = false;
+        }
+
+        // 파일 목록을 읽어 정렬하고 지우는 작업은 Haru.init을 부른 UI 스레드가 아닌 백그라운드에서 한다.
+        Task.callInBackground(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                load();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 마지막으로 사용된 순서대로 LRU 목록을 복원한다.
+     */
+    private static void load() {
+        File dir;
+        synchronized (lock) {
+            dir = cacheDir;
+        }
+
+        File[] files = null;
+        boolean isAvailable = dir.exists() || dir.mkdirs();
+        if (isAvailable) {
+            files = dir.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        long diff = lhs.lastModified() - rhs.lastModified();
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+            }
+        } else Haru.logE("ResponseCache : failed to create cache directory");
+
+        ArrayList<String> evicted = new ArrayList<String>();
+        synchronized (lock) {
+            if (!isAvailable) {
+                cacheDir = null;
+
+            } else if (files != null) {
+                entries.clear();
+                currentSize = 0;
+                for (File file : files) {
+                    if (file.getName().endsWith(TEMP_SUFFIX)) {
+                        // 저장하다 중단된 응답
+                        evicted.add(file.getName());
+                        continue;
+                    }
+                    entries.put(file.getName(), file.length());
+                    currentSize += file.length();
+                }
+                evicted.addAll(trimToSize());
+            }
+            isLoaded = true;
+            lock.notifyAll();
+        }
+        deleteFiles(evicted);
+    }
+
+    /**
+     * 캐시 목록을 다 읽을 때까지 기다린다. lock 안에서 호출된다.
+     * @return 캐시를 사용할 수 있는지 여부
+     */
+    private static boolean awaitLoaded() {
+        while (cacheDir != null && !isLoaded) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return cacheDir != null;
+    }
+
+    /**
+     * 캐시의 최대 크기를 설정한다. 기본값은 4MB이다.
+     * @param bytes 최대 크기 (bytes)
+     */
+    public static void setMaxSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Cache size must be positive number!");
+        }
+        ArrayList<String> evicted = null;
+        synchronized (lock) {
+            maxSize = bytes;
+            // 목록을 읽는 중이라면 다 읽은 후에 정리된다.
+            if (isLoaded) evicted = trimToSize();
+        }
+        if (evicted != null) deleteFiles(evicted);
+    }
+
+    static long getMaxSize() {
+        synchronized (lock) {
+            return maxSize;
+        }
+    }
+
+    /**
+     * 현재 캐시가 사용중인 크기를 반환한다.
+     * @return 크기 (bytes)
+     */
+    public static long getSize() {
+        synchronized (lock) {
+            return currentSize;
+        }
+    }
+
+    /**
+     * 캐시된 모든 응답을 지운다. 로그아웃할 때에도 호출된다.
+     */
+    public static void clear() {
+        ArrayList<String> names;
+        synchronized (lock) {
+            if (!awaitLoaded()) return;
+            names = new ArrayList<String>(entries.keySet());
+            entries.clear();
+            currentSize = 0;
+        }
+        deleteFiles(names);
+    }
+
+    /**
+     * 해당 URL의 응답을 캐시할 수 있는지 확인한다.
+     * @param url 요청 URL
+     */
+    static boolean isCacheable(String url) {
+        if (cacheDir == null) return false;
+        for (String path : CACHEABLE_PATHS) {
+            if (url.contains(path)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 캐시된 응답을 가져온다.
+     * @param key 요청 키
+     * @return 캐시된 응답 (없을 시 null)
+     */
+    static Entry get(String key) {
+        String name = Haru.cacheFileNameOf(key);
+        File file;
+        synchronized (lock) {
+            if (!awaitLoaded()) return null;
+
+            // LRU 순서는 여기서 갱신된다.
+            if (entries.get(name) == null) return null;
+            file = new File(cacheDir, name);
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            Entry entry = new Entry();
+            entry.etag = emptyToNull(in.readUTF());
+            entry.lastModified = emptyToNull(in.readUTF());
+            entry.storedAt = in.readLong();
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) body.write(buffer, 0, read);
+            entry.body = body.toString("utf-8");
+
+            // 다음 실행에서 LRU 순서를 복원하기 위해 마지막 사용 시각을 기록한다.
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+
+        } catch (IOException e) {
+            // 읽는 사이에 지워졌거나 손상된 파일
+            synchronized (lock) {
+                Long size = entries.remove(name);
+                if (size != null) currentSize -= size;
+            }
+            file.delete();
+            return null;
+
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 응답을 캐시에 저장한다.
+     * @param key 요청 키
+     * @param etag ETag 헤더 값 (없을 시 null)
+     * @param lastModified Last-Modified 헤더 값 (없을 시 null)
+     * @param body 응답 본문
+     */
+    static void put(String key, String etag, String lastModified, String body) {
+        File temp = createTempFile();
+        if (temp == null) return;
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            writeHeader(out, etag, lastModified);
+            out.write(body.getBytes("utf-8"));
+            out.close();
+            out = null;
+            commit(key, temp);
+
+        } catch (IOException e) {
+            Haru.logE("ResponseCache : failed to store response (%s)", e.getMessage());
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    /**
+     * 응답을 쓸 임시 파일을 만든다.
+     * @return 임시 파일 (캐시를 사용할 수 없을 시 null)
+     */
+    static File createTempFile() {
+        File dir = cacheDir;
+        if (dir == null) return null;
+        return new File(dir, UUID.randomUUID().toString() + TEMP_SUFFIX);
+    }
+
+    static void writeHeader(DataOutputStream out, String etag, String lastModified) throws IOException {
+        out.writeUTF(etag != null ? etag : "");
+        out.writeUTF(lastModified != null ? lastModified : "");
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * 다 쓴 임시 파일을 해당 키의 응답으로 저장한다.
+     * @param key 요청 키
+     * @param temp {@link #createTempFile()}로 만든 임시 파일
+     */
+    static void commit(String key, File temp) {
+        String name = Haru.cacheFileNameOf(key);
+        long size = temp.length();
+        ArrayList<String> evicted;
+        synchronized (lock) {
+            // 같은 디렉토리 안에서의 이름 변경이므로 빠르고, 읽는 쪽은 이전 파일이나 새 파일 중 하나를 읽는다.
+            if (!awaitLoaded() || !temp.renameTo(new File(cacheDir, name))) {
+                temp.delete();
+                return;
+            }
+
+            Long previousSize = entries.put(name, size);
+            if (previousSize != null) currentSize -= previousSize;
+            currentSize += size;
+            evicted = trimToSize();
+        }
+        deleteFiles(evicted);
+    }
+
+    /**
+     * 최대 크기를 넘지 않을 때까지 가장 오래 사용되지 않은 응답부터 LRU 목록에서 뺀다.
+     * lock 안에서 호출되며, 파일은 lock 밖에서 {@link #deleteFiles}로 지운다.
+     * @return 지워야 할 파일 이름들
+     */
+    private static ArrayList<String> trimToSize() {
+        ArrayList<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+        while (currentSize > maxSize && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            evicted.add(eldest.getKey());
+            currentSize -= eldest.getValue();
+            iter.remove();
+        }
+        return evicted;
+    }
+
+    private static void deleteFiles(ArrayList<String> names) {
+        File dir = cacheDir;
+        if (dir == null) return;
+        for (String name : names) new File(dir, name).delete();
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() == 0 ? null : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
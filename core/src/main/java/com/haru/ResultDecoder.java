@@ -0,0 +1,16 @@
+package com.haru;
+
+import com.haru.json.JsonReader;
+
+/**
+ * 응답의 results 배열을 스트리밍으로 읽을 때, 각 원소를 객체로 변환한다.
+ * {@link com.haru.HaruRequest#decodeResultsWith(ResultDecoder)}
+ */
+interface ResultDecoder<T> {
+    /**
+     * results 배열의 원소 하나를 읽어 변환한다.
+     * @param reader 원소의 시작 위치에 있는 JsonReader
+     * @return 변환된 객체
+     */
+    T decode(JsonReader reader) throws Exception;
+}
@@ -0,0 +1,108 @@
+package com.haru;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 실패한 요청을 재시도하는 방법을 정의한다.
+ *
+ * 재시도는 멱등성이 보장되는 메서드 (GET, PUT, DELETE)에만 적용되며,
+ * 네트워크 에러와 서버 장애 (5xx, 429)만 재시도한다. 4xx 에러는 재시도하지 않는다.
+ * 재시도 간격은 지수적으로 늘어나며, 여러 클라이언트가 동시에 재시도하지 않도록
+ * 0부터 그 간격 사이의 임의의 시간을 기다린다. (full jitter)
+ */
+public class RetryPolicy {
+
+    /**
+     * 재시도하지 않는다.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    /**
+     * 기본값. 최대 3번, 250ms부터 최대 8초 간격으로 재시도한다.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 250, 8000);
+
+    private static volatile RetryPolicy defaultPolicy = DEFAULT;
+    private static final Random random = new Random();
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * @param maxRetries 최대 재시도 횟수
+     * @param baseDelayMillis 첫 재시도 간격 (ms)
+     * @param maxDelayMillis 최대 재시도 간격 (ms)
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        if (maxRetries < 0 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy!");
+        }
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * 모든 요청에 기본으로 적용할 재시도 정책을 설정한다.
+     * 요청마다 {@link com.haru.HaruRequest#retryPolicy(RetryPolicy)}로 바꿀 수 있다.
+     * @param policy 재시도 정책
+     */
+    public static void setDefault(RetryPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy may not be null");
+        }
+        defaultPolicy = policy;
+    }
+
+    public static RetryPolicy getDefault() {
+        return defaultPolicy;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 재시도하기 전에 기다릴 시간을 반환한다.
+     * @param retryCount 지금까지 재시도한 횟수
+     * @return 기다릴 시간 (ms)
+     */
+    long getDelayMillis(int retryCount) {
+        long ceiling = baseDelayMillis << Math.min(retryCount, 20);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) ceiling = maxDelayMillis;
+
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * 재시도할 수 있는 에러인지 확인한다.
+     * @param error 요청 중 발생한 에러
+     */
+    static boolean isRetryable(Exception error) {
+        if (error instanceof CircuitBreakerOpenException) return false;
+        return isNetworkError(error) || isServerError(error);
+    }
+
+    /**
+     * 네트워크 에러 (IOException)인지 확인한다.
+     */
+    static boolean isNetworkError(Exception error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if (cause instanceof IOException) return true;
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * 서버의 일시적인 장애 (5xx, 429)인지 확인한다.
+     */
+    static boolean isServerError(Exception error) {
+        return error instanceof HttpStatusException && ((HttpStatusException) error).isServerError();
+    }
+}
@@ -0,0 +1,315 @@
+package com.haru;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.haru.mime.ProgressOutputStream;
+import com.haru.task.AggregateException;
+import com.haru.task.Continuation;
+import com.haru.task.Task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 여러 개의 {@link com.haru.HaruFile}을 제한된 수만큼 동시에 업로드한다.
+ *
+ * 동시에 올리는 파일의 수는 네트워크 상태에 맞추어 조절된다. 동시 업로드를 늘려서 전체 전송 속도가
+ * 빨라지면 늘리고, 느려지거나 네트워크 에러가 나면 줄인다.
+ * 전체와 파일별 진행 상황을 {@link com.haru.mime.ProgressOutputStream.ProgressListener}로 받을 수 있고,
+ * 전체 업로드를 일시정지, 재개, 취소할 수 있다.
+ *
+ * <pre>
+ * UploadManager manager = new UploadManager(photos);
+ * manager.setProgressListener(listener);
+ * manager.start().continueWith(...);
+ * </pre>
+ */
+public class UploadManager {
+
+    public static final int MAX_CONCURRENT_UPLOADS = 4;
+
+    private final Object lock = new Object();
+
+    private final ArrayList<HaruFile> files;
+    private final LinkedList<HaruFile> pending;
+    private final HashMap<HaruFile, Long> transferred = new HashMap<HaruFile, Long>();
+    private final HashMap<HaruFile, ProgressOutputStream.ProgressListener> fileListeners =
+            new HashMap<HaruFile, ProgressOutputStream.ProgressListener>();
+    private final ArrayList<Exception> errors = new ArrayList<Exception>();
+    private final long totalBytes;
+
+    private ProgressOutputStream.ProgressListener progressListener;
+    private int fixedConcurrency = 0;
+
+    // 조각으로 올리는 파일은 이 값이 true가 되면 다음 조각을 보내지 않고 멈춘다.
+    private final AtomicBoolean stopRequested = new AtomicBoolean(false);
+    private Task.TaskCompletionSource tcs;
+    private boolean isPaused, isCancelled;
+    private int concurrency, running;
+
+    // 동시 업로드 수를 조절하기 위한 전송 속도 측정
+    private long windowStartedAt, windowBytes;
+    private double lastThroughput = 0;
+
+    /**
+     * @param files 업로드할 파일들
+     * @throws IllegalArgumentException 업로드할 내용이 없는 파일 (서버의 파일 정보만 가진 파일 등)이 있을 때
+     */
+    public UploadManager(Collection<HaruFile> files) {
+        // 업로드 도중 (lock 안에서) 예외가 나지 않도록 미리 확인한다.
+        for (HaruFile file : files) {
+            if (file == null) throw new IllegalArgumentException("File cannot be null.");
+            if (!file.isAccessible()) {
+                throw new IllegalArgumentException("The original file path of " + file.getId() + " is not set.");
+            }
+        }
+
+        this.files = new ArrayList<HaruFile>(files);
+        this.pending = new LinkedList<HaruFile>(files);
+
+        long total = 0;
+        for (HaruFile file : files) total += file.getUploadSize();
+        this.totalBytes = total;
+    }
+
+    /**
+     * 전체 업로드의 진행 상황을 받을 리스너를 설정한다. 네트워크 스레드에서 호출된다.
+     * @param listener total은 모든 파일의 크기의 합이다.
+     */
+    public void setProgressListener(ProgressOutputStream.ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    /**
+     * 파일 하나의 진행 상황을 받을 리스너를 설정한다. 네트워크 스레드에서 호출된다.
+     * @param file 업로드할 파일 중 하나
+     * @param listener {@link com.haru.mime.ProgressOutputStream.ProgressListener}
+     */
+    public void setProgressListener(HaruFile file, ProgressOutputStream.ProgressListener listener) {
+        synchronized (lock) {
+            fileListeners.put(file, listener);
+        }
+    }
+
+    /**
+     * 동시에 업로드할 파일의 수를 고정한다. 설정하지 않으면 네트워크 상태에 맞추어 조절된다.
+     * @param uploads 동시에 업로드할 파일의 수
+     */
+    public void setMaxConcurrentUploads(int uploads) {
+        if (uploads <= 0) {
+            throw new IllegalArgumentException("Concurrent uploads must be greater than 0!");
+        }
+        this.fixedConcurrency = uploads;
+    }
+
+    /**
+     * 업로드를 시작한다.
+     * @return 업로드된 파일들. 실패한 파일이 있다면 {@link com.haru.task.AggregateException}으로 실패하고,
+     *         취소되었다면 cancelled 상태가 된다.
+     */
+    public Task<List<HaruFile>> start() {
+        synchronized (lock) {
+            if (tcs != null) {
+                throw new IllegalStateException("Upload has already been started.");
+            }
+            tcs = Task.create();
+
+            concurrency = fixedConcurrency > 0 ? fixedConcurrency : getInitialConcurrency();
+            windowStartedAt = System.nanoTime();
+            scheduleNext();
+            return tcs.getTask();
+        }
+    }
+
+    /**
+     * 새로운 파일의 업로드를 시작하지 않는다. 조각으로 올리는 중인 파일은 지금 보내는 조각까지만 올리고 멈춘다.
+     */
+    public void pause() {
+        synchronized (lock) {
+            if (isCancelled) return;
+            isPaused = true;
+            stopRequested.set(true);
+        }
+    }
+
+    /**
+     * 일시정지된 업로드를 재개한다. 멈춘 파일은 서버가 받은 조각부터 이어서 올린다.
+     */
+    public void resume() {
+        synchronized (lock) {
+            if (isCancelled || !isPaused) return;
+            isPaused = false;
+            stopRequested.set(false);
+            windowStartedAt = System.nanoTime();
+            windowBytes = 0;
+            if (tcs != null) scheduleNext();
+        }
+    }
+
+    /**
+     * 남은 업로드를 모두 취소한다. 이미 전송중인 파일은 끝까지 올라갈 수 있지만 결과는 무시된다.
+     */
+    public void cancel() {
+        synchronized (lock) {
+            if (isCancelled) return;
+            isCancelled = true;
+            stopRequested.set(true);
+            pending.clear();
+            if (tcs != null) tcs.trySetCancelled();
+        }
+    }
+
+    public boolean isPaused() {
+        synchronized (lock) {
+            return isPaused;
+        }
+    }
+
+    /**
+     * @return 지금 동시에 업로드하고 있는 파일의 수
+     */
+    public int getRunningCount() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    /**
+     * @return 아직 업로드를 시작하지 않은 파일의 수
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 동시 업로드 수가 남는 만큼 다음 파일들의 업로드를 시작한다. lock 안에서 호출된다.
+     */
+    private void scheduleNext() {
+        while (!isPaused && !isCancelled && running < concurrency && !pending.isEmpty()) {
+            running++;
+            upload(pending.removeFirst());
+        }
+
+        if (running == 0 && pending.isEmpty() && !isCancelled) finish();
+    }
+
+    private void upload(final HaruFile file) {
+        final long startedAt = System.nanoTime();
+        // 여러 파일을 올리는 동안 화면에서 보낸 요청이 뒤로 밀리지 않도록 낮은 우선순위로 보낸다.
+        file.upload(new ProgressOutputStream.ProgressListener() {
+            @Override
+            public void progress(long total, long sent) {
+                onFileProgress(file, total, sent);
+            }
+        }, stopRequested, Task.Priority.NORMAL).continueWith(new Continuation<HaruFile, Void>() {
+            @Override
+            public Void then(Task<HaruFile> task) throws Exception {
+                synchronized (lock) {
+                    running--;
+                    if (isCancelled) return null;
+
+                    if (task.isFaulted()) {
+                        Exception error = task.getError();
+                        if (error instanceof CancellationException) {
+                            // 일시정지되었다. 재개하면 처음부터 (조각으로 올리던 파일은 이어서) 올린다.
+                            pending.addFirst(file);
+
+                        } else {
+                            Haru.logI("UploadManager : %s failed (%s)",
+                                    file.getName(), error.getMessage());
+                            errors.add(error);
+                            if (RetryPolicy.isNetworkError(error)) decreaseConcurrency();
+                        }
+                    } else {
+                        adjustConcurrency(file.getUploadSize(), startedAt);
+                    }
+                    scheduleNext();
+                }
+                return null;
+            }
+        });
+    }
+
+    private void finish() {
+        if (!errors.isEmpty()) {
+            tcs.trySetError(new AggregateException(new ArrayList<Exception>(errors)));
+            return;
+        }
+        tcs.trySetResult(new ArrayList<HaruFile>(files));
+    }
+
+    private void onFileProgress(HaruFile file, long total, long sent) {
+        ProgressOutputStream.ProgressListener fileListener;
+        long aggregate = 0;
+        synchronized (lock) {
+            Long previous = transferred.put(file, sent);
+            // 다시 올리는 경우 진행 상황이 줄어들 수 있다.
+            windowBytes += Math.max(0, sent - (previous != null ? previous : 0));
+
+            fileListener = fileListeners.get(file);
+            if (progressListener != null) {
+                for (Long bytes : transferred.values()) aggregate += bytes;
+            }
+        }
+
+        if (fileListener != null) fileListener.progress(total, sent);
+        if (progressListener != null) progressListener.progress(totalBytes, aggregate);
+    }
+
+    /**
+     * 파일 하나가 끝날 때마다 그동안의 전체 전송 속도를 이전과 비교해서 동시 업로드 수를 조절한다.
+     * lock 안에서 호출된다.
+     */
+    private void adjustConcurrency(long fileSize, long fileStartedAt) {
+        if (fixedConcurrency > 0) return;
+
+        long elapsed = System.nanoTime() - windowStartedAt;
+        if (elapsed <= 0) return;
+        double throughput = (double) windowBytes / elapsed;
+
+        if (lastThroughput == 0 || throughput > lastThroughput * 1.1) {
+            // 동시 업로드를 늘렸더니 빨라졌다. (혹은 첫 측정)
+            if (concurrency < MAX_CONCURRENT_UPLOADS) concurrency++;
+
+        } else if (throughput < lastThroughput * 0.8 && concurrency > 1) {
+            // 대역폭을 나누어 쓰느라 오히려 느려졌다.
+            concurrency--;
+        }
+        Haru.logD("UploadManager : %d bytes in %dms, %.1f KB/s => %d concurrent uploads",
+                fileSize, (System.nanoTime() - fileStartedAt) / 1000000,
+                throughput * 1000000000 / 1024, concurrency);
+
+        lastThroughput = throughput;
+        windowStartedAt = System.nanoTime();
+        windowBytes = 0;
+    }
+
+    private void decreaseConcurrency() {
+        if (fixedConcurrency > 0) return;
+        concurrency = Math.max(1, concurrency / 2);
+        lastThroughput = 0;
+    }
+
+    /**
+     * Wi-Fi에서는 3개, 모바일 네트워크에서는 2개부터 시작한다.
+     */
+    private static int getInitialConcurrency() {
+        Context context = Haru.getAppContext();
+        if (context == null) return 2;
+
+        ConnectivityManager cm = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        if (netInfo != null && netInfo.getType() == ConnectivityManager.TYPE_WIFI) return 3;
+        return 2;
+    }
+}
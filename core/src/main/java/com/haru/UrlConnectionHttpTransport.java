@@ -0,0 +1,113 @@
+package com.haru;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpURLConnection을 사용하는 HTTP 엔진이다.
+ * 플랫폼의 keep-alive 커넥션 풀을 그대로 사용한다. 풀의 설정 (http.keepAlive, http.maxConnections)은
+ * 앱 전체의 HttpURLConnection에 적용되는 시스템 속성이므로, 이 클래스에서는 바꾸지 않는다.
+ *
+ * 응답 본문을 끝까지 읽고 닫아야 연결이 풀로 돌아간다.
+ * 연결 (DNS, TCP, TLS)에 걸린 시간을 측정해서 {@link com.haru.NetworkMetrics}에 기록한다.
+ */
+public class UrlConnectionHttpTransport implements HttpTransport {
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) request.getURI().toURL().openConnection();
+        connection.setConnectTimeout(HaruRequest.CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(HaruRequest.READ_TIMEOUT_MILLIS);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setRequestMethod(request.getMethod());
+        connection.setRequestProperty("User-Agent", HaruRequest.USER_AGENT);
+
+        for (Header header : request.getAllHeaders()) {
+            connection.setRequestProperty(header.getName(), header.getValue());
+        }
+
+        HttpEntity requestEntity = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+        }
+        if (requestEntity != null) prepareEntity(connection, request, requestEntity);
+
+        // 풀에 있는 연결을 재사용했다면 거의 0이다.
+        long connectStartedAt = System.nanoTime();
+        connection.connect();
+        NetworkMetrics.recordConnect((System.nanoTime() - connectStartedAt) / 1000000);
+
+        if (requestEntity != null) {
+            OutputStream out = connection.getOutputStream();
+            try {
+                requestEntity.writeTo(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        int statusCode = connection.getResponseCode();
+        if (statusCode == -1) {
+            throw new IOException("Invalid HTTP response from " + request.getURI());
+        }
+
+        BasicHttpResponse response = new BasicHttpResponse(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, connection.getResponseMessage()));
+
+        for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+            // status line의 key는 null이다.
+            if (field.getKey() == null) continue;
+            for (String value : field.getValue()) response.addHeader(field.getKey(), value);
+        }
+
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(openResponseStream(connection, statusCode));
+        entity.setContentLength(connection.getContentLength());
+        entity.setContentType(connection.getContentType());
+        entity.setContentEncoding(connection.getContentEncoding());
+        response.setEntity(entity);
+        return response;
+    }
+
+    private static void prepareEntity(HttpURLConnection connection,
+                                      HttpUriRequest request,
+                                      HttpEntity entity) {
+        connection.setDoOutput(true);
+
+        // 요청에 직접 지정하지 않았다면 본문의 헤더를 사용한다.
+        if (entity.getContentType() != null && !request.containsHeader("Content-Type")) {
+            connection.setRequestProperty("Content-Type", entity.getContentType().getValue());
+        }
+        if (entity.getContentEncoding() != null) {
+            connection.setRequestProperty("Content-Encoding", entity.getContentEncoding().getValue());
+        }
+
+        long length = entity.getContentLength();
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else connection.setChunkedStreamingMode(0);
+    }
+
+    private static InputStream openResponseStream(HttpURLConnection connection, int statusCode)
+            throws IOException {
+        InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) return new ByteArrayInputStream(new byte[0]);
+        return in;
+    }
+}
@@ -13,6 +13,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 
 /**
  * A entity that contains user information.
@@ -22,11 +23,14 @@ public class User extends Entity {
 
     // 서버에 저장되는 "엔티티 클래스" 이름
     public static final String CLASS_NAME = "Users";
-    private static final String CURRENT_USER_TAG = "__currentUser";
+    static final String CURRENT_USER_TAG = "__currentUser";
 
     // 현재 유저
     private static User currentUser;
 
+    // 로컬 데이터스토어로부터 현재 유저를 불러오는 Task
+    private static Task<User> currentUserLoadTask;
+
     // 이 유저의 세션 토큰
     private String sessionToken;
 
@@ -39,7 +43,8 @@ public class User extends Entity {
 
     /**
      * 현재 로그인된 User를 반환한다.
-     * 만약, 로그인되어있으나 현재 유저가 로딩되어있지 않으면 로컬 데이터스토어로부터 로딩한다.
+     * 만약, 로그인되어있으나 현재 유저가 로딩되어있지 않으면 로컬 데이터스토어로부터 로딩할 때까지 기다린다.
+     * UI 스레드에서는 {@link #getCurrentUserInBackground()}를 사용한다.
      *
      * @return 현재 로그인된 User 객체
      */
@@ -53,28 +58,80 @@ public class User extends Entity {
             throw new RuntimeException("You need to call Haru.init() before using other APIs.");
         }
 
-        // Now, try to retrieve user
-        // get current user data
-        ArrayList<Entity> entities =
-                LocalEntityStore.retrieveEntitiesByTag(CLASS_NAME, CURRENT_USER_TAG);
+        // Now, wait for the current user to be loaded
+        Task<User> loadTask = loadCurrentUserInBackground();
+        User user = LocalEntityStore.await(loadTask);
 
-        if (entities == null || entities.size() == 0) {
-            // not logined. goodbye
-            return null;
+        synchronized (User.class) {
+            // adopt it, unless someone logged in or out while loading
+            if (currentUser == null && loadTask == currentUserLoadTask) currentUser = user;
+            return currentUser;
+        }
+    }
+
+    /**
+     * 현재 로그인된 User를 백그라운드에서 반환한다.
+     * 로컬 데이터스토어로부터 로딩해야 할 때 메인 스레드를 막지 않는다.
+     *
+     * @return 현재 로그인된 User를 결과로 갖는 Task (미로그인시 null)
+     */
+    public static Task<User> getCurrentUserInBackground() {
+        if (currentUser != null) return Task.forResult(currentUser);
+
+        // not initialized?
+        if (!LocalEntityStore.isInitialized()) {
+            throw new RuntimeException("You need to call Haru.init() before using other APIs.");
         }
+        return loadCurrentUserInBackground().onSuccess(new Continuation<User, User>() {
+            @Override
+            public User then(Task<User> task) throws Exception {
+                return getCurrentUser();
+            }
+        });
+    }
 
-        // fill the current user data
-        Log.i("Haru", "You logined");
-        currentUser = (User) entities.get(0);
-        currentUser.sessionToken = currentUser.getString("sessionToken");
-        Haru.logD("SessionToken => " + currentUser.sessionToken);
-        Haru.logD("ssaved entity => " + currentUser.toJson());
+    /**
+     * 로컬 데이터스토어로부터 현재 유저를 불러오기 시작한다. 이미 시작되었다면 그 Task를 반환한다.
+     * Haru.init에서 미리 호출되어, 처음 getCurrentUser를 부를 때 기다리지 않도록 한다.
+     * 앞서 요청된 쓰기들은 기다리지 않으므로, 데이터베이스가 열리면 바로 불러온다.
+     */
+    static synchronized Task<User> loadCurrentUserInBackground() {
+        if (currentUserLoadTask != null) return currentUserLoadTask;
+
+        currentUserLoadTask = LocalEntityStore.<Entity>retrievePinnedEntitiesInBackground(CLASS_NAME, CURRENT_USER_TAG)
+                .onSuccess(new Continuation<ArrayList<Entity>, User>() {
+                    @Override
+                    public User then(Task<ArrayList<Entity>> task) throws Exception {
+                        ArrayList<Entity> entities = task.getResult();
+                        if (entities == null || entities.size() == 0) {
+                            // not logined. goodbye
+                            return null;
+                        }
+
+                        // fill the current user data
+                        Log.i("Haru", "You logined");
+                        User user = (User) entities.get(0);
+                        user.sessionToken = user.getString("sessionToken");
+                        Haru.logD("SessionToken => " + user.sessionToken);
+                        Haru.logD("ssaved entity => " + user.toJson());
+                        return user;
+                    }
+                });
+        return currentUserLoadTask;
+    }
 
-        return currentUser;
+    /**
+     * 현재 유저를 로컬 데이터스토어에 저장한다. 저장은 백그라운드에서 이루어진다.
+     */
+    private static synchronized void saveCurrentUser() {
+        currentUserLoadTask = Task.forResult(currentUser);
+        LocalEntityStore.deleteTagInBackground(CLASS_NAME, CURRENT_USER_TAG);
+        LocalEntityStore.saveEntityInBackground(currentUser, CURRENT_USER_TAG);
     }
 
     /**
      * 현재 로그인된 User 세션의 토큰을 반환한다.
+     * 현재 유저를 불러오는 중이라면 기다리므로, UI 스레드에서는 {@link #getCurrentUserInBackground()}를 사용한다.
      *
      * @return sessionToken (미로그인시 null)
      */
@@ -86,6 +143,7 @@ public class User extends Entity {
 
     /**
      * 로그인 여부를 반환한다.
+     * 현재 유저를 불러오는 중이라면 기다리므로, UI 스레드에서는 {@link #getCurrentUserInBackground()}를 사용한다.
      *
      * @return 로그인 여부 (boolean)
      */
@@ -208,8 +266,8 @@ public class User extends Entity {
                 Log.i("Haru", "I got a user => " + currentUser.get("email") + ", sessionToken=" + sessionToken);
 
                 // Save current user
-                LocalEntityStore.deleteTagFromLocal(CLASS_NAME, CURRENT_USER_TAG);
-                LocalEntityStore.saveEntity(currentUser, CURRENT_USER_TAG);
+                saveCurrentUser();
+                clearCaches();
 
                 // Callback
                 callback.done(currentUser, null);
@@ -316,8 +374,8 @@ public class User extends Entity {
                 currentUser.updatedAt = fetchResult.updatedAt;
 
                 // Save current user
-                LocalEntityStore.deleteTagFromLocal(CLASS_NAME, CURRENT_USER_TAG);
-                LocalEntityStore.saveEntity(currentUser, CURRENT_USER_TAG);
+                saveCurrentUser();
+                clearCaches();
 
                 // Call LoginCallback
                 callback.done(currentUser, null);
@@ -352,9 +410,28 @@ public class User extends Entity {
         Task<HaruResponse> logoutTask = new HaruRequest("/logout/me").executeAsync();
 
         // Remove from local
-        LocalEntityStore.deleteTagFromLocal(CLASS_NAME, CURRENT_USER_TAG);
-        currentUser = null;
+        synchronized (User.class) {
+            LocalEntityStore.deleteTagInBackground(CLASS_NAME, CURRENT_USER_TAG);
+            currentUser = null;
+            currentUserLoadTask = Task.forResult(null);
+        }
+
+        clearCaches();
 
         return logoutTask;
     }
+
+    /**
+     * 이전 유저의 응답과 쿼리 결과가 다음 유저에게 보이지 않도록 캐시를 지운다. 로그인, 로그아웃할 때 호출된다.
+     */
+    private static void clearCaches() {
+        LocalEntityStore.deleteQueryResultsInBackground(null);
+        Task.callInBackground(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ResponseCache.clear();
+                return null;
+            }
+        });
+    }
 }
@@ -0,0 +1,335 @@
+package com.haru;
+
+import com.haru.callback.SaveCallback;
+import com.haru.task.Continuation;
+import com.haru.task.Task;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 짧은 시간 동안 모인 Entity 저장 요청들 (생성, 갱신)을 하나의 /batch 요청으로 묶어서 보낸다.
+ * {@link com.haru.Entity#saveInBackground(SaveCallback)}를 호출하면 자동으로 사용된다.
+ *
+ * 대기 시간(window)이 지나거나, 모인 요청의 수가 최대 크기에 도달하면 전송한다.
+ */
+public class WriteBatcher {
+
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private static volatile boolean enabled = true;
+    private static volatile long batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+    private static volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private static final Object lock = new Object();
+
+    // 아직 전송되지 않은 저장 요청들. 같은 Entity는 한 번만 들어간다.
+    private static IdentityHashMap<Entity, PendingWrite> pendingWrites =
+            new IdentityHashMap<Entity, PendingWrite>();
+    private static ArrayList<PendingWrite> pendingOrder = new ArrayList<PendingWrite>();
+    private static int pendingRequestCount = 0;
+
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * Batch로 묶이길 기다리고 있는 저장 요청.
+     */
+    private static class PendingWrite {
+        final Entity entity;
+        final List<SaveCallback> callbacks = new ArrayList<SaveCallback>();
+        final Task.TaskCompletionSource completionSource;
+
+        boolean isCreation;
+        JSONArray requests;
+
+        PendingWrite(Entity entity, Task.TaskCompletionSource completionSource) {
+            this.entity = entity;
+            this.completionSource = completionSource;
+        }
+    }
+
+    /**
+     * 저장 요청을 묶어서 보낼지 여부를 설정한다. 기본값은 true이다.
+     * false로 설정하면 각 저장 요청은 개별 HTTP 요청으로 전송된다.
+     * @param enable 사용 여부
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+        if (!enable) flush();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 저장 요청을 모으는 대기 시간을 설정한다.
+     * @param millis 대기 시간 (ms)
+     */
+    public static void setBatchWindow(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Batch window must be positive number!");
+        }
+        batchWindowMillis = millis;
+    }
+
+    /**
+     * 한 번의 /batch 요청에 담을 수 있는 최대 요청 수를 설정한다.
+     * @param size 최대 요청 수
+     */
+    public static void setMaxBatchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Max batch size must be greater than 0!");
+        }
+        maxBatchSize = size;
+    }
+
+    /**
+     * Entity의 저장 요청을 batch에 추가한다.
+     * 이미 대기중인 Entity라면, 최신 변경 사항으로 요청을 갱신하고 같은 Task를 반환한다.
+     *
+     * @param entity 저장할 Entity
+     * @param callback 저장 완료시 호출할 콜백
+     * @return 저장 태스크
+     */
+    static Task<Entity> enqueue(Entity entity, SaveCallback callback) {
+        boolean shouldFlushNow;
+        Task<Entity> task;
+
+        synchronized (lock) {
+            PendingWrite write = pendingWrites.get(entity);
+            if (write == null) {
+                Task.TaskCompletionSource tcs = Task.create();
+                write = new PendingWrite(entity, tcs);
+                pendingWrites.put(entity, write);
+                pendingOrder.add(write);
+
+            } else {
+                pendingRequestCount -= write.requests.length();
+            }
+
+            // 최신 변경 사항으로 요청을 만든다.
+            write.isCreation = entity.isNewEntity();
+            write.requests = encodeRequests(entity, write.isCreation);
+            write.callbacks.add(callback);
+            pendingRequestCount += write.requests.length();
+            task = write.completionSource.getTask();
+
+            shouldFlushNow = pendingRequestCount >= maxBatchSize || batchWindowMillis == 0;
+            if (!shouldFlushNow && scheduledFlush == null) {
+                scheduledFlush = getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, batchWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (shouldFlushNow) flush();
+        return task;
+    }
+
+    /**
+     * 대기중인 모든 저장 요청을 즉시 전송한다.
+     */
+    public static void flush() {
+        List<PendingWrite> writes;
+        synchronized (lock) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (pendingOrder.isEmpty()) return;
+
+            writes = pendingOrder;
+            pendingOrder = new ArrayList<PendingWrite>();
+            pendingWrites = new IdentityHashMap<Entity, PendingWrite>();
+            pendingRequestCount = 0;
+        }
+
+        // 최대 크기를 넘지 않도록 나눠서 보낸다.
+        List<PendingWrite> chunk = new ArrayList<PendingWrite>();
+        int chunkSize = 0;
+        for (PendingWrite write : writes) {
+            if (write.requests.length() == 0) {
+                // 변경 사항이 없다면 서버에 보낼 필요가 없다.
+                completeWithoutRequest(write);
+                continue;
+            }
+            if (chunkSize > 0 && chunkSize + write.requests.length() > maxBatchSize) {
+                sendBatch(chunk);
+                chunk = new ArrayList<PendingWrite>();
+                chunkSize = 0;
+            }
+            chunk.add(write);
+            chunkSize += write.requests.length();
+        }
+        if (!chunk.isEmpty()) sendBatch(chunk);
+    }
+
+    private static ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Haru-WriteBatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    private static JSONArray encodeRequests(Entity entity, boolean isCreation) {
+        synchronized (entity.lock) {
+            if (!isCreation) return entity.encodeUpdateRequests();
+
+            try {
+                JSONObject request = new JSONObject();
+                request.put("method", "create");
+                request.put("class", entity.getClassName());
+                request.put("entity", entity.encodeCreateRequest());
+
+                JSONArray requests = new JSONArray();
+                requests.put(request);
+                return requests;
+
+            } catch (JSONException e) {
+                throw new RuntimeException("Failed to encode entity", e);
+            }
+        }
+    }
+
+    private static void completeWithoutRequest(final PendingWrite write) {
+        Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (SaveCallback callback : write.callbacks) callback.done(null);
+                write.completionSource.setResult(write.entity);
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * 모인 요청들을 하나의 /batch 요청으로 보내고, 결과를 각 Entity에 나눠준다.
+     */
+    private static void sendBatch(final List<PendingWrite> writes) {
+        final JSONArray requests = new JSONArray();
+        final int[] offsets = new int[writes.size()];
+
+        for (int i = 0; i < writes.size(); i++) {
+            offsets[i] = requests.length();
+            JSONArray entityRequests = writes.get(i).requests;
+            for (int j = 0; j < entityRequests.length(); j++) {
+                requests.put(entityRequests.opt(j));
+            }
+        }
+
+        JSONObject body = new JSONObject();
+        try {
+            body.put("requests", requests);
+
+        } catch (JSONException e) {
+            throw new RuntimeException("Failed to encode batch request", e);
+        }
+
+        Haru.logD("WriteBatcher : sending %d entities in one batch (%d requests)",
+                writes.size(), requests.length());
+
+        new HaruRequest("/batch")
+                .post(body)
+                .executeAsync()
+                .continueWith(new Continuation<HaruResponse, Void>() {
+                    @Override
+                    public Void then(Task<HaruResponse> task) throws Exception {
+                        if (task.isFaulted()) {
+                            // Offline? save changes to the queue and replay later.
+                            if (OfflineQueue.isOfflineError(task.getError())) {
+                                for (PendingWrite write : writes) {
+                                    for (SaveCallback callback : write.callbacks) {
+                                        OfflineQueue.enqueue(write.entity, callback);
+                                    }
+                                    write.completionSource.setResult(write.entity);
+                                }
+                                return null;
+                            }
+
+                            // Exception
+                            for (PendingWrite write : writes) {
+                                fail(write, new HaruException("Request error", task.getError()));
+                                write.completionSource.setError(task.getError());
+                            }
+                            return null;
+                        }
+
+                        HaruResponse response = task.getResult();
+                        if (response.hasError()) {
+                            // API Error
+                            for (PendingWrite write : writes) {
+                                fail(write, response.getError());
+                                write.completionSource.setResult(write.entity);
+                            }
+                            return null;
+                        }
+
+                        JSONArray results = response.getJsonBody().getJSONArray("results");
+                        for (int i = 0; i < writes.size(); i++) {
+                            PendingWrite write = writes.get(i);
+                            int from = offsets[i], to = from + write.requests.length();
+                            dispatchResults(write, results, from, to);
+                        }
+                        return null;
+                    }
+                }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * batch 결과 중 해당 Entity의 범위 [from, to)를 Entity에 반영하고 콜백을 호출한다.
+     */
+    private static void dispatchResults(PendingWrite write, JSONArray results, int from, int to) {
+        try {
+            JSONArray entityResults = new JSONArray();
+            for (int i = from; i < to && i < results.length(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                if (result.has("code") && result.has("error")) {
+                    fail(write, new HaruException(result.getInt("code"), result.getString("error")));
+                    write.completionSource.setResult(write.entity);
+                    return;
+                }
+                entityResults.put(result);
+            }
+
+            synchronized (write.entity.lock) {
+                if (write.isCreation) write.entity.applyCreateResult(entityResults.getJSONObject(0));
+                else write.entity.applyUpdateResults(entityResults);
+            }
+
+            for (SaveCallback callback : write.callbacks) callback.done(null);
+            write.completionSource.setResult(write.entity);
+
+        } catch (JSONException e) {
+            fail(write, new HaruException("Malformed batch result", e));
+            write.completionSource.setError(e);
+        }
+    }
+
+    private static void fail(PendingWrite write, HaruException exception) {
+        for (SaveCallback callback : write.callbacks) callback.done(exception);
+    }
+}
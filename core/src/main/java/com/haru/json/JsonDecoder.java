@@ -0,0 +1,123 @@
+package com.haru.json;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * JSON 값을 실제 타입에 맞는 자바 객체로 변환한다.
+ * 값마다 한 번만 타입을 확인하며, 변환 결과는 다음과 같다.
+ *
+ * <ul>
+ *     <li>객체 → HashMap&lt;String, Object&gt;</li>
+ *     <li>배열 → ArrayList&lt;Object&gt;</li>
+ *     <li>정수 → Integer (범위를 넘으면 Long), 소수 → Double</li>
+ *     <li>문자열 → String, 불린 → Boolean, null → null</li>
+ * </ul>
+ */
+public class JsonDecoder {
+
+    /**
+     * JSONObject를 Map으로 변환한다.
+     * @param json 변환할 JSONObject
+     * @return 변환된 Map
+     */
+    public static HashMap<String, Object> toMap(JSONObject json) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        Iterator keys = json.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            map.put(key, decode(json.opt(key)));
+        }
+        return map;
+    }
+
+    /**
+     * JSONArray를 List로 변환한다.
+     * @param json 변환할 JSONArray
+     * @return 변환된 List
+     */
+    public static ArrayList<Object> toList(JSONArray json) {
+        ArrayList<Object> list = new ArrayList<Object>(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            list.add(decode(json.opt(i)));
+        }
+        return list;
+    }
+
+    /**
+     * org.json의 값 하나를 변환한다.
+     * @param value JSONObject.opt()등으로 가져온 값
+     * @return 변환된 값
+     */
+    public static Object decode(Object value) {
+        if (value instanceof JSONObject) return toMap((JSONObject) value);
+        if (value instanceof JSONArray) return toList((JSONArray) value);
+        if (value == JSONObject.NULL) return null;
+        return value;
+    }
+
+    /**
+     * JsonReader로부터 객체 하나를 읽어 Map으로 변환한다.
+     * @param reader 객체의 시작 위치에 있는 JsonReader
+     * @return 변환된 Map
+     */
+    public static HashMap<String, Object> readMap(JsonReader reader) throws IOException, JSONException {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            map.put(key, read(reader));
+        }
+        reader.endObject();
+        return map;
+    }
+
+    /**
+     * JsonReader로부터 배열 하나를 읽어 List로 변환한다.
+     * @param reader 배열의 시작 위치에 있는 JsonReader
+     * @return 변환된 List
+     */
+    public static ArrayList<Object> readList(JsonReader reader) throws IOException, JSONException {
+        ArrayList<Object> list = new ArrayList<Object>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(read(reader));
+        }
+        reader.endArray();
+        return list;
+    }
+
+    /**
+     * JsonReader로부터 값 하나를 읽어 변환한다.
+     * @param reader 값의 시작 위치에 있는 JsonReader
+     * @return 변환된 값
+     */
+    public static Object read(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readMap(reader);
+
+            case BEGIN_ARRAY:
+                return readList(reader);
+
+            case NUMBER:
+                return reader.nextNumber();
+
+            case BOOLEAN:
+                return reader.nextBoolean();
+
+            case NULL:
+                reader.nextNull();
+                return null;
+
+            default:
+                return reader.nextString();
+        }
+    }
+}
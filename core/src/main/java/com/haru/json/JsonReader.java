@@ -0,0 +1,389 @@
+package com.haru.json;
+
+import org.json.JSONException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * JSON 문서를 전체를 메모리에 올리지 않고, 토큰 단위로 읽어나가는 (pull) 파서이다.
+ * android.util.JsonReader는 API 11부터 지원되기 때문에 따로 구현하였다.
+ *
+ * 문법 오류가 있을 경우 {@link org.json.JSONException}을 던진다.
+ */
+public class JsonReader implements Closeable {
+
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos = 0, limit = 0;
+
+    private int[] stack = new int[32];
+    private int stackSize = 0;
+
+    // 미리 읽어둔 토큰과 그 값
+    private JsonToken peeked;
+    private String peekedValue;
+
+    private final StringBuilder builder = new StringBuilder();
+
+    public JsonReader(Reader in) {
+        if (in == null) {
+            throw new IllegalArgumentException("Reader may not be null");
+        }
+        this.in = in;
+        push(EMPTY_DOCUMENT);
+    }
+
+    /**
+     * 다음 토큰의 종류를 반환한다. 토큰을 소비하지는 않는다.
+     */
+    public JsonToken peek() throws IOException, JSONException {
+        if (peeked != null) return peeked;
+
+        int c;
+        switch (stack[stackSize - 1]) {
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') return setPeeked(JsonToken.END_ARRAY, null);
+                pos--;
+                return readValueToken();
+
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') return setPeeked(JsonToken.END_ARRAY, null);
+                if (c != ',') throw syntaxError("Expected ',' or ']'");
+                return readValueToken();
+
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') return setPeeked(JsonToken.END_OBJECT, null);
+                if (stack[stackSize - 1] == NONEMPTY_OBJECT) {
+                    if (c != ',') throw syntaxError("Expected ',' or '}'");
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') throw syntaxError("Expected name");
+
+                stack[stackSize - 1] = DANGLING_NAME;
+                String name = readString();
+                if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+                return setPeeked(JsonToken.NAME, name);
+
+            case DANGLING_NAME:
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                return readValueToken();
+
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                return readValueToken();
+
+            default:
+                // NONEMPTY_DOCUMENT
+                if (fillAndSkipWhitespace()) throw syntaxError("Expected end of document");
+                return setPeeked(JsonToken.END_DOCUMENT, null);
+        }
+    }
+
+    public void beginObject() throws IOException, JSONException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException, JSONException {
+        expect(JsonToken.END_OBJECT);
+        stackSize--;
+    }
+
+    public void beginArray() throws IOException, JSONException {
+        expect(JsonToken.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException, JSONException {
+        expect(JsonToken.END_ARRAY);
+        stackSize--;
+    }
+
+    /**
+     * 현재 배열이나 객체에 읽을 원소가 남아있는지 확인한다.
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT
+                && token != JsonToken.END_ARRAY
+                && token != JsonToken.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException, JSONException {
+        return expect(JsonToken.NAME);
+    }
+
+    /**
+     * 문자열 값을 읽는다. 숫자 값일 경우 문자열로 반환한다.
+     */
+    public String nextString() throws IOException, JSONException {
+        if (peek() == JsonToken.NUMBER) return expect(JsonToken.NUMBER);
+        return expect(JsonToken.STRING);
+    }
+
+    public boolean nextBoolean() throws IOException, JSONException {
+        return Boolean.parseBoolean(expect(JsonToken.BOOLEAN));
+    }
+
+    public void nextNull() throws IOException, JSONException {
+        expect(JsonToken.NULL);
+    }
+
+    /**
+     * 숫자 값을 실제 타입에 맞게 읽는다.
+     * org.json과 마찬가지로 정수는 Integer, 범위를 넘으면 Long, 소수는 Double로 반환한다.
+     */
+    public Number nextNumber() throws IOException, JSONException {
+        String number = expect(JsonToken.NUMBER);
+
+        if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+            try {
+                long longValue = Long.parseLong(number);
+                if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+
+            } catch (NumberFormatException e) {
+                // 너무 큰 정수는 Double로 읽는다.
+            }
+        }
+        try {
+            return Double.valueOf(number);
+
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number " + number);
+        }
+    }
+
+    /**
+     * 다음 값 (객체나 배열이라면 그 안의 값들까지 전부)을 읽지 않고 건너뛴다.
+     */
+    public void skipValue() throws IOException, JSONException {
+        int depth = 0;
+        do {
+            JsonToken token = peek();
+            switch (token) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Unexpected end of document");
+                default:
+                    // NAME, STRING, NUMBER, BOOLEAN, NULL
+                    peeked = null;
+                    peekedValue = null;
+            }
+        } while (depth != 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        peeked = null;
+        stackSize = 0;
+        in.close();
+    }
+
+    private String expect(JsonToken expected) throws IOException, JSONException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token);
+        }
+        String value = peekedValue;
+        peeked = null;
+        peekedValue = null;
+        return value;
+    }
+
+    private JsonToken setPeeked(JsonToken token, String value) {
+        peeked = token;
+        peekedValue = value;
+        return token;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] newStack = new int[stackSize * 2];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            stack = newStack;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private JsonToken readValueToken() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return setPeeked(JsonToken.BEGIN_OBJECT, null);
+            case '[':
+                return setPeeked(JsonToken.BEGIN_ARRAY, null);
+            case '"':
+                return setPeeked(JsonToken.STRING, readString());
+            case 't':
+                readLiteral("rue");
+                return setPeeked(JsonToken.BOOLEAN, "true");
+            case 'f':
+                readLiteral("alse");
+                return setPeeked(JsonToken.BOOLEAN, "false");
+            case 'n':
+                readLiteral("ull");
+                return setPeeked(JsonToken.NULL, null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return setPeeked(JsonToken.NUMBER, readNumber());
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void readLiteral(String rest) throws IOException, JSONException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (!fill(1) || buffer[pos++] != rest.charAt(i)) {
+                throw syntaxError("Unexpected literal");
+            }
+        }
+    }
+
+    private String readNumber() throws IOException {
+        builder.setLength(0);
+        while (fill(1)) {
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                builder.append(c);
+                pos++;
+            } else break;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 여는 따옴표 이후부터 닫는 따옴표까지의 문자열을 읽는다.
+     */
+    private String readString() throws IOException, JSONException {
+        builder.setLength(0);
+        while (true) {
+            // 이스케이프가 없는 구간은 한번에 복사한다.
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos];
+                if (c == '"') {
+                    builder.append(buffer, start, pos - start);
+                    pos++;
+                    return builder.toString();
+                }
+                if (c == '\\') break;
+                pos++;
+            }
+            builder.append(buffer, start, pos - start);
+
+            if (pos < limit) {
+                // backslash
+                pos++;
+                builder.append(readEscapeCharacter());
+
+            } else if (!fill(1)) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscapeCharacter() throws IOException, JSONException {
+        if (!fill(1)) throw syntaxError("Unterminated escape sequence");
+
+        char escaped = buffer[pos++];
+        switch (escaped) {
+            case 'u':
+                if (!fill(4)) throw syntaxError("Unterminated escape sequence");
+                String hex = new String(buffer, pos, 4);
+                pos += 4;
+                try {
+                    return (char) Integer.parseInt(hex, 16);
+                } catch (NumberFormatException e) {
+                    throw syntaxError("Invalid escape sequence \\u" + hex);
+                }
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                // '"', '\\', '/'
+                return escaped;
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException, JSONException {
+        if (!fillAndSkipWhitespace()) throw syntaxError("Unexpected end of document");
+        return buffer[pos++];
+    }
+
+    /**
+     * 공백을 건너뛴다.
+     * @return 공백이 아닌 문자가 남아있는지 여부
+     */
+    private boolean fillAndSkipWhitespace() throws IOException {
+        while (fill(1)) {
+            char c = buffer[pos];
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') pos++;
+            else return true;
+        }
+        return false;
+    }
+
+    /**
+     * 버퍼에 최소 minimum개의 문자가 남아있도록 채운다.
+     * @return 채우기에 성공했는지 여부 (문서의 끝에 도달했다면 false)
+     */
+    private boolean fill(int minimum) throws IOException {
+        if (limit - pos >= minimum) return true;
+
+        if (pos != limit) System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+
+        int read;
+        while ((read = in.read(buffer, limit, buffer.length - limit)) != -1) {
+            limit += read;
+            if (limit >= minimum) return true;
+        }
+        return false;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + pos);
+    }
+}
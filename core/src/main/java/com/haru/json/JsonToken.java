@@ -0,0 +1,17 @@
+package com.haru.json;
+
+/**
+ * {@link com.haru.json.JsonReader}가 읽는 JSON 토큰의 종류이다.
+ */
+public enum JsonToken {
+    BEGIN_ARRAY,
+    END_ARRAY,
+    BEGIN_OBJECT,
+    END_OBJECT,
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    END_DOCUMENT
+}
@@ -0,0 +1,14 @@
+package com.haru.json;
+
+import java.io.IOException;
+
+/**
+ * JSON 트리를 만들지 않고 {@link com.haru.json.JsonWriter}에 직접 쓸 수 있는 객체에 사용된다.
+ */
+public interface JsonWritable {
+    /**
+     * 객체를 JSON 값 하나로 쓴다.
+     * @param writer 값을 쓸 위치에 있는 JsonWriter
+     */
+    public void writeJson(JsonWriter writer) throws IOException;
+}
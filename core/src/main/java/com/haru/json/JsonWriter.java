@@ -0,0 +1,263 @@
+package com.haru.json;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JSON 문서를 메모리에 트리나 문자열로 만들지 않고, 스트림에 바로 써나가는 writer이다.
+ * android.util.JsonWriter는 API 11부터 지원되기 때문에 따로 구현하였다.
+ */
+public class JsonWriter implements Closeable, Flushable {
+
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Writer out;
+
+    private int[] stack = new int[32];
+    private int stackSize = 0;
+
+    public JsonWriter(Writer out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Writer may not be null");
+        }
+        this.out = out;
+        push(EMPTY_DOCUMENT);
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        beforeValue();
+        push(EMPTY_OBJECT);
+        out.write('{');
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        beforeValue();
+        push(EMPTY_ARRAY);
+        out.write('[');
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+    }
+
+    /**
+     * 객체 안에서 다음 값의 이름을 쓴다.
+     */
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new IllegalArgumentException("Name may not be null");
+        }
+        int scope = stack[stackSize - 1];
+        if (scope == NONEMPTY_OBJECT) out.write(',');
+        else if (scope != EMPTY_OBJECT) throw new IllegalStateException("Nesting problem");
+
+        stack[stackSize - 1] = DANGLING_NAME;
+        string(name);
+        out.write(':');
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) return nullValue();
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * 숫자 값을 쓴다. org.json과 마찬가지로 소수점 이하가 없는 실수는 정수로 쓴다.
+     */
+    public JsonWriter value(Number value) throws IOException {
+        if (value == null) return nullValue();
+
+        if (value instanceof Double || value instanceof Float) {
+            double doubleValue = value.doubleValue();
+            if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+            }
+            beforeValue();
+            long longValue = (long) doubleValue;
+            if (doubleValue == longValue) out.write(Long.toString(longValue));
+            else out.write(Double.toString(doubleValue));
+            return this;
+        }
+
+        beforeValue();
+        out.write(value.toString());
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        beforeValue();
+        out.write("null");
+        return this;
+    }
+
+    /**
+     * 임의의 값을 타입에 맞게 쓴다.
+     * Map은 객체, Collection과 배열은 배열로 쓰며, JSONObject, JSONArray와
+     * {@link com.haru.json.JsonWritable}도 쓸 수 있다. 그 외의 객체는 문자열로 쓴다.
+     */
+    public JsonWriter value(Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) return nullValue();
+        if (value instanceof String) return value((String) value);
+        if (value instanceof Number) return value((Number) value);
+        if (value instanceof Boolean) return value(((Boolean) value).booleanValue());
+
+        if (value instanceof JsonWritable) {
+            ((JsonWritable) value).writeJson(this);
+
+        } else if (value instanceof Map) {
+            beginObject();
+            Iterator iter = ((Map) value).entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            endObject();
+
+        } else if (value instanceof Collection) {
+            beginArray();
+            for (Object element : (Collection) value) value(element);
+            endArray();
+
+        } else if (value instanceof Object[]) {
+            beginArray();
+            for (Object element : (Object[]) value) value(element);
+            endArray();
+
+        } else if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            beginObject();
+            Iterator keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                name(key);
+                value(json.opt(key));
+            }
+            endObject();
+
+        } else if (value instanceof JSONArray) {
+            JSONArray json = (JSONArray) value;
+            beginArray();
+            for (int i = 0; i < json.length(); i++) value(json.opt(i));
+            endArray();
+
+        } else value(String.valueOf(value));
+
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (stackSize > 1 || stack[0] != NONEMPTY_DOCUMENT) {
+            throw new IOException("Incomplete document");
+        }
+    }
+
+    private JsonWriter close(int empty, int nonempty, char bracket) throws IOException {
+        int scope = stack[stackSize - 1];
+        if (scope != nonempty && scope != empty) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        stackSize--;
+        out.write(bracket);
+        return this;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] newStack = new int[stackSize * 2];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            stack = newStack;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    /**
+     * 값을 쓰기 전에 필요한 구분자를 쓰고 현재 범위의 상태를 갱신한다.
+     */
+    private void beforeValue() throws IOException {
+        switch (stack[stackSize - 1]) {
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                break;
+
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                break;
+
+            case NONEMPTY_ARRAY:
+                out.write(',');
+                break;
+
+            case DANGLING_NAME:
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                break;
+
+            case NONEMPTY_DOCUMENT:
+                throw new IllegalStateException("JSON must have only one top-level value");
+
+            default:
+                throw new IllegalStateException("Nesting problem");
+        }
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c == '"') replacement = "\\\"";
+            else if (c == '\\') replacement = "\\\\";
+            else if (c == '\n') replacement = "\\n";
+            else if (c == '\r') replacement = "\\r";
+            else if (c == '\t') replacement = "\\t";
+            else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                replacement = String.format("\\u%04x", (int) c);
+            } else continue;
+
+            // 이스케이프가 필요 없는 구간은 한번에 쓴다.
+            if (last < i) out.write(value, last, i - last);
+            out.write(replacement);
+            last = i + 1;
+        }
+        if (last < length) out.write(value, last, length - last);
+        out.write('"');
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Haru SDK 내부에서 사용되는 패키지입니다. 개발자를 위한 목적이 아니며, 향후 동의없이 제거될 수 있습니다.
+ */
+package com.haru.json;
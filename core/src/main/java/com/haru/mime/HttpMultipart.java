@@ -23,6 +23,9 @@ public class HttpMultipart {
     private final List<FormBodyPart> parts;
     private final HttpMultipartMode mode;
 
+    // 미리 인코딩해둔 boundary와 part 헤더들
+    private byte[][] framing;
+
     private static ByteArrayBuffer encode(Charset charset, String string) {
         ByteBuffer encoded = charset.encode(CharBuffer.wrap(string));
         ByteArrayBuffer bab = new ByteArrayBuffer(encoded.remaining());
@@ -100,24 +103,40 @@ public class HttpMultipart {
         if (part == null) {
             return;
         }
-        this.parts.add(part);
+        synchronized (this) {
+            this.parts.add(part);
+            this.framing = null;
+        }
     }
 
     public String getBoundary() {
         return this.boundary;
     }
 
-    private void doWriteTo(HttpMultipartMode mode, OutputStream out, boolean writeContent)
-            throws IOException {
+    /**
+     * 각 part 앞의 boundary와 헤더, 그리고 마지막 boundary를 미리 인코딩해둔다.
+     * part가 추가되기 전까지는 다시 만들지 않는다.
+     *
+     * @return part 수 + 1개의 byte 배열. 마지막은 닫는 boundary이다.
+     */
+    private synchronized byte[][] getFraming() throws IOException {
+        if (this.framing != null) {
+            return this.framing;
+        }
+
+        byte[][] framing = new byte[this.parts.size() + 1][];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayBuffer boundary = encode(this.charset, getBoundary());
-        for (FormBodyPart part : this.parts) {
+        for (int i = 0; i < this.parts.size(); i++) {
+            FormBodyPart part = this.parts.get(i);
+            out.reset();
             writeBytes(TWO_DASHES, out);
             writeBytes(boundary, out);
             writeBytes(CR_LF, out);
 
             Header header = part.getHeader();
 
-            switch (mode.ordinal()) {
+            switch (this.mode.ordinal()) {
                 case 1:
                     for (MinimalField field : header) {
                         writeField(field, out);
@@ -134,21 +153,29 @@ public class HttpMultipart {
                     break;
             }
             writeBytes(CR_LF, out);
-
-            if (writeContent) {
-                part.getBody().writeTo(out);
-            }
-            writeBytes(CR_LF, out);
+            framing[i] = out.toByteArray();
         }
+
+        out.reset();
         writeBytes(TWO_DASHES, out);
         writeBytes(boundary, out);
         writeBytes(TWO_DASHES, out);
         writeBytes(CR_LF, out);
+        framing[this.parts.size()] = out.toByteArray();
+
+        this.framing = framing;
+        return framing;
     }
 
     public void writeTo(OutputStream out)
             throws IOException {
-        doWriteTo(this.mode, out, true);
+        byte[][] framing = getFraming();
+        for (int i = 0; i < this.parts.size(); i++) {
+            out.write(framing[i]);
+            this.parts.get(i).getBody().writeTo(out);
+            writeBytes(CR_LF, out);
+        }
+        out.write(framing[this.parts.size()]);
     }
 
     public long getTotalLength() {
@@ -162,11 +189,12 @@ public class HttpMultipart {
                 return -1L;
             }
         }
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            doWriteTo(this.mode, out, false);
-            byte[] extra = out.toByteArray();
-            return contentLen + extra.length;
+            byte[][] framing = getFraming();
+            for (byte[] bytes : framing) {
+                contentLen += bytes.length;
+            }
+            return contentLen + (long) CR_LF.length() * this.parts.size();
         } catch (IOException ex) {
         }
         return -1L;
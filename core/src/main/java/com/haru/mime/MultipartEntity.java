@@ -121,10 +121,14 @@ public class MultipartEntity implements HttpEntity {
     }
 
     public void writeTo(OutputStream outstream) throws IOException {
-        // ProgressListener가 설정되어 있으면 그걸 쓴다.
-        if (progressListener != null) multipart.writeTo(
-                new ProgressOutputStream(outstream, getContentLength(), progressListener));
+        // ProgressListener가 설정되어 있으면 그걸 쓴다. 버퍼를 쓸 때마다 호출되지 않도록 간격을 둔다.
+        if (progressListener != null) {
+            ThrottledProgressListener throttled = new ThrottledProgressListener(progressListener);
+            multipart.writeTo(new ProgressOutputStream(outstream, getContentLength(), throttled));
 
-        else multipart.writeTo(outstream);
+            // 길이를 모르는 본문은 완료 시점을 알 수 없으므로 마지막 진행 상황을 직접 전달한다.
+            throttled.flush();
+
+        } else multipart.writeTo(outstream);
     }
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package com.haru.mime;
+
+/**
+ * 진행 상황을 일정 간격 이상으로만 전달하는 ProgressListener이다.
+ * 버퍼를 쓸 때마다 호출되는 진행 상황을 UI에 그대로 전달하면 불필요한 갱신이 많아지므로,
+ * 마지막 전달 후 일정 시간이 지났을 때만 전달한다. 처음과 완료 시에는 항상 전달한다.
+ * 전체 크기를 모르는 경우 (-1)에는 완료를 알 수 없으므로, 다 쓴 후에 {@link #flush()}로 마지막 진행 상황을 전달한다.
+ */
+public class ThrottledProgressListener implements ProgressOutputStream.ProgressListener {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+    private final ProgressOutputStream.ProgressListener listener;
+    private final long intervalNanos;
+
+    private long lastReportedAt = 0;
+    private long lastReported = -1;
+
+    // 마지막으로 받은 진행 상황 (전달되지 않았을 수 있다)
+    private long lastTotal = -1;
+    private long lastTransferred = -1;
+
+    public ThrottledProgressListener(ProgressOutputStream.ProgressListener listener) {
+        this(listener, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param listener 진행 상황을 전달받을 리스너
+     * @param intervalMillis 최소 전달 간격 (ms)
+     */
+    public ThrottledProgressListener(ProgressOutputStream.ProgressListener listener, long intervalMillis) {
+        this.listener = listener;
+        this.intervalNanos = intervalMillis * 1000000;
+    }
+
+    @Override
+    public synchronized void progress(long total, long transferred) {
+        lastTotal = total;
+        lastTransferred = transferred;
+        if (transferred == lastReported) return;
+
+        long now = System.nanoTime();
+        boolean isDone = total > 0 && transferred >= total;
+        if (lastReported < 0 || isDone || now - lastReportedAt >= intervalNanos) {
+            lastReportedAt = now;
+            lastReported = transferred;
+            listener.progress(total, transferred);
+        }
+    }
+
+    /**
+     * 간격 때문에 전달되지 않은 마지막 진행 상황이 있다면 전달한다.
+     */
+    public synchronized void flush() {
+        if (lastTransferred < 0 || lastTransferred == lastReported) return;
+
+        lastReportedAt = System.nanoTime();
+        lastReported = lastTransferred;
+        listener.progress(lastTotal, lastTransferred);
+    }
+}
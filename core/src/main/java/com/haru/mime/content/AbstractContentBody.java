@@ -3,6 +3,16 @@ package com.haru.mime.content;
 public abstract class AbstractContentBody
   implements ContentBody
 {
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  // 업로드 스레드마다 버퍼를 하나씩 재사용한다.
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
   private final String mimeType;
   private final String mediaType;
   private final String subType;
@@ -34,4 +44,8 @@ public abstract class AbstractContentBody
   public String getSubType() {
     return this.subType;
   }
+
+  static byte[] getBuffer() {
+    return buffers.get();
+  }
 }
\ No newline at end of file
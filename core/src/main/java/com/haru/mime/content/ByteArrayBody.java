@@ -0,0 +1,55 @@
+package com.haru.mime.content;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 메모리에 있는 데이터를 그대로 올리는 ContentBody이다.
+ * 만든 이미지나 압축한 로그처럼 파일로 저장되지 않은 데이터를 임시 파일 없이 올릴 수 있다.
+ */
+public class ByteArrayBody extends AbstractContentBody
+{
+  private final byte[] data;
+  private final String filename;
+
+  public ByteArrayBody(byte[] data, String mimeType, String filename)
+  {
+    super(mimeType);
+    if (data == null) {
+      throw new IllegalArgumentException("byte[] may not be null");
+    }
+    this.data = data;
+    this.filename = filename;
+  }
+
+  public ByteArrayBody(byte[] data, String filename) {
+    this(data, "application/octet-stream", filename);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    if (out == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+    // 진행 상황을 받을 수 있도록 나누어 쓴다.
+    for (int offset = 0; offset < this.data.length; offset += BUFFER_SIZE) {
+      out.write(this.data, offset, Math.min(BUFFER_SIZE, this.data.length - offset));
+    }
+    out.flush();
+  }
+
+  public String getTransferEncoding() {
+    return "binary";
+  }
+
+  public String getCharset() {
+    return null;
+  }
+
+  public long getContentLength() {
+    return this.data.length;
+  }
+
+  public String getFilename() {
+    return this.filename;
+  }
+}
@@ -54,12 +54,12 @@ public class FileBody extends AbstractContentBody
     if (out == null) {
       throw new IllegalArgumentException("Output stream may not be null");
     }
-    InputStream in = new FileInputStream(this.file);
+    FileInputStream in = new FileInputStream(this.file);
     try {
-      byte[] tmp = new byte[4096];
+      byte[] buffer = getBuffer();
       int l;
-      while ((l = in.read(tmp)) != -1) {
-        out.write(tmp, 0, l);
+      while ((l = in.read(buffer)) != -1) {
+        out.write(buffer, 0, l);
       }
       out.flush();
     } finally {
@@ -0,0 +1,75 @@
+package com.haru.mime.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * InputStream의 내용을 읽으면서 바로 올리는 ContentBody이다.
+ * 스트림은 한 번만 읽을 수 있으므로, 한 번 전송한 뒤에는 다시 쓸 수 없다.
+ * 길이를 모른다면 chunked 방식으로 전송된다.
+ */
+public class InputStreamBody extends AbstractContentBody
+{
+  private final InputStream in;
+  private final String filename;
+  private final long length;
+
+  /**
+   * @param length 스트림의 길이 (모를 시 -1)
+   */
+  public InputStreamBody(InputStream in, String mimeType, String filename, long length)
+  {
+    super(mimeType);
+    if (in == null) {
+      throw new IllegalArgumentException("Input stream may not be null");
+    }
+    this.in = in;
+    this.filename = filename;
+    this.length = length;
+  }
+
+  public InputStreamBody(InputStream in, String mimeType, String filename) {
+    this(in, mimeType, filename, -1);
+  }
+
+  public InputStreamBody(InputStream in, String filename) {
+    this(in, "application/octet-stream", filename);
+  }
+
+  public InputStream getInputStream() {
+    return this.in;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    if (out == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+    try {
+      byte[] buffer = getBuffer();
+      int l;
+      while ((l = this.in.read(buffer)) != -1) {
+        out.write(buffer, 0, l);
+      }
+      out.flush();
+    } finally {
+      this.in.close();
+    }
+  }
+
+  public String getTransferEncoding() {
+    return "binary";
+  }
+
+  public String getCharset() {
+    return null;
+  }
+
+  public long getContentLength() {
+    return this.length;
+  }
+
+  public String getFilename() {
+    return this.filename;
+  }
+}
@@ -0,0 +1,60 @@
+package com.haru.mime.content;
+
+import org.apache.http.entity.ContentProducer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 전송할 때 {@link org.apache.http.entity.ContentProducer}가 내용을 직접 써넣는 ContentBody이다.
+ * 비트맵을 압축하거나 로그를 gzip으로 묶는 것처럼 만들면서 바로 올릴 때 쓴다.
+ * 길이를 모른다면 chunked 방식으로 전송된다.
+ */
+public class ProducerBody extends AbstractContentBody
+{
+  private final ContentProducer producer;
+  private final String filename;
+  private final long length;
+
+  /**
+   * @param length 만들어질 내용의 길이 (모를 시 -1)
+   */
+  public ProducerBody(ContentProducer producer, String mimeType, String filename, long length)
+  {
+    super(mimeType);
+    if (producer == null) {
+      throw new IllegalArgumentException("Content producer may not be null");
+    }
+    this.producer = producer;
+    this.filename = filename;
+    this.length = length;
+  }
+
+  public ProducerBody(ContentProducer producer, String mimeType, String filename) {
+    this(producer, mimeType, filename, -1);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    if (out == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+    this.producer.writeTo(out);
+    out.flush();
+  }
+
+  public String getTransferEncoding() {
+    return "binary";
+  }
+
+  public String getCharset() {
+    return null;
+  }
+
+  public long getContentLength() {
+    return this.length;
+  }
+
+  public String getFilename() {
+    return this.filename;
+  }
+}
@@ -0,0 +1,210 @@
+package com.haru.task;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that runs tasks on a shared pool of threads, picking higher {@link Task.Priority}
+ * tasks first.
+ *
+ * Unlike {@link BoltsExecutors#background()}, the queues are unbounded so a burst of background
+ * work never causes a {@link java.util.concurrent.RejectedExecutionException}. Non-interactive
+ * tasks can only occupy {@code maxThreads - reservedThreads} threads at once, so there is always
+ * capacity left for {@link Task.Priority#INTERACTIVE} tasks. {@link Task.Priority#BACKGROUND}
+ * tasks are further limited to half of the non-interactive capacity. Every class gets at least
+ * {@link #MIN_THREADS_PER_PRIORITY} threads, so a task waiting on another task of the same priority
+ * does not deadlock on a single-core device.
+ */
+/* package */ final class PriorityScheduler {
+
+  private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+  /* package */ static final int MAX_THREADS = CPU_COUNT * 2 + 1;
+  /* package */ static final int RESERVED_THREADS = 2;
+  /* package */ static final int MIN_THREADS_PER_PRIORITY = 2;
+  /* package */ static final long KEEP_ALIVE_MILLIS = 5000;
+
+  private static final Task.Priority[] PRIORITIES = Task.Priority.values();
+
+  private static final PriorityScheduler INSTANCE =
+      new PriorityScheduler(MAX_THREADS, RESERVED_THREADS);
+
+  private final int maxThreads;
+  private final int[] maxRunning;
+
+  private final LinkedList<Runnable>[] queues;
+  private final int[] running;
+  private final Executor[] executors;
+
+  private int threadCount = 0;
+  private int idleCount = 0;
+
+  @SuppressWarnings("unchecked")
+  private PriorityScheduler(int maxThreads, int reservedThreads) {
+    this.maxThreads = maxThreads;
+
+    int shared = Math.max(MIN_THREADS_PER_PRIORITY, maxThreads - reservedThreads);
+    maxRunning = new int[PRIORITIES.length];
+    maxRunning[Task.Priority.INTERACTIVE.ordinal()] = maxThreads;
+    maxRunning[Task.Priority.NORMAL.ordinal()] = shared;
+    maxRunning[Task.Priority.BACKGROUND.ordinal()] = Math.max(MIN_THREADS_PER_PRIORITY, shared / 2);
+
+    queues = new LinkedList[PRIORITIES.length];
+    running = new int[PRIORITIES.length];
+    executors = new Executor[PRIORITIES.length];
+    for (final Task.Priority priority : PRIORITIES) {
+      queues[priority.ordinal()] = new LinkedList<Runnable>();
+      executors[priority.ordinal()] = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          submit(priority, command);
+        }
+      };
+    }
+  }
+
+  /**
+   * An {@link java.util.concurrent.Executor} that runs tasks with the given priority.
+   */
+  public static Executor executor(Task.Priority priority) {
+    return INSTANCE.executors[priority.ordinal()];
+  }
+
+  /**
+   * The number of tasks waiting to run with the given priority.
+   */
+  public static int getQueueDepth(Task.Priority priority) {
+    synchronized (INSTANCE) {
+      return INSTANCE.queues[priority.ordinal()].size();
+    }
+  }
+
+  /**
+   * The number of tasks running with the given priority.
+   */
+  public static int getRunningCount(Task.Priority priority) {
+    synchronized (INSTANCE) {
+      return INSTANCE.running[priority.ordinal()];
+    }
+  }
+
+  private synchronized void submit(Task.Priority priority, Runnable command) {
+    if (command == null) {
+      throw new NullPointerException();
+    }
+    queues[priority.ordinal()].add(command);
+
+    if (idleCount > 0) {
+      notifyAll();
+    }
+    // Idle workers may already be claimed by earlier submissions.
+    if (idleCount < getTotalQueued() && threadCount < maxThreads && canRun(priority)) {
+      startWorker();
+    }
+  }
+
+  private int getTotalQueued() {
+    int total = 0;
+    for (LinkedList<Runnable> queue : queues) {
+      total += queue.size();
+    }
+    return total;
+  }
+
+  private boolean canRun(Task.Priority priority) {
+    int index = priority.ordinal();
+    if (running[index] >= maxRunning[index]) {
+      return false;
+    }
+    if (priority == Task.Priority.INTERACTIVE) {
+      return true;
+    }
+
+    // Interactive tasks keep their reserved threads.
+    int nonInteractive = running[Task.Priority.NORMAL.ordinal()]
+        + running[Task.Priority.BACKGROUND.ordinal()];
+    return nonInteractive < maxRunning[Task.Priority.NORMAL.ordinal()];
+  }
+
+  /**
+   * Takes the highest priority task that is allowed to run now, or null.
+   */
+  private Runnable poll(Worker worker) {
+    for (Task.Priority priority : PRIORITIES) {
+      LinkedList<Runnable> queue = queues[priority.ordinal()];
+      if (!queue.isEmpty() && canRun(priority)) {
+        running[priority.ordinal()]++;
+        worker.current = priority;
+        return queue.removeFirst();
+      }
+    }
+    return null;
+  }
+
+  private void startWorker() {
+    threadCount++;
+    Thread thread = new Thread(new Worker(), "Haru-Worker-" + threadCount);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private class Worker implements Runnable {
+    private Task.Priority current;
+
+    @Override
+    public void run() {
+      Runnable command;
+      while ((command = take()) != null) {
+        try {
+          command.run();
+        } catch (Throwable e) {
+          // Task.call() catches exceptions, so this is a bug in a raw executor client.
+          // Keep the worker alive so the running counts stay correct.
+          Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+          if (handler != null) {
+            handler.uncaughtException(Thread.currentThread(), e);
+          }
+        }
+      }
+    }
+
+    /**
+     * Finishes the current task and waits for the next one. Returns null when the worker has
+     * been idle for {@link #KEEP_ALIVE_MILLIS}.
+     */
+    private Runnable take() {
+      synchronized (PriorityScheduler.this) {
+        if (current != null) {
+          running[current.ordinal()]--;
+          current = null;
+          // Capacity was freed. Let waiting workers pick up a blocked lower priority task.
+          if (idleCount > 0) {
+            PriorityScheduler.this.notifyAll();
+          }
+        }
+
+        long deadline = System.currentTimeMillis() + KEEP_ALIVE_MILLIS;
+        while (true) {
+          Runnable command = poll(this);
+          if (command != null) {
+            return command;
+          }
+
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            threadCount--;
+            return null;
+          }
+
+          idleCount++;
+          try {
+            PriorityScheduler.this.wait(remaining);
+          } catch (InterruptedException e) {
+            // Keep going until the keep-alive time is over.
+          } finally {
+            idleCount--;
+          }
+        }
+      }
+    }
+  }
+}
@@ -41,6 +41,25 @@ public class Task<TResult> {
      */
     public static final Executor UI_THREAD_EXECUTOR = AndroidExecutors.uiThread();
 
+    /**
+     * Priority classes for background work. Higher priority tasks are picked first, and
+     * some threads are always kept for {@link #INTERACTIVE} tasks.
+     */
+    public enum Priority {
+        /**
+         * Work the user is waiting for, e.g. a query started by a tap.
+         */
+        INTERACTIVE,
+        /**
+         * Work that should not hold up interactive work, e.g. entity saves.
+         */
+        NORMAL,
+        /**
+         * Work nobody is waiting for, e.g. installation saves, analytics, sync.
+         */
+        BACKGROUND
+    }
+
     private final Object lock = new Object();
     private boolean complete;
     private boolean cancelled;
@@ -177,11 +196,44 @@ public class Task<TResult> {
 
     /**
      * Invokes the callable on a background thread, returning a Task to represent the operation.
+     * The callable runs on {@link #BACKGROUND_EXECUTOR}, not on the prioritised pool, so callables
+     * that block on other tasks can never starve the capped priority classes.
      */
     public static <TResult> Task<TResult> callInBackground(Callable<TResult> callable) {
         return call(callable, BACKGROUND_EXECUTOR);
     }
 
+    /**
+     * Invokes the callable on a background thread with the given priority, returning a Task
+     * to represent the operation.
+     */
+    public static <TResult> Task<TResult> callInBackground(Callable<TResult> callable,
+                                                           Priority priority) {
+        return call(callable, executor(priority));
+    }
+
+    /**
+     * An {@link java.util.concurrent.Executor} that runs tasks on a background thread with the
+     * given priority. Unlike {@link #BACKGROUND_EXECUTOR}, it never rejects tasks.
+     */
+    public static Executor executor(Priority priority) {
+        return PriorityScheduler.executor(priority);
+    }
+
+    /**
+     * Returns the number of tasks waiting to run with the given priority.
+     */
+    public static int getQueueDepth(Priority priority) {
+        return PriorityScheduler.getQueueDepth(priority);
+    }
+
+    /**
+     * Returns the number of tasks running with the given priority.
+     */
+    public static int getRunningCount(Priority priority) {
+        return PriorityScheduler.getRunningCount(priority);
+    }
+
     /**
      * Invokes the callable using the given executor, returning a Task to represent the operation.
      */
@@ -1,7 +1,9 @@
 package com.haru.write;
 
 import com.haru.Haru;
+import com.haru.json.JsonWriter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,6 +16,10 @@ public class DeleteFieldOperation implements Operation {
         fields.add(fieldToDeleted);
     }
 
+    private DeleteFieldOperation(List<String> fields) {
+        this.fields = fields;
+    }
+
     public String getFirstValue() {
         return fields.get(0);
     }
@@ -35,8 +41,18 @@ public class DeleteFieldOperation implements Operation {
         }
     }
 
+    @Override
+    public Operation copy() {
+        return new DeleteFieldOperation(new ArrayList<String>(fields));
+    }
+
     @Override
     public Object toJson() throws Exception {
         return Haru.encode(fields);
     }
+
+    @Override
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.value(fields);
+    }
 }
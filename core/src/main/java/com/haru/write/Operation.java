@@ -1,12 +1,18 @@
 package com.haru.write;
 
 import com.haru.JsonEncodable;
+import com.haru.json.JsonWritable;
 
-public interface Operation extends JsonEncodable {
+public interface Operation extends JsonEncodable, JsonWritable {
 
     public abstract String getMethod();
 
     public abstract String getRequestDataKey();
 
     public abstract void mergeFromPrevious(Operation other);
+
+    /**
+     * 이후의 변경 사항에 영향을 받지 않는 복사본을 만든다.
+     */
+    public abstract Operation copy();
 }
@@ -2,15 +2,18 @@ package com.haru.write;
 
 import com.haru.JsonEncodable;
 import com.haru.Haru;
+import com.haru.json.JsonWritable;
+import com.haru.json.JsonWriter;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
-public class OperationSet extends HashMap<String, Operation> implements JsonEncodable {
+public class OperationSet extends HashMap<String, Operation> implements JsonEncodable, JsonWritable {
 
     private String className, entityId;
     public OperationSet(String className, String entityId) {
@@ -35,4 +38,34 @@ public class OperationSet extends HashMap<String, Operation> implements JsonEnco
         }
         return jsonArray;
     }
+
+    /**
+     * Operation들을 /batch 요청의 requests 형식으로 바로 쓴다. {@link #toJson()}과 같은 결과를 만든다.
+     */
+    @Override
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (Operation operation : values()) {
+            writer.beginObject();
+            writer.name("method").value(operation.getMethod());
+            writer.name("class").value(className);
+            writer.name("_id").value(entityId);
+            writer.name(operation.getRequestDataKey());
+            operation.writeJson(writer);
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    /**
+     * 이후의 변경 사항에 영향을 받지 않는 복사본을 만든다.
+     * 백그라운드에서 요청 본문을 쓰는 동안 Entity가 수정될 수 있기 때문에 사용한다.
+     */
+    public OperationSet copy() {
+        OperationSet copied = new OperationSet(className, entityId);
+        for (Map.Entry<String, Operation> pair : entrySet()) {
+            copied.put(pair.getKey(), pair.getValue().copy());
+        }
+        return copied;
+    }
 }
@@ -1,7 +1,9 @@
 package com.haru.write;
 
 import com.haru.Haru;
+import com.haru.json.JsonWriter;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,6 +16,10 @@ public class UpdateOperation implements Operation {
         data.put(key, value);
     }
 
+    private UpdateOperation(Map<String, Object> data) {
+        this.data = data;
+    }
+
     @Override
     public String getMethod() {
         return "update";
@@ -31,6 +37,11 @@ public class UpdateOperation implements Operation {
         }
     }
 
+    @Override
+    public Operation copy() {
+        return new UpdateOperation(new HashMap<String, Object>(data));
+    }
+
     public void removeOperationByKey(String key) {
         data.remove(key);
     }
@@ -39,4 +50,9 @@ public class UpdateOperation implements Operation {
     public Object toJson() throws Exception {
         return Haru.encode(data);
     }
+
+    @Override
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.value(data);
+    }
 }
@@ -26,14 +26,14 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.Calendar;
 import java.util.Locale;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -50,6 +50,9 @@ import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.haru.HaruRequest;
+import com.haru.HttpTransport;
+
 public abstract class MediaProcessorThread extends Thread {
 	private final static String TAG = "MediaProcessorThread";
 
@@ -57,6 +60,8 @@ public abstract class MediaProcessorThread extends Thread {
 
 	private final static int THUMBNAIL_SMALL = 2;
 
+	private final static int MAX_REDIRECTS = 5;
+
 	protected String filePath;
 
 	protected Context context;
@@ -227,11 +232,9 @@ public abstract class MediaProcessorThread extends Thread {
 
 	protected String downloadFile(String url) {
 		String localFilePath = "";
-		HttpClient client = new DefaultHttpClient();
-		HttpGet getRequest = new HttpGet(url);
 
 		try {
-			HttpResponse response = client.execute(getRequest);
+			HttpResponse response = executeFollowingRedirects(url);
 			InputStream stream = response.getEntity().getContent();
 
 			localFilePath = foldername + File.separator
@@ -262,6 +265,30 @@ public abstract class MediaProcessorThread extends Thread {
 		return localFilePath;
 	}
 
+	/**
+	 * Downloads through the SDK's shared HTTP transport, which doesn't follow
+	 * redirects by itself.
+	 */
+	private HttpResponse executeFollowingRedirects(String url) throws IOException {
+		HttpTransport transport = HaruRequest.getTransport();
+		if (transport == null) {
+			throw new IllegalStateException("You need to call Haru.init() before downloading files.");
+		}
+
+		for (int redirects = 0; redirects < MAX_REDIRECTS; redirects++) {
+			HttpResponse response = transport.execute(new HttpGet(url));
+			int statusCode = response.getStatusLine().getStatusCode();
+			Header location = response.getFirstHeader("Location");
+			if (statusCode < 300 || statusCode >= 400 || location == null) {
+				return response;
+			}
+
+			if (response.getEntity() != null) response.getEntity().consumeContent();
+			url = URI.create(url).resolve(location.getValue()).toString();
+		}
+		throw new IOException("Too many redirects: " + url);
+	}
+
 	protected void manageDiretoryCache(final int maxDirectorySize,
 			final int maxThresholdDays, final String extension) {
 		File directory = null;
@@ -17,7 +17,9 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
         Log.e("Haru", "===========================================================================");
-        Haru.init(this,  "9552b75d-5eb3-4474-870f-8fde67ac761f", "1158513e-6742-456a-8cc9-6dd3dfa060c3","http://api.haru.io/1");
+        // requests go to the real server unless a test installs a stand-in server
+        Haru.init(this,  "9552b75d-5eb3-4474-870f-8fde67ac761f", "1158513e-6742-456a-8cc9-6dd3dfa060c3","http://api.haru.io/1",
+                new StandInServerTransport());
         Installation.init(this);
         Push.init(this, "tcp://52.68.245.47:1883");
 
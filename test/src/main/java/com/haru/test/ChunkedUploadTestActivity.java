@@ -0,0 +1,234 @@
+package com.haru.test;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Base64;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.haru.HaruFile;
+import com.haru.task.Task;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Activity for testing chunked file uploads against a stand-in server.
+ *
+ * 1. Chunked upload : the stand-in server rejects one chunk, so the first upload fails.
+ *    Uploading again must resume from the last acknowledged chunk and send every byte exactly once.
+ * 2. Fallback : the stand-in server does not know /files/uploads (404).
+ *    The upload must fall back to a single multipart POST /files, and later uploads must skip /files/uploads.
+ *
+ * Test 2 turns chunked uploads off for the rest of the process, so restart the app before running again.
+ */
+public class ChunkedUploadTestActivity extends Activity implements View.OnClickListener {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 5 * CHUNK_SIZE + 1234;
+    private static final int REJECTED_CHUNK = 2;
+
+    private TextView resultText;
+    private Button runButton;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+
+        runButton = (Button) findViewById(R.id.benchmark_run_btn);
+        runButton.setText("Run tests");
+        runButton.setOnClickListener(this);
+        resultText = (TextView) findViewById(R.id.benchmark_result_text);
+    }
+
+    @Override
+    public void onClick(View view) {
+        runButton.setEnabled(false);
+        resultText.setText("Running...");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder result = new StringBuilder();
+                HaruFile.setUploadChunkSize(CHUNK_SIZE);
+                try {
+                    result.append("Chunked upload : ").append(testChunkedUpload()).append('\n');
+                    result.append("Fallback : ").append(testFallback()).append('\n');
+
+                } catch (Exception e) {
+                    result.append("Error : ").append(e.getMessage());
+
+                } finally {
+                    StandInServerTransport.install(null);
+                }
+
+                final String text = result.toString();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        resultText.setText(text);
+                        runButton.setEnabled(true);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Stand-in for a server that supports /files/uploads.
+     */
+    private static class ChunkedServer implements StandInServerTransport.StandInServer {
+        final byte[] received = new byte[FILE_SIZE];
+        final ArrayList<Integer> putIndexes = new ArrayList<Integer>();
+        int receivedChunks = 0;
+        int completeCount = 0;
+        boolean rejectsOnce = true;
+
+        @Override
+        public synchronized StandInServerTransport.Response handle(String method,
+                                                                   String path,
+                                                                   HttpUriRequest request,
+                                                                   byte[] body) throws Exception {
+            if (method.equals("POST") && path.endsWith("/files/uploads")) {
+                JSONObject response = new JSONObject();
+                response.put("uploadId", "upload1");
+                return StandInServerTransport.Response.json(response);
+            }
+
+            if (method.equals("GET") && path.endsWith("/files/uploads/upload1")) {
+                JSONObject response = new JSONObject();
+                response.put("received", receivedChunks);
+                return StandInServerTransport.Response.json(response);
+            }
+
+            if (method.equals("PUT") && path.contains("/files/uploads/upload1/")) {
+                int index = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+                putIndexes.add(index);
+                if (index == REJECTED_CHUNK && rejectsOnce) {
+                    rejectsOnce = false;
+                    return StandInServerTransport.Response.status(400);
+                }
+
+                byte[] md5 = MessageDigest.getInstance("MD5").digest(body);
+                String checksum = request.getFirstHeader("Content-MD5").getValue();
+                if (index == receivedChunks && checksum.equals(Base64.encodeToString(md5, Base64.NO_WRAP))) {
+                    System.arraycopy(body, 0, received, index * CHUNK_SIZE, body.length);
+                    receivedChunks++;
+                }
+
+                JSONObject response = new JSONObject();
+                response.put("received", receivedChunks);
+                return StandInServerTransport.Response.json(response);
+            }
+
+            if (method.equals("POST") && path.endsWith("/files/uploads/upload1/complete")) {
+                completeCount++;
+                return StandInServerTransport.Response.json(StandInServerTransport.fileInfo("chunked"));
+            }
+            return StandInServerTransport.Response.status(404);
+        }
+    }
+
+    private String testChunkedUpload() throws Exception {
+        byte[] data = createSampleData();
+        File file = writeSampleFile(data);
+        ChunkedServer server = new ChunkedServer();
+        StandInServerTransport.install(server);
+
+        Task firstTask = new HaruFile(file).saveInBackground();
+        firstTask.waitForCompletion();
+        if (!firstTask.isFaulted()) return "FAILED (the first upload should fail at chunk " + REJECTED_CHUNK + ")";
+
+        int putsBeforeResume = server.putIndexes.size();
+        HaruFile haruFile = new HaruFile(file);
+        Task secondTask = haruFile.saveInBackground();
+        secondTask.waitForCompletion();
+        file.delete();
+
+        if (secondTask.isFaulted()) return "FAILED (" + secondTask.getError().getMessage() + ")";
+        if (server.putIndexes.get(putsBeforeResume) != REJECTED_CHUNK) {
+            return "FAILED (resumed from chunk " + server.putIndexes.get(putsBeforeResume) + ")";
+        }
+        if (!Arrays.equals(data, server.received)) return "FAILED (received bytes differ)";
+        if (server.completeCount != 1) return "FAILED (completed " + server.completeCount + " times)";
+        if (!"chunked".equals(haruFile.getId())) return "FAILED (file id is " + haruFile.getId() + ")";
+        return "OK (" + server.putIndexes.size() + " chunk requests)";
+    }
+
+    /**
+     * Stand-in for a server without /files/uploads.
+     */
+    private static class LegacyServer implements StandInServerTransport.StandInServer {
+        int uploadsRequests = 0;
+        int filesRequests = 0;
+        int largestBody = 0;
+
+        @Override
+        public synchronized StandInServerTransport.Response handle(String method,
+                                                                   String path,
+                                                                   HttpUriRequest request,
+                                                                   byte[] body) throws Exception {
+            if (path.contains("/files/uploads")) {
+                uploadsRequests++;
+                return StandInServerTransport.Response.status(404);
+            }
+            if (method.equals("POST") && path.endsWith("/files")) {
+                filesRequests++;
+                largestBody = Math.max(largestBody, body != null ? body.length : 0);
+                return StandInServerTransport.Response.json(StandInServerTransport.fileInfo("legacy"));
+            }
+            return StandInServerTransport.Response.status(404);
+        }
+    }
+
+    private String testFallback() throws Exception {
+        File file = writeSampleFile(createSampleData());
+        LegacyServer server = new LegacyServer();
+        StandInServerTransport.install(server);
+
+        HaruFile haruFile = new HaruFile(file);
+        Task firstTask = haruFile.saveInBackground();
+        firstTask.waitForCompletion();
+        if (firstTask.isFaulted()) return "FAILED (" + firstTask.getError().getMessage() + ")";
+        if (!"legacy".equals(haruFile.getId())) return "FAILED (file id is " + haruFile.getId() + ")";
+        if (server.largestBody < FILE_SIZE) return "FAILED (multipart body is smaller than the file)";
+
+        Task secondTask = new HaruFile(file).saveInBackground();
+        secondTask.waitForCompletion();
+        file.delete();
+
+        if (secondTask.isFaulted()) return "FAILED (" + secondTask.getError().getMessage() + ")";
+        if (server.uploadsRequests != 1) {
+            return "FAILED (/files/uploads requested " + server.uploadsRequests + " times)";
+        }
+        if (server.filesRequests != 2) return "FAILED (/files requested " + server.filesRequests + " times)";
+        return "OK";
+    }
+
+    private static byte[] createSampleData() {
+        byte[] data = new byte[FILE_SIZE];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private File writeSampleFile(byte[] data) throws IOException {
+        File file = new File(getCacheDir(), "chunked-upload-" + System.nanoTime() + ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
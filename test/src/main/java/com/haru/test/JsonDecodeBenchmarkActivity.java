@@ -0,0 +1,198 @@
+package com.haru.test;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.haru.Haru;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Activity for comparing JSON to Map decoding performance.
+ * Compares Haru.convertJsonToMap against the previous implementation,
+ * which probed each value's type by catching JSONExceptions.
+ */
+public class JsonDecodeBenchmarkActivity extends Activity implements View.OnClickListener {
+
+    private static final int ENTITY_COUNT = 200;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURE_ITERATIONS = 100;
+
+    private TextView resultText;
+    private Button runButton;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+
+        runButton = (Button) findViewById(R.id.benchmark_run_btn);
+        runButton.setOnClickListener(this);
+        resultText = (TextView) findViewById(R.id.benchmark_result_text);
+    }
+
+    @Override
+    public void onClick(View view) {
+        runButton.setEnabled(false);
+        resultText.setText("Running...");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String result = runBenchmark();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        resultText.setText(result);
+                        runButton.setEnabled(true);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private String runBenchmark() {
+        JSONObject[] entities;
+        try {
+            entities = createSampleEntities();
+        } catch (JSONException e) {
+            return e.toString();
+        }
+
+        // warm up both implementations before measuring
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decodeWithLegacy(entities);
+            decodeWithHaru(entities);
+        }
+
+        long legacyTime = 0, haruTime = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            decodeWithLegacy(entities);
+            legacyTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            decodeWithHaru(entities);
+            haruTime += System.nanoTime() - start;
+        }
+
+        double legacyMs = legacyTime / 1e6 / MEASURE_ITERATIONS;
+        double haruMs = haruTime / 1e6 / MEASURE_ITERATIONS;
+        return String.format("%d entities x %d iterations\n\n"
+                        + "exception probing : %.3f ms/op\n"
+                        + "typed decoder     : %.3f ms/op\n\n"
+                        + "speedup : %.2fx",
+                ENTITY_COUNT, MEASURE_ITERATIONS, legacyMs, haruMs, legacyMs / haruMs);
+    }
+
+    private void decodeWithLegacy(JSONObject[] entities) {
+        for (JSONObject entity : entities) {
+            legacyConvertJsonToMap(entity, new HashMap<String, Object>());
+        }
+    }
+
+    private void decodeWithHaru(JSONObject[] entities) {
+        for (JSONObject entity : entities) {
+            Haru.convertJsonToMap(entity);
+        }
+    }
+
+    /**
+     * Create entities which look like typical query results.
+     */
+    private JSONObject[] createSampleEntities() throws JSONException {
+        JSONObject[] entities = new JSONObject[ENTITY_COUNT];
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            JSONObject entity = new JSONObject();
+            entity.put("_id", "54a1b2c3d4e5f6" + i);
+            entity.put("createdAt", "1418000000000");
+            entity.put("updatedAt", "1418000000000");
+            entity.put("title", "Sample entity #" + i);
+            entity.put("description", "Lorem ipsum dolor sit amet, consectetur adipiscing elit.");
+            entity.put("count", i);
+            entity.put("timestamp", 1418000000000L + i);
+            entity.put("score", i * 0.5);
+            entity.put("isPublic", i % 2 == 0);
+
+            JSONObject author = new JSONObject();
+            author.put("name", "user" + i);
+            author.put("level", i % 10);
+            entity.put("author", author);
+
+            JSONArray tags = new JSONArray();
+            tags.put("haru");
+            tags.put("sample");
+            tags.put(i);
+            entity.put("tags", tags);
+
+            entities[i] = entity;
+        }
+        return entities;
+    }
+
+    /**
+     * Previous implementation of Haru.convertJsonToMap.
+     */
+    private static void legacyConvertJsonToMap(JSONObject json, Map<String, Object> outputMap) {
+        Iterator keys = json.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object value = null;
+
+            // I know it's very dirty way, but it's the only way
+            // to convert JSON values to actual types.
+            // Try to parse name
+            try {
+                value = json.getInt(key);
+
+            } catch (Exception e) {
+                try {
+                    value = json.getLong(key);
+
+                } catch (JSONException le) {
+                    try {
+                        value = json.getDouble(key);
+
+                    } catch (JSONException ie) {
+                        try {
+                            value = json.getBoolean(key);
+
+                        } catch (JSONException je) {
+                            // or JSONObject?
+                            try {
+                                JSONObject nestedJson = json.getJSONObject(key);
+                                Map<String, Object> nestedMap = new HashMap<String, Object>();
+                                legacyConvertJsonToMap(nestedJson, nestedMap);
+                                value = nestedMap;
+
+                            } catch (JSONException jeee) {
+                                try {
+                                    // TODO: Nested array 처리
+                                    value = json.getJSONArray(key);
+
+                                } catch (JSONException jee) {
+                                    try {
+                                        value = json.getString(key);
+
+                                    } catch (JSONException j) {
+                                        throw new RuntimeException("Unknown type!");
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            outputMap.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.haru.test;
+
+import android.app.Activity;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+import com.haru.Entity;
+import com.haru.task.Task;
+
+import java.util.ArrayList;
+
+/**
+ * Activity for comparing local datastore write throughput.
+ * Compares the previous way of saving entities, which opened and closed the database
+ * for every insert, against a burst of Entity.saveToLocalInBackground calls (batched by the writer thread)
+ * and Entity.saveAllToLocal which writes them in a single transaction.
+ */
+public class LocalStoreBenchmarkActivity extends Activity implements View.OnClickListener {
+
+    private static final String CLASS_NAME = "LocalStoreBenchmark";
+    private static final String LEGACY_DB_NAME = "haru_benchmark.db";
+    private static final int ENTITY_COUNT = 500;
+
+    private TextView resultText;
+    private Button runButton;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+
+        runButton = (Button) findViewById(R.id.benchmark_run_btn);
+        runButton.setOnClickListener(this);
+        resultText = (TextView) findViewById(R.id.benchmark_result_text);
+    }
+
+    @Override
+    public void onClick(View view) {
+        runButton.setEnabled(false);
+        resultText.setText("Running...");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String benchmarkResult;
+                try {
+                    benchmarkResult = runBenchmark();
+                } catch (InterruptedException e) {
+                    benchmarkResult = "Interrupted";
+                }
+                final String result = benchmarkResult;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        resultText.setText(result);
+                        runButton.setEnabled(true);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private String runBenchmark() throws InterruptedException {
+        ArrayList<Entity> entities = createSampleEntities();
+
+        // previous implementation : open, insert, close for every entity
+        LegacyStore legacyStore = new LegacyStore(this);
+        long start = System.nanoTime();
+        for (Entity entity : entities) {
+            legacyStore.save(entity);
+        }
+        long legacyTime = System.nanoTime() - start;
+        deleteDatabase(LEGACY_DB_NAME);
+
+        // one request per entity, coalesced into transactions by the writer thread
+        start = System.nanoTime();
+        Task<Void> lastSave = null;
+        for (Entity entity : entities) {
+            lastSave = entity.saveToLocalInBackground();
+        }
+        lastSave.waitForCompletion();
+        long singleTime = System.nanoTime() - start;
+        Entity.deleteAllFromLocal(entities).waitForCompletion();
+
+        // whole batch in a single transaction
+        start = System.nanoTime();
+        Entity.saveAllToLocal(entities).waitForCompletion();
+        long batchTime = System.nanoTime() - start;
+        Entity.deleteAllFromLocal(entities).waitForCompletion();
+
+        double legacyRate = ENTITY_COUNT / (legacyTime / 1e9);
+        double singleRate = ENTITY_COUNT / (singleTime / 1e9);
+        double batchRate = ENTITY_COUNT / (batchTime / 1e9);
+        return String.format("%d entities\n\n"
+                        + "open/close per insert   : %.0f inserts/s\n"
+                        + "saveToLocalInBackground : %.0f inserts/s\n"
+                        + "saveAllToLocal          : %.0f inserts/s\n\n"
+                        + "speedup : %.2fx",
+                ENTITY_COUNT, legacyRate, singleRate, batchRate, batchRate / legacyRate);
+    }
+
+    /**
+     * Create entities which look like typical query results.
+     */
+    private ArrayList<Entity> createSampleEntities() {
+        ArrayList<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            Entity entity = new BenchmarkEntity("54a1b2c3d4e5f6" + i);
+            entity.put("title", "Sample entity #" + i);
+            entity.put("description", "Lorem ipsum dolor sit amet, consectetur adipiscing elit.");
+            entity.put("count", i);
+            entity.put("score", i * 0.5);
+            entity.put("isPublic", i % 2 == 0);
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    /**
+     * Entity which already has an ID, so it can be saved locally without the server.
+     */
+    private static class BenchmarkEntity extends Entity {
+        BenchmarkEntity(String entityId) {
+            super(CLASS_NAME);
+            setEntityId(entityId);
+        }
+    }
+
+    /**
+     * Previous implementation of LocalEntityStore.saveEntity.
+     */
+    private static class LegacyStore extends SQLiteOpenHelper {
+
+        LegacyStore(Context context) {
+            super(context, LEGACY_DB_NAME, null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE HaruEntity ("
+                    + "id TEXT PRIMARY KEY,"
+                    + "className TEXT NOT NULL,"
+                    + "entityId TEXT NOT NULL,"
+                    + "data TEXT,"
+                    + "tag TEXT,"
+                    + "UNIQUE(className, entityId));");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+
+        void save(Entity entity) {
+            SQLiteDatabase db = getWritableDatabase();
+
+            ContentValues values = new ContentValues();
+            values.put("className", entity.getClassName());
+            values.put("entityId", entity.getId());
+            values.put("data", entity.toJson().toString());
+
+            db.insertWithOnConflict("HaruEntity", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.close();
+        }
+    }
+}
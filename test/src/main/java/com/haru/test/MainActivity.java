@@ -87,6 +87,21 @@ public class MainActivity extends Activity {
 
             case R.id.file_upload_image_btn:
                 break;
+
+            case R.id.chunked_upload_test_btn:
+                Intent uploadTestIntent = new Intent(this, ChunkedUploadTestActivity.class);
+                startActivity(uploadTestIntent);
+                break;
+
+            case R.id.json_decode_benchmark_btn:
+                Intent benchmarkIntent = new Intent(this, JsonDecodeBenchmarkActivity.class);
+                startActivity(benchmarkIntent);
+                break;
+
+            case R.id.local_store_benchmark_btn:
+                Intent localStoreIntent = new Intent(this, LocalStoreBenchmarkActivity.class);
+                startActivity(localStoreIntent);
+                break;
         }
     }
 
@@ -0,0 +1,109 @@
+package com.haru.test;
+
+import com.haru.ApacheHttpTransport;
+import com.haru.HttpTransport;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * HttpTransport that passes requests to the real server,
+ * unless a stand-in server is installed for testing.
+ * Installed in {@link App} so tests can answer SDK requests without a server that supports the feature.
+ */
+public class StandInServerTransport implements HttpTransport {
+
+    /**
+     * Stand-in for the server. Returns null to pass the request to the real server.
+     */
+    public interface StandInServer {
+        public Response handle(String method, String path, HttpUriRequest request, byte[] body) throws Exception;
+    }
+
+    /**
+     * Response from the stand-in server.
+     */
+    public static class Response {
+        final int statusCode;
+        final String body;
+
+        public Response(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public static Response json(JSONObject body) {
+            return new Response(200, body.toString());
+        }
+
+        public static Response status(int statusCode) {
+            return new Response(statusCode, "");
+        }
+    }
+
+    private static volatile StandInServer standInServer;
+
+    private final HttpTransport realTransport = new ApacheHttpTransport();
+
+    /**
+     * @param server stand-in server to answer the requests (null to use the real server again)
+     */
+    public static void install(StandInServer server) {
+        standInServer = server;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        StandInServer server = standInServer;
+        if (server == null) return realTransport.execute(request);
+
+        byte[] body = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                entity.writeTo(out);
+                body = out.toByteArray();
+            }
+        }
+
+        Response response;
+        try {
+            response = server.handle(request.getMethod(), request.getURI().getPath(), request, body);
+        } catch (Exception e) {
+            throw new IOException("Stand-in server failed : " + e.getMessage());
+        }
+        if (response == null) return realTransport.execute(request);
+
+        BasicHttpResponse httpResponse = new BasicHttpResponse(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, response.statusCode, "Stand-in"));
+        StringEntity entity = new StringEntity(response.body, "utf-8");
+        entity.setContentType("application/json");
+        httpResponse.setEntity(entity);
+        return httpResponse;
+    }
+
+    /**
+     * Creates the file information the server returns after an upload.
+     */
+    public static JSONObject fileInfo(String fileId) throws JSONException {
+        long now = System.currentTimeMillis();
+        JSONObject info = new JSONObject();
+        info.put("_id", fileId);
+        info.put("createdAt", now);
+        info.put("updatedAt", now);
+        info.put("url", "http://localhost/files/" + fileId);
+        return info;
+    }
+}